@@ -0,0 +1,201 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * AdmissionControl.java
+ *
+ * Bounded accept queue of the blocking engine (one shared queue or one per worker, see
+ * WorkQueues). The acceptor threads hand every accepted socket to admit(). When the queue is full the connection is turned away right away (so it doesn't
+ * sit in the queue until the client gives up) with one of these policies:
+ *   "503":   answer "503 Service Unavailable" with a Retry-After header and close.
+ *   "reset": close with SO_LINGER 0, so the client gets a TCP reset.
+ *   "block": wait a little for room in the queue, then answer 503 if there still is none.
+ * Connections that get in are never delayed by the ones turned away, which keeps latency of
+ * admitted requests stable under overload.
+ */
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class AdmissionControl {
+
+    // Overload policies.
+    public static final String POLICY_503 = "503";
+    public static final String POLICY_RESET = "reset";
+    public static final String POLICY_BLOCK = "block";
+
+    // Queue(s) the workers take connections from.
+    private final WorkQueues queue;
+    private final int capacity;
+    private final String policy;
+
+    // 503 response is built here (one per acceptor thread).
+    private static final ThreadLocal<ResponseHeaderBuilder> headerBuilder =
+            ThreadLocal.withInitial(ResponseHeaderBuilder::new);
+
+    // Counters (read by the console thread).
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder admittedAfterBlocking = new LongAdder();
+    private final LongAdder rejected503 = new LongAdder();
+    private final LongAdder rejectedReset = new LongAdder();
+    // Deepest the queue has been (written by the acceptors, a race may lose a peak).
+    private volatile int peakDepth = 0;
+
+    /**
+     * @param capacity most connections waiting for a worker.
+     * @param workers number of workers.
+     * @param dispatch WorkQueues mode ("shared" or "sharded").
+     * @param policy overload policy.
+     */
+    public AdmissionControl(int capacity, int workers, String dispatch, String policy) {
+        if (!policy.equals(POLICY_503) && !policy.equals(POLICY_RESET) && !policy.equals(POLICY_BLOCK)) {
+            Log.warn("Unknown overload policy " + policy + ", using " + POLICY_503 + ".");
+            policy = POLICY_503;
+        }
+        this.policy = policy;
+        this.queue = new WorkQueues(Math.max(1, capacity), workers, dispatch);
+        this.capacity = queue.capacity();
+    }
+
+    // Constructor with the settings from ServerConfig.
+    public AdmissionControl(int workers) {
+        this(ServerConfig.acceptQueueCapacity, workers, ServerConfig.dispatch, ServerConfig.overloadPolicy);
+    }
+
+    /**
+     * Queue(s) the workers take connections from.
+     */
+    public WorkQueues queue() {
+        return queue;
+    }
+
+    /**
+     * Puts an accepted connection in the queue, or turns it away if the queue is full.
+     * @param sock newly accepted connection.
+     * Precondition: called by an acceptor thread.
+     * Postcondition: sock is in the queue, or has been answered/reset and closed.
+     */
+    public void admit(Socket sock) {
+        QueuedSocket queued = new QueuedSocket(sock);
+        if (queue.offer(queued)) {
+            admitted.increment();
+            recordDepth();
+            return;
+        }
+
+        if (policy.equals(POLICY_BLOCK)) {
+            // Give the workers a moment to catch up.
+            try {
+                if (queue.offer(queued, ServerConfig.overloadBlockMillis, TimeUnit.MILLISECONDS)) {
+                    admittedAfterBlocking.increment();
+                    recordDepth();
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (policy.equals(POLICY_RESET)) {
+            reset(sock);
+        } else {
+            rejected503.increment();
+            refuse(sock, "503 Service Unavailable", ServerConfig.retryAfterSeconds);
+        }
+    }
+
+    // Keeps track of the deepest the queue has been.
+    private void recordDepth() {
+        int depth = queue.size();
+        if (depth > peakDepth) {
+            peakDepth = depth;
+        }
+    }
+
+    /**
+     * Closes a connection with a TCP reset.
+     * Precondition:
+     * Postcondition: socket is closed, client sees "connection reset".
+     */
+    private void reset(Socket sock) {
+        rejectedReset.increment();
+        try {
+            // Linger 0: close() drops the connection with RST instead of the FIN handshake.
+            sock.setSoLinger(true, 0);
+            sock.close();
+        } catch (IOException e) {
+            Log.error("Error resetting rejected connection! Message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Answers a connection with an empty error response and closes it, without reading the
+     * request (503 when the queue is full, 429 when the client is over its rate limit).
+     * @param status status line, e.g. "503 Service Unavailable".
+     * @param retryAfterSeconds value of the Retry-After header.
+     * Precondition: sock is in blocking mode.
+     * Postcondition: response has been sent (best effort), socket is closed.
+     */
+    public static void refuse(Socket sock, String status, long retryAfterSeconds) {
+        ResponseHeaderBuilder header = headerBuilder.get().reset();
+        header.append(ResponseHeaderBuilder.statusLine(status));
+        header.append(HttpDate.headerLine());
+        header.append(ResponseHeaderBuilder.SERVER);
+        header.append("Retry-After: ").append(retryAfterSeconds).append(ResponseHeaderBuilder.CRLF);
+        header.append(ResponseHeaderBuilder.CONNECTION_CLOSE);
+        header.append("Content-Length: 0").append(ResponseHeaderBuilder.CRLF);
+        header.append(ResponseHeaderBuilder.CRLF);
+
+        try {
+            // A fresh socket's send buffer is empty, so this small write doesn't block the accept loop.
+            OutputStream out = sock.getOutputStream();
+            out.write(header.array(), 0, header.length());
+            out.flush();
+            sock.shutdownOutput();
+
+            // Throw away request bytes that already arrived: closing with unread data sends
+            // a reset, which could make the client lose the response.
+            InputStream in = sock.getInputStream();
+            int available = in.available();
+            if (available > 0) {
+                in.skip(available);
+            }
+        } catch (IOException e) {
+            Log.error("Error answering rejected connection! Message: " + e.getMessage());
+        }
+
+        try {
+            sock.close();
+        } catch (IOException e) {
+            Log.error("Error closing socket! Message: " + e.getMessage());
+        }
+    }
+
+    public int depth() {
+        return queue.size();
+    }
+
+    public int peakDepth() {
+        return peakDepth;
+    }
+
+    public long admitted() {
+        return admitted.sum() + admittedAfterBlocking.sum();
+    }
+
+    public long rejected() {
+        return rejected503.sum() + rejectedReset.sum();
+    }
+
+    /**
+     * One line summary of the accept queue, for the console.
+     */
+    public String stats() {
+        return "Accept queue (" + queue.mode() + ", " + policy + "): depth=" + depth() + "/" + capacity + " peak=" + peakDepth
+                + " admitted=" + admitted() + " (after blocking=" + admittedAfterBlocking.sum() + ")"
+                + " rejected503=" + rejected503.sum() + " reset=" + rejectedReset.sum() + " steals=" + queue.steals();
+    }
+}
@@ -0,0 +1,298 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * BufferPool.java
+ *
+ * Pool of I/O buffers, so reading requests and assembling responses doesn't allocate a
+ * new buffer for every connection or response. Buffers come in size classes (powers of two
+ * from 4 KB to 1 MB). A thread that asked for it (worker and event loop threads) first uses
+ * a small cache of its own, which needs no synchronization; other buffers are kept in one
+ * shared list per size class, up to webserver.bufferPool.maxBytes. Bigger requests than the
+ * largest class are allocated and dropped as they are.
+ *
+ * DIRECT holds direct buffers (responses: the channel writes them without copying them
+ * first), HEAP holds buffers with an array (requests: the parser works on byte arrays).
+ *
+ * With webserver.bufferPool.leakDetection every buffer handed out is tracked: a buffer that
+ * gets garbage collected without being given back is reported with the stack trace of the
+ * code that took it, and giving one back twice is reported too. (Slow, meant for debugging.)
+ */
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class BufferPool {
+
+    // Smallest and biggest size class (log2).
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 20;
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+    // Bytes a thread cache may hold per size class (at least one buffer, at most 16).
+    private static final int THREAD_CACHE_BYTES = 64 * 1024;
+
+    public static final BufferPool DIRECT = new BufferPool("direct", true);
+    public static final BufferPool HEAP = new BufferPool("heap", false);
+
+    // Threads that keep buffers of their own (see cacheOnThisThread()).
+    private static final ThreadLocal<Boolean> cachingThread = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    private final String name;
+    private final boolean direct;
+    // Shared idle buffers, by size class.
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> shared = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>();
+    // Bytes in the shared lists.
+    private final AtomicLong idleBytes = new AtomicLong();
+    // Idle buffers of the current thread, by size class (null for threads that don't cache).
+    private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>();
+
+    // Counters (for <stats> and /metrics).
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder inUseBytes = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    // Leak detection: buffers handed out, by identity hash code, and the ones the GC found.
+    private final Map<Integer, List<Tracker>> tracked = new HashMap<Integer, List<Tracker>>();
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+
+    /**
+     * Idle buffers of one thread.
+     */
+    private static class ThreadCache {
+        final ByteBuffer[][] stacks = new ByteBuffer[CLASSES][];
+        final int[] counts = new int[CLASSES];
+
+        ThreadCache() {
+            for (int i = 0; i < CLASSES; i++) {
+                int size = 1 << (MIN_SHIFT + i);
+                stacks[i] = new ByteBuffer[Math.max(1, Math.min(16, THREAD_CACHE_BYTES / size))];
+            }
+        }
+    }
+
+    /**
+     * Buffer handed out while leak detection is on.
+     */
+    private static class Tracker extends WeakReference<ByteBuffer> {
+        final int hash;
+        final int capacity;
+        final Throwable acquiredAt;
+
+        Tracker(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.hash = System.identityHashCode(buffer);
+            this.capacity = buffer.capacity();
+            this.acquiredAt = new Throwable("Buffer acquired here");
+        }
+    }
+
+    // Constructor.
+    private BufferPool(String name, boolean direct) {
+        this.name = name;
+        this.direct = direct;
+        for (int i = 0; i < CLASSES; i++) {
+            shared.add(new ConcurrentLinkedQueue<ByteBuffer>());
+        }
+    }
+
+    /**
+     * Lets the current thread keep a few idle buffers of its own (of both pools). Meant for
+     * long-lived threads that handle many requests; threads that come and go (one per
+     * connection) shouldn't, their cached buffers would be lost with them.
+     */
+    public static void cacheOnThisThread() {
+        cachingThread.set(Boolean.TRUE);
+    }
+
+    /**
+     * Takes a buffer.
+     * @param minSize bytes the buffer must hold at least.
+     * Precondition:
+     * Postcondition: returns a cleared buffer with capacity >= minSize. It must be given
+     *                back with release() once nobody uses it any more.
+     */
+    public ByteBuffer acquire(int minSize) {
+        acquired.increment();
+        int sizeClass = sizeClass(minSize);
+
+        ByteBuffer buffer = null;
+        if (sizeClass != -1 && ServerConfig.bufferPoolMaxBytes > 0) {
+            ThreadCache cache = cache();
+            if (cache != null && cache.counts[sizeClass] > 0) {
+                int top = --cache.counts[sizeClass];
+                buffer = cache.stacks[sizeClass][top];
+                cache.stacks[sizeClass][top] = null;
+            } else {
+                buffer = shared.get(sizeClass).poll();
+                if (buffer != null) {
+                    idleBytes.addAndGet(-buffer.capacity());
+                }
+            }
+        }
+
+        if (buffer == null) {
+            allocated.increment();
+            int size = sizeClass == -1 ? minSize : 1 << (MIN_SHIFT + sizeClass);
+            buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        }
+        buffer.clear();
+        inUseBytes.add(buffer.capacity());
+
+        if (ServerConfig.bufferPoolLeakDetection) {
+            track(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back.
+     * @param buffer buffer from acquire() of this pool.
+     * Precondition: nobody uses the buffer any more (it will be handed out again).
+     * Postcondition: buffer is idle in the pool, or dropped if the pool is full.
+     */
+    public void release(ByteBuffer buffer) {
+        if (ServerConfig.bufferPoolLeakDetection && !untrack(buffer)) {
+            Log.warn("Buffer given back to the " + name + " pool twice (or not from it)!\n" + stackTrace(new Throwable("Given back here")));
+            return;
+        }
+        inUseBytes.add(-buffer.capacity());
+
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass == -1 || 1 << (MIN_SHIFT + sizeClass) != buffer.capacity() || ServerConfig.bufferPoolMaxBytes <= 0) {
+            // Not one of ours (odd size), or pooling is off.
+            return;
+        }
+
+        ThreadCache cache = cache();
+        if (cache != null && cache.counts[sizeClass] < cache.stacks[sizeClass].length) {
+            cache.stacks[sizeClass][cache.counts[sizeClass]++] = buffer;
+            return;
+        }
+        if (idleBytes.addAndGet(buffer.capacity()) <= ServerConfig.bufferPoolMaxBytes) {
+            shared.get(sizeClass).offer(buffer);
+        } else {
+            // Pool is full, let the GC have it.
+            idleBytes.addAndGet(-buffer.capacity());
+        }
+    }
+
+    // Size class of a request, -1 if it is bigger than the largest class.
+    private static int sizeClass(int size) {
+        if (size > 1 << MAX_SHIFT) {
+            return -1;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1 << MIN_SHIFT) - 1);
+        return shift - MIN_SHIFT;
+    }
+
+    // Cache of the current thread (null if it doesn't keep one).
+    private ThreadCache cache() {
+        ThreadCache cache = threadCache.get();
+        if (cache == null && cachingThread.get()) {
+            cache = new ThreadCache();
+            threadCache.set(cache);
+        }
+        return cache;
+    }
+
+    // Remembers who took a buffer, and reports the buffers the GC found unreleased.
+    private void track(ByteBuffer buffer) {
+        Tracker tracker = new Tracker(buffer, collected);
+        synchronized (tracked) {
+            tracked.computeIfAbsent(tracker.hash, k -> new ArrayList<Tracker>(1)).add(tracker);
+        }
+
+        Tracker lost;
+        while ((lost = (Tracker) collected.poll()) != null) {
+            boolean leaked;
+            synchronized (tracked) {
+                List<Tracker> list = tracked.get(lost.hash);
+                leaked = list != null && list.remove(lost);
+                if (list != null && list.isEmpty()) {
+                    tracked.remove(lost.hash);
+                }
+            }
+            if (leaked) {
+                leaks.increment();
+                inUseBytes.add(-lost.capacity);
+                Log.warn("Buffer of " + lost.capacity + " bytes was never given back to the " + name + " pool!\n"
+                        + stackTrace(lost.acquiredAt));
+            }
+        }
+    }
+
+    // Forgets a buffer that was given back. Returns false if it wasn't handed out.
+    private boolean untrack(ByteBuffer buffer) {
+        int hash = System.identityHashCode(buffer);
+        synchronized (tracked) {
+            List<Tracker> list = tracked.get(hash);
+            if (list == null) {
+                return false;
+            }
+            for (int i = 0; i < list.size(); i++) {
+                if (list.get(i).get() == buffer) {
+                    list.remove(i).clear();
+                    if (list.isEmpty()) {
+                        tracked.remove(hash);
+                    }
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String stackTrace(Throwable t) {
+        StringWriter out = new StringWriter();
+        t.printStackTrace(new PrintWriter(out));
+        return out.toString();
+    }
+
+    public String name() {
+        return name;
+    }
+
+    // Bytes handed out and not given back yet.
+    public long inUseBytes() {
+        return inUseBytes.sum();
+    }
+
+    // Bytes idle in the shared lists (thread caches not included).
+    public long idleBytes() {
+        return idleBytes.get();
+    }
+
+    public long acquired() {
+        return acquired.sum();
+    }
+
+    // Buffers that had to be allocated (the pool had none of the size).
+    public long allocated() {
+        return allocated.sum();
+    }
+
+    public long leaks() {
+        return leaks.sum();
+    }
+
+    /**
+     * One line summary of the pool, for the console.
+     */
+    public String stats() {
+        long taken = acquired();
+        long hitRate = taken == 0 ? 0 : 100 * (taken - allocated()) / taken;
+        return "Buffer pool (" + name + "): inUse=" + inUseBytes() / 1024 + "KB idle=" + idleBytes() / 1024 + "KB/"
+                + ServerConfig.bufferPoolMaxBytes / 1024 + "KB acquired=" + taken + " allocated=" + allocated()
+                + " hitRate=" + hitRate + "%" + (ServerConfig.bufferPoolLeakDetection ? " leaks=" + leaks() : "");
+    }
+}
@@ -0,0 +1,154 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * ByteRanges.java
+ *
+ * Parses the Range header of a request for part of a file (RFC 7233), e.g.
+ * "bytes=0-499", "bytes=500-" or "bytes=-500" (last 500 bytes), or several of them
+ * separated by commas. Overlapping or touching ranges are merged, so a client can't make
+ * the server send the same bytes many times over.
+ */
+import java.util.Arrays;
+
+public class ByteRanges {
+
+    // Most ranges served in one response. Longer lists are ignored (whole file is sent).
+    public static final int MAX_RANGES = 16;
+
+    // Stands for a Range header none of whose ranges overlap the file (416).
+    public static final long[] UNSATISFIABLE = new long[0];
+
+    // Not meant to be instantiated.
+    private ByteRanges() {
+    }
+
+    /**
+     * Parses a Range header.
+     * @param header value of the Range header.
+     * @param size size of the file.
+     * Precondition:
+     * Postcondition: returns {first0, last0, first1, last1, ...} (inclusive offsets, sorted,
+     *                merged, within the file), UNSATISFIABLE if no range overlaps the file,
+     *                or null if the header can't be used (bad syntax, not "bytes", too many
+     *                ranges): the whole file is sent then.
+     */
+    public static long[] parse(String header, long size) {
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+
+        String[] specs = value.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        long[] ranges = new long[specs.length * 2];
+        int count = 0;
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    // "-<suffix length>": the last bytes of the file.
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    first = Math.max(0, size - suffix);
+                    last = suffix == 0 ? -1 : size - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    if (first < 0) {
+                        return null;
+                    }
+                    if (dash == spec.length() - 1) {
+                        // "<first>-": to the end of the file (past it if first >= size).
+                        last = size - 1;
+                    } else {
+                        last = Long.parseLong(spec.substring(dash + 1));
+                        if (last < first) {
+                            return null;
+                        }
+                        last = Math.min(last, size - 1);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            // Ranges starting past the end (or empty suffixes) can't be served, skip them.
+            if (first < size && first <= last) {
+                ranges[count++] = first;
+                ranges[count++] = last;
+            }
+        }
+
+        if (count == 0) {
+            return UNSATISFIABLE;
+        }
+        return merge(ranges, count / 2);
+    }
+
+    /**
+     * Sorts ranges and merges the ones that overlap or touch.
+     * Precondition: ranges holds n {first, last} pairs.
+     * Postcondition: returns the merged pairs, sorted by first offset.
+     */
+    private static long[] merge(long[] ranges, int n) {
+        // Sort the pairs by their first offset (n is small, insertion sort).
+        for (int i = 1; i < n; i++) {
+            long first = ranges[2 * i];
+            long last = ranges[2 * i + 1];
+            int j = i - 1;
+            while (j >= 0 && ranges[2 * j] > first) {
+                ranges[2 * j + 2] = ranges[2 * j];
+                ranges[2 * j + 3] = ranges[2 * j + 1];
+                j--;
+            }
+            ranges[2 * j + 2] = first;
+            ranges[2 * j + 3] = last;
+        }
+
+        int out = 0;
+        for (int i = 1; i < n; i++) {
+            if (ranges[2 * i] <= ranges[2 * out + 1] + 1) {
+                ranges[2 * out + 1] = Math.max(ranges[2 * out + 1], ranges[2 * i + 1]);
+            } else {
+                out++;
+                ranges[2 * out] = ranges[2 * i];
+                ranges[2 * out + 1] = ranges[2 * i + 1];
+            }
+        }
+        return Arrays.copyOf(ranges, 2 * (out + 1));
+    }
+
+    /**
+     * Checks If-Range (RFC 7233 section 3.2): ranges are only served if the client's copy is
+     * still the current file, otherwise the whole file is sent.
+     * @param request parsed request.
+     * @param etag ETag of the file as it is.
+     * @param lastModified modification time of the file (milliseconds).
+     * Precondition:
+     * Postcondition: returns true if there is no If-Range or it names the current file.
+     */
+    public static boolean ifRangeMatches(HttpRequest request, String etag, long lastModified) {
+        String ifRange = request.header("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // Strong comparison: weak tags never match.
+            return ifRange.equals(etag);
+        }
+        long date = HttpDate.parse(ifRange);
+        return date != -1 && date / 1000 == lastModified / 1000;
+    }
+}
@@ -0,0 +1,252 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * ChunkedResponseStream.java
+ *
+ * Body of a response whose length isn't known when the header is sent. Bytes are
+ * collected in a small buffer and sent as one "Transfer-Encoding: chunked" chunk each time
+ * it fills up, so a handler can generate any amount of output in bounded memory.
+ * finish() sends the last (empty) chunk.
+ *
+ * HTTP/1.0 clients don't know chunked bodies: for them the bytes are passed through as
+ * they are and the end of the body is the end of the connection.
+ *
+ * If the response is compressed, bytes written here go through the ContentEncoding's
+ * encoder first and the chunks carry the compressed bytes.
+ *
+ * The chunk buffer (and the scratch buffer compressed responses are fed through) come from
+ * BufferPool.HEAP, close() gives them back.
+ */
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+public class ChunkedResponseStream extends ResponseStream {
+
+    // Largest chunk (the buffer size).
+    private static final int CHUNK_SIZE = 8192;
+    // Last chunk and end of the (empty) trailer section.
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    // Stream of the connection.
+    private final ResponseStream out;
+    // False for HTTP/1.0 clients (no framing, the connection gets closed after the body).
+    private final boolean chunked;
+
+    // Bytes of the next chunk (the array of a pooled buffer).
+    private ByteBuffer chunk = BufferPool.HEAP.acquire(CHUNK_SIZE);
+    private final byte[] buf = chunk.array();
+    private int count = 0;
+    // Size line of a chunk ("<hex>\r\n").
+    private final byte[] sizeLine = new byte[18];
+
+    // Compresses the body into the chunks (null if the body isn't compressed).
+    private final OutputStream encoder;
+    // Buffers and file bytes are copied through it on their way to the encoder (null without one).
+    private ByteBuffer scratch;
+
+    private boolean finished = false;
+
+    /**
+     * @param out stream the response header has just been written to.
+     * @param chunked true to frame the body in chunks (HTTP/1.1), false to send it as it is.
+     * @param encoding encoding named in the header's Content-Encoding (null for none).
+     */
+    public ChunkedResponseStream(ResponseStream out, boolean chunked, ContentEncoding encoding) throws IOException {
+        this.out = out;
+        this.chunked = chunked;
+        if (encoding == null) {
+            this.encoder = null;
+        } else {
+            this.scratch = BufferPool.HEAP.acquire(CHUNK_SIZE);
+            this.encoder = encoding.encoder(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    writeEncoded(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    writeEncoded(b, off, len);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (encoder != null) {
+            encoder.write(b);
+        } else {
+            writeEncoded(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (encoder != null) {
+            encoder.write(b, off, len);
+        } else {
+            writeEncoded(b, off, len);
+        }
+    }
+
+    // Adds one body byte (already compressed, if it is) to the chunks.
+    private void writeEncoded(int b) throws IOException {
+        if (count == CHUNK_SIZE) {
+            sendChunk();
+        }
+        buf[count++] = (byte) b;
+    }
+
+    // Adds body bytes (already compressed, if they are) to the chunks.
+    private void writeEncoded(byte[] b, int off, int len) throws IOException {
+        if (len > CHUNK_SIZE - count) {
+            sendChunk();
+            if (len >= CHUNK_SIZE) {
+                // Big enough to be a chunk on its own.
+                writeSizeLine(len);
+                out.write(b, off, len);
+                writeChunkEnd();
+                return;
+            }
+        }
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) throws IOException {
+        if (encoder != null) {
+            // Bytes have to pass through the encoder.
+            byte[] bytes = scratch.array();
+            while (buffer.hasRemaining()) {
+                int n = Math.min(buffer.remaining(), CHUNK_SIZE);
+                buffer.get(bytes, 0, n);
+                encoder.write(bytes, 0, n);
+            }
+            return;
+        }
+        sendChunk();
+        int len = buffer.remaining();
+        if (len > 0) {
+            writeSizeLine(len);
+            out.write(buffer);
+            writeChunkEnd();
+        }
+    }
+
+    @Override
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        if (encoder != null) {
+            // Bytes have to pass through the encoder.
+            try (FileChannel f = file) {
+                while (count > 0) {
+                    scratch.clear().limit((int) Math.min(CHUNK_SIZE, count));
+                    int n = f.read(scratch, position);
+                    if (n <= 0) {
+                        throw new IOException("File shrank while it was being sent.");
+                    }
+                    encoder.write(scratch.array(), 0, n);
+                    position += n;
+                    count -= n;
+                }
+            }
+            return;
+        }
+        sendChunk();
+        if (count > 0) {
+            writeSizeLine(count);
+            out.transferFrom(file, position, count);
+            writeChunkEnd();
+        } else {
+            file.close();
+        }
+    }
+
+    /**
+     * Sends the buffered bytes as a chunk (the connection stream still decides when they leave).
+     * Bytes still inside the encoder stay there.
+     */
+    @Override
+    public void flush() throws IOException {
+        sendChunk();
+        out.flush();
+    }
+
+    /**
+     * Ends the body.
+     * Precondition: handler is done writing.
+     * Postcondition: buffered bytes and the last chunk have been written to the connection
+     *                stream (not flushed, the worker does that once the request is done).
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (encoder != null) {
+            encoder.close();
+        }
+        sendChunk();
+        if (chunked) {
+            out.write(LAST_CHUNK, 0, LAST_CHUNK.length);
+        }
+    }
+
+    /**
+     * Gives the buffers back to the pool. Doesn't end the body (that's finish()) and leaves
+     * the connection stream open.
+     * Precondition: handler is done with the stream (finished, or gave up after an error).
+     * Postcondition: stream can't be used any more.
+     */
+    @Override
+    public void close() {
+        if (chunk != null) {
+            BufferPool.HEAP.release(chunk);
+            chunk = null;
+        }
+        if (scratch != null) {
+            BufferPool.HEAP.release(scratch);
+            scratch = null;
+        }
+    }
+
+    // Sends the buffered bytes as one chunk.
+    private void sendChunk() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        writeSizeLine(count);
+        out.write(buf, 0, count);
+        writeChunkEnd();
+        count = 0;
+    }
+
+    // "<size in hex>\r\n"
+    private void writeSizeLine(long size) throws IOException {
+        if (!chunked) {
+            return;
+        }
+        int i = sizeLine.length - 2;
+        sizeLine[i] = '\r';
+        sizeLine[i + 1] = '\n';
+        do {
+            sizeLine[--i] = HEX_DIGITS[(int) (size & 0xf)];
+            size >>>= 4;
+        } while (size != 0);
+        out.write(sizeLine, i, sizeLine.length - i);
+    }
+
+    // CRLF after the data of a chunk.
+    private void writeChunkEnd() throws IOException {
+        if (chunked) {
+            out.write(CRLF, 0, CRLF.length);
+        }
+    }
+}
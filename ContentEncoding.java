@@ -0,0 +1,217 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * ContentEncoding.java
+ *
+ * A Content-Encoding the server can compress responses with, and the list of encodings
+ * picked from the client's Accept-Encoding header. gzip is built in. Other encodings
+ * (e.g. a Brotli library) plug in by naming a subclass with a no-argument constructor in
+ * webserver.compression.encodings, for example "br=org.example.BrotliEncoding,gzip".
+ */
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public abstract class ContentEncoding {
+
+    // Encodings in the server's order of preference (used when the client likes several equally).
+    private static final List<ContentEncoding> ENCODINGS = load(ServerConfig.compressionEncodings);
+
+    // Sent with every response that could have been compressed, so caches keep the variants apart.
+    public static final List<String> VARY_HEADERS =
+            Collections.unmodifiableList(Arrays.asList("Vary: Accept-Encoding"));
+
+    // Index in ENCODINGS (variants of cached files are stored by it).
+    private int id;
+    // Extra header lines of a response compressed with this encoding.
+    private List<String> headers;
+
+    /**
+     * Token of the encoding in Accept-Encoding and Content-Encoding, e.g. "gzip".
+     */
+    public abstract String name();
+
+    /**
+     * Starts compressing a body.
+     * @param out stream the compressed bytes go to.
+     * Precondition:
+     * Postcondition: returns a stream the plain bytes are written to. Its close() writes the
+     *                end of the compressed body and frees what the encoder holds, but doesn't
+     *                close out.
+     */
+    public abstract OutputStream encoder(OutputStream out) throws IOException;
+
+    /**
+     * Compresses a whole body at once.
+     * @param b array holding the body.
+     * @param off first byte of the body.
+     * @param len number of bytes.
+     * @param out stream the compressed bytes are appended to.
+     */
+    public void encode(byte[] b, int off, int len, OutputStream out) throws IOException {
+        OutputStream encoder = encoder(out);
+        encoder.write(b, off, len);
+        encoder.close();
+    }
+
+    /**
+     * Compresses a whole body into a new array (used for cached variants).
+     */
+    public byte[] encode(byte[] b, int off, int len) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(len / 2 + 64);
+        encode(b, off, len, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Index of the encoding among the enabled ones.
+     */
+    public int id() {
+        return id;
+    }
+
+    /**
+     * Content-Encoding and Vary header lines of a response compressed with this encoding.
+     */
+    public List<String> headers() {
+        return headers;
+    }
+
+    /**
+     * Number of enabled encodings.
+     */
+    public static int count() {
+        return ENCODINGS.size();
+    }
+
+    /**
+     * Builds the list of enabled encodings from webserver.compression.encodings.
+     * @param config comma separated list of "gzip" or "<token>=<class name>".
+     * Precondition:
+     * Postcondition: returns the encodings that could be set up, in the same order.
+     */
+    private static List<ContentEncoding> load(String config) {
+        List<ContentEncoding> encodings = new ArrayList<ContentEncoding>();
+        for (String item : config.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+
+            ContentEncoding encoding = null;
+            if (item.equals("gzip")) {
+                encoding = new GzipEncoding(ServerConfig.compressionLevel);
+            } else if (item.indexOf('=') > 0) {
+                String className = item.substring(item.indexOf('=') + 1).trim();
+                try {
+                    encoding = (ContentEncoding) Class.forName(className).getDeclaredConstructor().newInstance();
+                } catch (ReflectiveOperationException | ClassCastException | LinkageError e) {
+                    Log.warn("Can't load content encoding " + className + "! Message: " + e);
+                }
+            } else {
+                Log.warn("Unknown content encoding: " + item);
+            }
+
+            if (encoding != null) {
+                encoding.id = encodings.size();
+                encoding.headers = Collections.unmodifiableList(Arrays.asList(
+                        "Content-Encoding: " + encoding.name(), "Vary: Accept-Encoding"));
+                encodings.add(encoding);
+            }
+        }
+        return Collections.unmodifiableList(encodings);
+    }
+
+    /**
+     * Picks the encoding of a response from the request's Accept-Encoding header
+     * (q-values are honored, "*" stands for any encoding not listed, q=0 rules one out).
+     * @param request parsed request.
+     * Precondition:
+     * Postcondition: returns the encoding to use, or null to send the body as it is.
+     */
+    public static ContentEncoding negotiate(HttpRequest request) {
+        if (!ServerConfig.compression || ENCODINGS.isEmpty()) {
+            return null;
+        }
+        String accept = request.header("Accept-Encoding");
+        if (accept == null) {
+            return null;
+        }
+
+        ContentEncoding best = null;
+        double bestQ = 0;
+        for (ContentEncoding encoding : ENCODINGS) {
+            double q = quality(accept, encoding.name());
+            // Earlier encodings win ties (server preference).
+            if (q > bestQ) {
+                best = encoding;
+                bestQ = q;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * q-value an Accept-Encoding header gives an encoding.
+     * Precondition:
+     * Postcondition: returns 0 if the encoding isn't acceptable.
+     */
+    static double quality(String accept, String name) {
+        double wildcard = 0;
+        int pos = 0;
+        while (pos < accept.length()) {
+            int end = accept.indexOf(',', pos);
+            if (end == -1) {
+                end = accept.length();
+            }
+
+            // "<coding>[;q=<value>]"
+            int semicolon = accept.indexOf(';', pos);
+            int tokenEnd = semicolon != -1 && semicolon < end ? semicolon : end;
+            String token = accept.substring(pos, tokenEnd).trim();
+            double q = 1;
+            if (tokenEnd < end) {
+                String parameter = accept.substring(tokenEnd + 1, end).trim();
+                if (parameter.length() > 2 && (parameter.charAt(0) | 0x20) == 'q' && parameter.charAt(1) == '=') {
+                    try {
+                        q = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+
+            if (token.equalsIgnoreCase(name)) {
+                return q;
+            }
+            if (token.equals("*")) {
+                wildcard = q;
+            }
+            pos = end + 1;
+        }
+        return wildcard;
+    }
+
+    /**
+     * Whether a Content-Type is worth compressing (text, not images or archives).
+     */
+    public static boolean isCompressible(String contentType) {
+        return contentType.startsWith("text/") || contentType.startsWith("application/json")
+                || contentType.startsWith("application/xml") || contentType.startsWith("application/javascript")
+                || contentType.startsWith("image/svg+xml") || contentType.startsWith("application/wasm");
+    }
+
+    /**
+     * Whether a response with this Content-Type and length should be compressed.
+     * @param length body length, -1 if not known up front.
+     */
+    public static boolean worthCompressing(String contentType, long length) {
+        return ServerConfig.compression && (length < 0 || length >= ServerConfig.compressionMinBytes)
+                && isCompressible(contentType);
+    }
+}
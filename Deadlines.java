@@ -0,0 +1,106 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * Deadlines.java
+ *
+ * Deadlines of a connection, one at a time depending on what it is waiting for:
+ *   IDLE:   the first byte of the next request (webserver.keepAlive.timeoutMillis), closed.
+ *   HEADER: the rest of the request line and headers (webserver.timeout.headerMillis), 408.
+ *   BODY:   the rest of the body (webserver.timeout.bodyMillis), 408.
+ *   WRITE:  the client taking the response; passes when one write makes no progress for
+ *           webserver.timeout.writeMillis, closed (the response is already on its way).
+ * HEADER and BODY count from the start of the phase, not from the last byte, so a client
+ * trickling a byte at a time (slowloris) can't hold a connection open.
+ *
+ * The NIO event loops keep their connections' deadlines on a TimingWheel of their own.
+ * The blocking engines' workers are spread over a few shared wheels (shared(), one per
+ * core) so they don't all wait for the same lock, driven by one clock thread.
+ */
+public class Deadlines {
+
+    // Phases (also the order a request goes through them).
+    public static final int IDLE = 0;
+    public static final int HEADER = 1;
+    public static final int BODY = 2;
+    public static final int WRITE = 3;
+
+    // Names of the phases (logs and metrics).
+    private static final String[] NAMES = {"idle", "header", "body", "write"};
+
+    // Precision of the deadlines, and slots of the wheels (one turn: 51.2 seconds).
+    public static final long TICK_MILLIS = 100;
+    public static final int WHEEL_SLOTS = 512;
+
+    // Not meant to be instantiated.
+    private Deadlines() {
+    }
+
+    /**
+     * Wheels of the blocking engines (created, with their clock thread, the first time one is needed).
+     */
+    private static class Shared {
+        static final TimingWheel[] WHEELS = startClock(Runtime.getRuntime().availableProcessors());
+
+        private static TimingWheel[] startClock(int count) {
+            TimingWheel[] wheels = new TimingWheel[count];
+            for (int i = 0; i < count; i++) {
+                wheels[i] = new TimingWheel(TICK_MILLIS, WHEEL_SLOTS);
+            }
+            Thread clock = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(TICK_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long now = System.nanoTime();
+                    for (TimingWheel wheel : wheels) {
+                        wheel.expire(now);
+                    }
+                }
+            }, "connection-deadlines");
+            // Nothing to wait for once the workers are gone.
+            clock.setDaemon(true);
+            clock.start();
+            return wheels;
+        }
+    }
+
+    /**
+     * Wheel a worker of the blocking engines keeps its deadlines on. Expired deadlines run on
+     * the shared clock thread.
+     * @param workerNumber number of the worker (workers are spread over the wheels by it).
+     */
+    public static TimingWheel shared(int workerNumber) {
+        TimingWheel[] wheels = Shared.WHEELS;
+        return wheels[Math.floorMod(workerNumber, wheels.length)];
+    }
+
+    /**
+     * Length of a phase's deadline.
+     * Precondition: phase is IDLE, HEADER, BODY or WRITE.
+     * Postcondition: returns milliseconds, 0 or less if the phase has no deadline.
+     */
+    public static long millis(int phase) {
+        switch (phase) {
+            case IDLE:
+                return ServerConfig.keepAliveTimeoutMillis;
+            case HEADER:
+                return ServerConfig.headerTimeoutMillis;
+            case BODY:
+                return ServerConfig.bodyTimeoutMillis;
+            default:
+                return ServerConfig.writeTimeoutMillis;
+        }
+    }
+
+    public static String name(int phase) {
+        return NAMES[phase];
+    }
+
+    // Number of phases.
+    public static int count() {
+        return NAMES.length;
+    }
+}
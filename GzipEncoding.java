@@ -0,0 +1,131 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * GzipEncoding.java
+ *
+ * gzip Content-Encoding (RFC 1952). The gzip header and trailer are written here around a
+ * raw Deflater, which (unlike GZIPOutputStream) lets the Deflater, its output buffer and
+ * the CRC be pooled: compressing a response allocates nothing once the pool is warm.
+ */
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+public class GzipEncoding extends ContentEncoding {
+
+    // gzip header: magic, deflate, no flags, no time, no extra flags, unknown OS.
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    // Idle compressors, at most two per core are kept (more are ended when given back).
+    private final ArrayBlockingQueue<Compressor> pool =
+            new ArrayBlockingQueue<Compressor>(2 * Runtime.getRuntime().availableProcessors());
+    // Compression level (1 fastest .. 9 smallest).
+    private final int level;
+
+    // Constructor.
+    public GzipEncoding(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public String name() {
+        return "gzip";
+    }
+
+    @Override
+    public OutputStream encoder(OutputStream out) throws IOException {
+        Compressor compressor = pool.poll();
+        if (compressor == null) {
+            compressor = new Compressor(level);
+        }
+        compressor.start(out);
+        return compressor;
+    }
+
+    // Gives a compressor back once its body is done.
+    private void release(Compressor compressor) {
+        compressor.out = null;
+        compressor.deflater.reset();
+        compressor.crc.reset();
+        if (!pool.offer(compressor)) {
+            compressor.deflater.end();
+        }
+    }
+
+    /**
+     * Deflater with its output buffer and CRC, writing one gzip body at a time.
+     */
+    private final class Compressor extends OutputStream {
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private final byte[] buf = new byte[8192];
+        private final byte[] single = new byte[1];
+        private final byte[] trailer = new byte[8];
+        private OutputStream out;
+
+        Compressor(int level) {
+            // Raw deflate, the gzip framing is written by hand.
+            deflater = new Deflater(level, true);
+        }
+
+        void start(OutputStream out) throws IOException {
+            this.out = out;
+            out.write(HEADER, 0, HEADER.length);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            crc.update(b, off, len);
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                drain();
+            }
+        }
+
+        /**
+         * Ends the gzip body (trailer: CRC-32 and length, little endian) and returns the
+         * compressor to the pool.
+         */
+        @Override
+        public void close() throws IOException {
+            if (out == null) {
+                return;
+            }
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    drain();
+                }
+                int sum = (int) crc.getValue();
+                int size = (int) deflater.getBytesRead();
+                for (int i = 0; i < 4; i++) {
+                    trailer[i] = (byte) (sum >> (8 * i));
+                    trailer[4 + i] = (byte) (size >> (8 * i));
+                }
+                out.write(trailer, 0, trailer.length);
+            } finally {
+                release(this);
+            }
+        }
+
+        // Writes what the deflater has ready.
+        private void drain() throws IOException {
+            int n = deflater.deflate(buf);
+            if (n > 0) {
+                out.write(buf, 0, n);
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * HttpCaching.java
+ *
+ * Caching headers of static files: validators (strong ETag and Last-Modified), conditional
+ * requests (If-None-Match / If-Modified-Since answered with 304 Not Modified) and the
+ * Cache-Control policy, picked per path from ServerConfig.cacheControl.
+ *
+ * The ETag is made from the file's modification time and size (like most servers do), plus
+ * the Content-Encoding for compressed variants, since every representation needs its own.
+ */
+import java.util.ArrayList;
+import java.util.List;
+
+public class HttpCaching {
+
+    /**
+     * Cache-Control value for the paths starting with a prefix.
+     */
+    private static class Rule {
+        final String prefix;
+        final String headerLine;
+
+        Rule(String prefix, String value) {
+            this.prefix = prefix;
+            this.headerLine = "Cache-Control: " + value;
+        }
+    }
+
+    // Cache-Control rules, longest prefix first (the first one that matches wins).
+    private static final List<Rule> RULES = parseRules(ServerConfig.cacheControl);
+
+    // Not meant to be instantiated.
+    private HttpCaching() {
+    }
+
+    /**
+     * Reads the Cache-Control policy.
+     * @param config rules separated by ';', each "<path prefix>=<Cache-Control value>",
+     *               e.g. "/=no-cache;/images/=public, max-age=86400".
+     * Precondition:
+     * Postcondition: returns the rules sorted by prefix length, longest first.
+     */
+    private static List<Rule> parseRules(String config) {
+        List<Rule> rules = new ArrayList<Rule>();
+        for (String item : config.split(";")) {
+            int eq = item.indexOf('=');
+            if (eq <= 0) {
+                if (!item.trim().isEmpty()) {
+                    Log.warn("Bad Cache-Control rule (want <path prefix>=<value>): " + item);
+                }
+                continue;
+            }
+            String value = item.substring(eq + 1).trim();
+            if (!value.isEmpty()) {
+                rules.add(new Rule(item.substring(0, eq).trim(), value));
+            }
+        }
+        rules.sort((a, b) -> b.prefix.length() - a.prefix.length());
+        return rules;
+    }
+
+    /**
+     * Cache-Control header line of a path.
+     * @param path decoded request path, e.g. "/index.html".
+     * Precondition:
+     * Postcondition: returns "Cache-Control: <value>" of the longest matching prefix, or
+     *                null if no rule matches.
+     */
+    public static String cacheControl(String path) {
+        for (Rule rule : RULES) {
+            if (path.startsWith(rule.prefix)) {
+                return rule.headerLine;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Strong ETag of a file.
+     * @param lastModified modification time of the file (milliseconds).
+     * @param size size of the file.
+     * @param encoding encoding of the representation (null for the file as it is).
+     * Precondition:
+     * Postcondition: returns the quoted entity tag.
+     */
+    public static String etag(long lastModified, long size, ContentEncoding encoding) {
+        String tag = '"' + Long.toHexString(lastModified) + '-' + Long.toHexString(size);
+        return encoding == null ? tag + '"' : tag + '-' + encoding.name() + '"';
+    }
+
+    /**
+     * Checks the conditional headers of a GET (RFC 7232 section 6: If-None-Match is
+     * looked at first, If-Modified-Since only when there is no If-None-Match).
+     * @param request parsed request.
+     * @param etag ETag of the representation that would be sent.
+     * @param lastModified modification time of the file (milliseconds).
+     * Precondition:
+     * Postcondition: returns true if the client's copy is current (answer 304 Not Modified).
+     */
+    public static boolean notModified(HttpRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.header("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matches(ifNoneMatch, etag);
+        }
+
+        String ifModifiedSince = request.header("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            long since = HttpDate.parse(ifModifiedSince);
+            // HTTP dates have whole seconds.
+            return since != -1 && lastModified / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    /**
+     * Weak comparison of an If-None-Match list with an ETag ("W/" prefixes are ignored).
+     * Precondition:
+     * Postcondition: returns true if the list is "*" or holds the tag.
+     */
+    static boolean matches(String list, String etag) {
+        int pos = 0;
+        while (pos < list.length()) {
+            int end = list.indexOf(',', pos);
+            if (end == -1) {
+                end = list.length();
+            }
+            String tag = list.substring(pos, end).trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+            pos = end + 1;
+        }
+        return false;
+    }
+}
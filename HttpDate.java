@@ -0,0 +1,81 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * HttpDate.java
+ *
+ * Shared clock for the Date response header. Formatting a date is slow, so the
+ * RFC 7231 date (e.g. "Sun, 06 Nov 1994 08:49:37 GMT") is formatted at most once per
+ * second and every response reuses the encoded "Date: ...\r\n" line.
+ */
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+public class HttpDate {
+
+    // IMF-fixdate format of RFC 7231 (always two digit day, always GMT).
+    public static final DateTimeFormatter FORMAT =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    // Current "Date: ...\r\n" line and the second it was made for.
+    // Both live in one object so readers never see a mismatched pair.
+    private static volatile Cached cached = new Cached(-1, null);
+
+    // Not meant to be instantiated.
+    private HttpDate() {
+    }
+
+    private static class Cached {
+        final long second;
+        final byte[] headerLine;
+
+        Cached(long second, byte[] headerLine) {
+            this.second = second;
+            this.headerLine = headerLine;
+        }
+    }
+
+    /**
+     * Date header line for a response sent now.
+     * Precondition:
+     * Postcondition: returns "Date: <now>\r\n" encoded, shared (don't modify it).
+     */
+    public static byte[] headerLine() {
+        long second = System.currentTimeMillis() / 1000;
+        Cached current = cached;
+        if (current.second != second) {
+            // Several threads may do this at the turn of a second, they all produce the same line.
+            String line = "Date: " + FORMAT.format(Instant.ofEpochSecond(second)) + "\r\n";
+            current = new Cached(second, line.getBytes(StandardCharsets.US_ASCII));
+            cached = current;
+        }
+        return current.headerLine;
+    }
+
+    /**
+     * Parses a date sent by a client (e.g. If-Modified-Since). RFC 7231 wants IMF-fixdate;
+     * RFC 1123 dates with a one digit day are taken too.
+     * @param value header value.
+     * Precondition:
+     * Postcondition: returns milliseconds since the epoch, or -1 if the date can't be read.
+     */
+    public static long parse(String value) {
+        try {
+            return Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME.parse(value.trim())).toEpochMilli();
+        } catch (DateTimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Formats a time (e.g. a file's modification time) as an RFC 7231 date.
+     * @param millis milliseconds since the epoch.
+     */
+    public static String format(long millis) {
+        return FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+}
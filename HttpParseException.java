@@ -0,0 +1,27 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * HttpParseException.java
+ *
+ * Thrown by HttpRequestParser when a request is malformed or too big. Carries the
+ * status line the server answers with before closing the connection.
+ */
+public class HttpParseException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    // Status code and reason, e.g. "400 Bad Request".
+    private final String status;
+
+    // Constructor.
+    public HttpParseException(String status) {
+        // No stack trace, a bad request from a client is nothing exceptional for us.
+        super(status, null, false, false);
+        this.status = status;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,336 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * HttpRequest.java
+ *
+ * Request parsed by HttpRequestParser. Doesn't copy the request: it keeps offsets into the
+ * connection's read buffer and only turns the parts a handler asks for into Strings.
+ * One object is reused for every request of a connection, so it's only valid until the
+ * next request is parsed.
+ */
+import java.nio.charset.StandardCharsets;
+
+public class HttpRequest {
+
+    // Methods we know, returned without allocating a String.
+    private static final String[] KNOWN_METHODS = {"GET", "POST", "DELETE", "HEAD", "PUT", "OPTIONS", "PATCH", "TRACE", "CONNECT"};
+
+    // Buffer holding the request, and where the request starts in it.
+    // All offsets below are relative to base.
+    byte[] buf;
+    int base;
+
+    // Request line.
+    int methodEnd;
+    int uriStart;
+    int uriEnd;
+    // Offset of the '?' starting the query string (-1 if there is none).
+    int queryStart;
+    int versionStart;
+    int versionEnd;
+    boolean http11;
+
+    // Headers (offsets of name and value of each one).
+    int headerCount;
+    final int[] nameStart;
+    final int[] nameEnd;
+    final int[] valueStart;
+    final int[] valueEnd;
+
+    // Length of request line + headers + blank line.
+    int headLength;
+    // Content-Length (-1 if none was sent).
+    long contentLength;
+    // True if the body came with "Transfer-Encoding: chunked" (decoded in place by the parser).
+    boolean chunked;
+    // Body (offset relative to base) and its length.
+    int bodyStart;
+    int bodyLength;
+
+    // URI and path as Strings, made on first use.
+    private String uri;
+    private String path;
+
+    // Constructor.
+    public HttpRequest(int maxHeaderCount) {
+        nameStart = new int[maxHeaderCount];
+        nameEnd = new int[maxHeaderCount];
+        valueStart = new int[maxHeaderCount];
+        valueEnd = new int[maxHeaderCount];
+    }
+
+    /**
+     * Forgets the previous request (called by the parser before a new one).
+     */
+    void reset(byte[] buf, int base) {
+        this.buf = buf;
+        this.base = base;
+        headerCount = 0;
+        contentLength = -1;
+        chunked = false;
+        bodyStart = 0;
+        bodyLength = 0;
+        headLength = 0;
+        http11 = false;
+        queryStart = -1;
+        uri = null;
+        path = null;
+    }
+
+    /**
+     * Request method.
+     * Precondition: request has been parsed.
+     * Postcondition: returns the method (no allocation for the standard ones).
+     */
+    public String method() {
+        int index = methodIndex();
+        if (index != -1) {
+            return KNOWN_METHODS[index];
+        }
+        return new String(buf, base, methodEnd, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Request URI (path and query string), exactly as sent.
+     */
+    public String uri() {
+        if (uri == null) {
+            uri = new String(buf, base + uriStart, uriEnd - uriStart, StandardCharsets.ISO_8859_1);
+        }
+        return uri;
+    }
+
+    /**
+     * Path part of the URI (without the query string).
+     */
+    public String path() {
+        if (path == null) {
+            path = new String(buf, base + uriStart, pathEnd() - uriStart, StandardCharsets.ISO_8859_1);
+        }
+        return path;
+    }
+
+    /**
+     * Query string of the URI (without the '?'), null if there is none.
+     */
+    public String query() {
+        if (queryStart == -1) {
+            return null;
+        }
+        return new String(buf, base + queryStart + 1, uriEnd - queryStart - 1, StandardCharsets.ISO_8859_1);
+    }
+
+    // Path bytes are pathArray()[pathOffset(), pathOffset() + pathLength()) (used by Router, no allocation).
+    public byte[] pathArray() {
+        return buf;
+    }
+
+    public int pathOffset() {
+        return base + uriStart;
+    }
+
+    public int pathLength() {
+        return pathEnd() - uriStart;
+    }
+
+    // Offset (relative to base) one past the last byte of the path.
+    private int pathEnd() {
+        return queryStart == -1 ? uriEnd : queryStart;
+    }
+
+    /**
+     * Index of the method in the list of known methods (see methodName()), -1 if unknown.
+     * Lets the router look handlers up in an array.
+     */
+    public int methodIndex() {
+        for (int i = 0; i < KNOWN_METHODS.length; i++) {
+            String known = KNOWN_METHODS[i];
+            if (known.length() == methodEnd && regionEquals(0, methodEnd, known, false)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Number of known methods (size of arrays indexed by methodIndex()).
+     */
+    public static int knownMethodCount() {
+        return KNOWN_METHODS.length;
+    }
+
+    /**
+     * Index of a known method name, -1 if it isn't one.
+     */
+    public static int knownMethodIndex(String method) {
+        for (int i = 0; i < KNOWN_METHODS.length; i++) {
+            if (KNOWN_METHODS[i].equals(method)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Name of a known method by index.
+     */
+    public static String methodName(int index) {
+        return KNOWN_METHODS[index];
+    }
+
+    /**
+     * HTTP version, e.g. "HTTP/1.1".
+     */
+    public String version() {
+        return new String(buf, base + versionStart, versionEnd - versionStart, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * True for HTTP/1.1 requests, false for HTTP/1.0.
+     */
+    public boolean isHttp11() {
+        return http11;
+    }
+
+    /**
+     * First line of the request (for logging).
+     */
+    public String requestLine() {
+        return new String(buf, base, versionEnd, StandardCharsets.ISO_8859_1);
+    }
+
+    public int headerCount() {
+        return headerCount;
+    }
+
+    public String headerName(int index) {
+        return new String(buf, base + nameStart[index], nameEnd[index] - nameStart[index], StandardCharsets.ISO_8859_1);
+    }
+
+    public String headerValue(int index) {
+        return new String(buf, base + valueStart[index], valueEnd[index] - valueStart[index], StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Finds a header by name, ignoring case.
+     * @param name header name, e.g. "Content-Type".
+     * Precondition:
+     * Postcondition: returns the index of the first header with that name, -1 if there is none.
+     */
+    public int findHeader(String name) {
+        for (int i = 0; i < headerCount; i++) {
+            if (nameEnd[i] - nameStart[i] == name.length() && regionEquals(nameStart[i], nameEnd[i], name, true)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Value of a header, ignoring the case of the name.
+     * Precondition:
+     * Postcondition: returns the value of the first header with that name, null if there is none.
+     */
+    public String header(String name) {
+        int index = findHeader(name);
+        return index == -1 ? null : headerValue(index);
+    }
+
+    /**
+     * Checks if a comma separated header (e.g. Connection) lists a token, ignoring case.
+     * @param name header name.
+     * @param token token to look for, e.g. "close".
+     * Precondition:
+     * Postcondition: returns true if any header with that name contains the token. Doesn't allocate.
+     */
+    public boolean headerHasToken(String name, String token) {
+        for (int i = 0; i < headerCount; i++) {
+            if (nameEnd[i] - nameStart[i] != name.length() || !regionEquals(nameStart[i], nameEnd[i], name, true)) {
+                continue;
+            }
+
+            // Walk the comma separated list.
+            int pos = valueStart[i];
+            while (pos < valueEnd[i]) {
+                while (pos < valueEnd[i] && (buf[base + pos] == ' ' || buf[base + pos] == '\t' || buf[base + pos] == ',')) {
+                    pos++;
+                }
+                int tokenStart = pos;
+                while (pos < valueEnd[i] && buf[base + pos] != ',') {
+                    pos++;
+                }
+                int tokenEnd = pos;
+                while (tokenEnd > tokenStart && (buf[base + tokenEnd - 1] == ' ' || buf[base + tokenEnd - 1] == '\t')) {
+                    tokenEnd--;
+                }
+                if (tokenEnd - tokenStart == token.length() && regionEquals(tokenStart, tokenEnd, token, true)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Content-Length of the request (-1 if it has none).
+     */
+    public long contentLength() {
+        return contentLength;
+    }
+
+    /**
+     * True if the body was sent in chunks (bodyLength() is its decoded length).
+     */
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * True if the request came with a body.
+     */
+    public boolean hasBody() {
+        return contentLength >= 0 || chunked;
+    }
+
+    // Body bytes (decoded if they were chunked) are buf[bodyOffset(), bodyOffset() + bodyLength()).
+    public byte[] bodyArray() {
+        return buf;
+    }
+
+    public int bodyOffset() {
+        return base + bodyStart;
+    }
+
+    public int bodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Body decoded as UTF-8 (allocates, meant for small bodies).
+     */
+    public String bodyAsString() {
+        return new String(buf, base + bodyStart, bodyLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compares part of the request with an ASCII string.
+     * @param from offset (relative to base) of the first byte.
+     * @param to offset (relative to base) one past the last byte.
+     * @param ignoreCase compare ASCII letters without case.
+     * Precondition: to - from == s.length().
+     * Postcondition: returns true if the bytes spell s.
+     */
+    private boolean regionEquals(int from, int to, String s, boolean ignoreCase) {
+        for (int i = from; i < to; i++) {
+            int a = buf[base + i];
+            int b = s.charAt(i - from);
+            if (a != b) {
+                if (!ignoreCase || (a | 0x20) != (b | 0x20) || (a | 0x20) < 'a' || (a | 0x20) > 'z') {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
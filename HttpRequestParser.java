@@ -0,0 +1,587 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * HttpRequestParser.java
+ *
+ * Incremental HTTP/1.x request parser working on raw bytes. It can be called again and
+ * again as more bytes arrive (partial reads) and picks up where it stopped. It stops right
+ * after one request, so bytes of a pipelined next request stay in the buffer. Parsing only
+ * records offsets in an HttpRequest, nothing is allocated per request.
+ *
+ * Chunked bodies (Transfer-Encoding: chunked) are decoded in place: the data of every chunk
+ * is moved down to follow the previous one, so the handler sees one contiguous body right
+ * after the head, and the request still takes only its raw bytes in the buffer.
+ *
+ * A request is only complete once its whole body is in the buffer: bodies aren't streamed
+ * to handlers, they are read in full first. That's why every engine caps a request (head and
+ * body) at webserver.maxRequestBytes and answers 413 beyond it.
+ */
+import java.util.Arrays;
+
+public class HttpRequestParser {
+
+    // Returned by parse() while the request isn't complete.
+    public static final int INCOMPLETE = -1;
+
+    // Parser states.
+    private static final int METHOD = 0;
+    private static final int URI = 1;
+    private static final int VERSION = 2;
+    private static final int REQUEST_LINE_LF = 3;
+    private static final int HEADER_LINE_START = 4;
+    private static final int HEADER_NAME = 5;
+    private static final int HEADER_VALUE_START = 6;
+    private static final int HEADER_VALUE = 7;
+    private static final int HEADER_LF = 8;
+    private static final int HEAD_END_LF = 9;
+    private static final int BODY = 10;
+
+    // Chunked body states (after BODY the head is done and chunks are decoded).
+    private static final int CHUNK_SIZE = 11;
+    private static final int CHUNK_EXTENSION = 12;
+    private static final int CHUNK_SIZE_LF = 13;
+    private static final int CHUNK_DATA = 14;
+    private static final int CHUNK_DATA_CR = 15;
+    private static final int CHUNK_DATA_LF = 16;
+    private static final int TRAILER_LINE_START = 17;
+    private static final int TRAILER_LINE = 18;
+    private static final int TRAILER_LF = 19;
+    private static final int TRAILER_END_LF = 20;
+    private static final int CHUNKED_DONE = 21;
+
+    // Hex digits of a chunk size (-1 for other bytes).
+    private static final int[] HEX_VALUES = new int[128];
+
+    // Token characters allowed in methods and header names (RFC 7230 tchar).
+    private static final boolean[] TOKEN_CHARS = new boolean[128];
+
+    static {
+        for (char c = '0'; c <= '9'; c++) {
+            TOKEN_CHARS[c] = true;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            TOKEN_CHARS[c] = true;
+            TOKEN_CHARS[c - 32] = true;
+        }
+        for (char c : "!#$%&'*+-.^_`|~".toCharArray()) {
+            TOKEN_CHARS[c] = true;
+        }
+
+        Arrays.fill(HEX_VALUES, -1);
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = 10 + i;
+            HEX_VALUES['A' + i] = 10 + i;
+        }
+    }
+
+    // Request being filled in.
+    private final HttpRequest request;
+    // Limits.
+    private final int maxHeaderBytes;
+    private final int maxHeaderCount;
+    private final int maxRequestBytes;
+
+    // Where parsing stopped (relative to the start of the request) and in which state.
+    private int state;
+    private int pos;
+    // Offsets of the header line being parsed.
+    private int currentNameStart;
+    private int currentNameEnd;
+    private int currentValueStart;
+    // Blank lines skipped before the request line (allowed by RFC 7230 3.5).
+    private int leadingBlankBytes;
+    // Chunked body: bytes of the current chunk still to come, and hex digits of its size line.
+    private long chunkRemaining;
+    private int chunkSizeDigits;
+
+    // Constructor.
+    public HttpRequestParser(int maxHeaderBytes, int maxHeaderCount, int maxRequestBytes) {
+        this.request = new HttpRequest(maxHeaderCount);
+        this.maxHeaderBytes = maxHeaderBytes;
+        this.maxHeaderCount = maxHeaderCount;
+        this.maxRequestBytes = maxRequestBytes;
+        reset();
+    }
+
+    // Constructor with the limits from ServerConfig.
+    public HttpRequestParser() {
+        this(ServerConfig.maxHeaderBytes, ServerConfig.maxHeaderCount, ServerConfig.maxRequestBytes);
+    }
+
+    /**
+     * Gets ready for the next request.
+     * Precondition:
+     * Postcondition: next parse() call starts a new request.
+     */
+    public void reset() {
+        state = METHOD;
+        pos = 0;
+        leadingBlankBytes = 0;
+        chunkRemaining = 0;
+        chunkSizeDigits = 0;
+        request.reset(null, 0);
+    }
+
+    /**
+     * Request filled in by the last parse() that returned a length.
+     */
+    public HttpRequest request() {
+        return request;
+    }
+
+    /**
+     * Whether the header of the request being parsed is complete and its body is still
+     * coming in (used to pick the connection's deadline).
+     */
+    public boolean inBody() {
+        return state >= BODY;
+    }
+
+    /**
+     * Continues parsing the request that starts at buf[base].
+     * @param buf bytes read from the connection.
+     * @param base offset of the first byte of the request (may change between calls if the
+     *             buffer was compacted, as long as the request bytes moved with it).
+     * @param end one past the last byte read.
+     * Precondition: bytes of the request seen by earlier calls haven't changed.
+     * Postcondition: returns the number of bytes the whole request (head and body) takes
+     *                once it is complete, INCOMPLETE if more bytes are needed.
+     * @throws HttpParseException if the request is malformed or breaks a limit.
+     */
+    public int parse(byte[] buf, int base, int end) throws HttpParseException {
+        HttpRequest r = request;
+        r.buf = buf;
+        r.base = base + leadingBlankBytes;
+
+        int length = end - r.base;
+        if (state > BODY) {
+            // Head is done, in the middle of a chunked body.
+            return parseChunks(r, length);
+        }
+        int p = pos;
+        int s = state;
+
+        while (p < length && s != BODY) {
+            int b = buf[r.base + p];
+
+            switch (s) {
+                case METHOD:
+                    if (b == ' ') {
+                        if (p == 0) {
+                            throw new HttpParseException("400 Bad Request");
+                        }
+                        r.methodEnd = p;
+                        r.uriStart = p + 1;
+                        s = URI;
+                    } else if ((b == '\r' || b == '\n') && p == 0) {
+                        // Blank line before the request, skip it.
+                        leadingBlankBytes++;
+                        r.base++;
+                        length--;
+                        if (leadingBlankBytes > 4) {
+                            throw new HttpParseException("400 Bad Request");
+                        }
+                        continue;
+                    } else if (b < 0 || !TOKEN_CHARS[b]) {
+                        throw new HttpParseException("400 Bad Request");
+                    }
+                    break;
+
+                case URI:
+                    if (b == ' ') {
+                        if (p == r.uriStart) {
+                            throw new HttpParseException("400 Bad Request");
+                        }
+                        r.uriEnd = p;
+                        r.versionStart = p + 1;
+                        s = VERSION;
+                    } else if (b >= 0 && b <= ' ' || b == 0x7f) {
+                        throw new HttpParseException("400 Bad Request");
+                    } else if (b == '?' && r.queryStart == -1) {
+                        // Path ends here, query string follows.
+                        r.queryStart = p;
+                    }
+                    break;
+
+                case VERSION:
+                    if (b == '\r' || b == '\n') {
+                        r.versionEnd = p;
+                        checkVersion(r);
+                        s = b == '\r' ? REQUEST_LINE_LF : HEADER_LINE_START;
+                    } else if (p - r.versionStart >= 8) {
+                        throw new HttpParseException("400 Bad Request");
+                    }
+                    break;
+
+                case REQUEST_LINE_LF:
+                    if (b != '\n') {
+                        throw new HttpParseException("400 Bad Request");
+                    }
+                    s = HEADER_LINE_START;
+                    break;
+
+                case HEADER_LINE_START:
+                    if (b == '\r') {
+                        s = HEAD_END_LF;
+                    } else if (b == '\n') {
+                        s = headDone(r, p + 1);
+                    } else if (b == ' ' || b == '\t') {
+                        // Obsolete line folding isn't accepted (RFC 7230 3.2.4).
+                        throw new HttpParseException("400 Bad Request");
+                    } else if (b < 0 || !TOKEN_CHARS[b]) {
+                        throw new HttpParseException("400 Bad Request");
+                    } else {
+                        currentNameStart = p;
+                        s = HEADER_NAME;
+                    }
+                    break;
+
+                case HEADER_NAME:
+                    if (b == ':') {
+                        currentNameEnd = p;
+                        s = HEADER_VALUE_START;
+                    } else if (b < 0 || !TOKEN_CHARS[b]) {
+                        throw new HttpParseException("400 Bad Request");
+                    }
+                    break;
+
+                case HEADER_VALUE_START:
+                    if (b == ' ' || b == '\t') {
+                        break;
+                    }
+                    currentValueStart = p;
+                    s = HEADER_VALUE;
+                    // Look at this byte again as part of the value.
+                    continue;
+
+                case HEADER_VALUE:
+                    if (b == '\r' || b == '\n') {
+                        addHeader(r, p);
+                        s = b == '\r' ? HEADER_LF : HEADER_LINE_START;
+                    } else if (b == 0) {
+                        throw new HttpParseException("400 Bad Request");
+                    }
+                    break;
+
+                case HEADER_LF:
+                    if (b != '\n') {
+                        throw new HttpParseException("400 Bad Request");
+                    }
+                    s = HEADER_LINE_START;
+                    break;
+
+                case HEAD_END_LF:
+                    if (b != '\n') {
+                        throw new HttpParseException("400 Bad Request");
+                    }
+                    s = headDone(r, p + 1);
+                    break;
+
+                default:
+                    break;
+            }
+
+            p++;
+
+            if (s != BODY && p > maxHeaderBytes) {
+                throw new HttpParseException("431 Request Header Fields Too Large");
+            }
+        }
+
+        pos = p;
+        state = s;
+
+        if (s != BODY) {
+            return INCOMPLETE;
+        }
+
+        if (r.chunked) {
+            state = CHUNK_SIZE;
+            return parseChunks(r, length);
+        }
+
+        // Whole head read, wait for the body.
+        int total = r.headLength + r.bodyLength;
+        if (length < total) {
+            return INCOMPLETE;
+        }
+        return leadingBlankBytes + total;
+    }
+
+    /**
+     * Checks the HTTP version of the request line.
+     * Precondition: versionStart/versionEnd are set.
+     * Postcondition: http11 is set.
+     * @throws HttpParseException if the version isn't HTTP/1.0 or HTTP/1.1.
+     */
+    private static void checkVersion(HttpRequest r) throws HttpParseException {
+        byte[] buf = r.buf;
+        int v = r.base + r.versionStart;
+        if (r.versionEnd - r.versionStart != 8 || buf[v] != 'H' || buf[v + 1] != 'T' || buf[v + 2] != 'T'
+                || buf[v + 3] != 'P' || buf[v + 4] != '/' || buf[v + 6] != '.') {
+            throw new HttpParseException("400 Bad Request");
+        }
+        if (buf[v + 5] != '1' || (buf[v + 7] != '0' && buf[v + 7] != '1')) {
+            throw new HttpParseException("505 HTTP Version Not Supported");
+        }
+        r.http11 = buf[v + 7] == '1';
+    }
+
+    /**
+     * Stores the header line that just ended.
+     * @param valueEnd offset of the CR/LF ending the line.
+     * Precondition: currentNameStart, currentNameEnd, currentValueStart are set.
+     * Postcondition: header is added (Content-Length is parsed on the way).
+     */
+    private void addHeader(HttpRequest r, int valueEnd) throws HttpParseException {
+        if (r.headerCount >= maxHeaderCount) {
+            throw new HttpParseException("431 Request Header Fields Too Large");
+        }
+
+        // Drop trailing whitespace.
+        while (valueEnd > currentValueStart && (r.buf[r.base + valueEnd - 1] == ' ' || r.buf[r.base + valueEnd - 1] == '\t')) {
+            valueEnd--;
+        }
+
+        int i = r.headerCount++;
+        r.nameStart[i] = currentNameStart;
+        r.nameEnd[i] = currentNameEnd;
+        r.valueStart[i] = currentValueStart;
+        r.valueEnd[i] = valueEnd;
+
+        if (currentNameEnd - currentNameStart == 14 && nameIs(r, "content-length")) {
+            long contentLength = parseContentLength(r, currentValueStart, valueEnd);
+            if (r.contentLength != -1 && r.contentLength != contentLength) {
+                // Two different lengths, can't tell where the body ends.
+                throw new HttpParseException("400 Bad Request");
+            }
+            r.contentLength = contentLength;
+        } else if (currentNameEnd - currentNameStart == 17 && nameIs(r, "transfer-encoding")) {
+            // Only "chunked" is supported (other codings would have to be undone first).
+            if (r.chunked || !valueIs(r, currentValueStart, valueEnd, "chunked")) {
+                throw new HttpParseException("501 Not Implemented");
+            }
+            // HTTP/1.0 has no chunked bodies (RFC 7230 3.3.1).
+            if (!r.http11) {
+                throw new HttpParseException("400 Bad Request");
+            }
+            r.chunked = true;
+        }
+    }
+
+    /**
+     * Called once the blank line after the headers has been read.
+     * @param headLength bytes taken by request line, headers and blank line.
+     * Precondition:
+     * Postcondition: returns BODY, the body limits have been checked.
+     */
+    private int headDone(HttpRequest r, int headLength) throws HttpParseException {
+        r.headLength = headLength;
+        r.bodyStart = headLength;
+        if (r.chunked) {
+            // Content-Length next to chunked is how requests get smuggled (RFC 7230 3.3.3).
+            if (r.contentLength != -1) {
+                throw new HttpParseException("400 Bad Request");
+            }
+        } else if (r.contentLength > 0) {
+            if (r.contentLength > maxRequestBytes - headLength) {
+                throw new HttpParseException("413 Payload Too Large");
+            }
+            r.bodyLength = (int) r.contentLength;
+        }
+        return BODY;
+    }
+
+    /**
+     * Continues decoding a chunked body.
+     * @param length bytes of the request read so far (from r.base).
+     * Precondition: head is done, r.chunked is set. pos/state say where decoding stopped,
+     *               r.bodyLength is the number of data bytes already moved into place.
+     * Postcondition: returns the raw length of the request once the last chunk and the
+     *                trailers are read, INCOMPLETE if more bytes are needed. Progress is
+     *                saved even if an exception is thrown.
+     * @throws HttpParseException if the chunks are malformed or too big.
+     */
+    private int parseChunks(HttpRequest r, int length) throws HttpParseException {
+        byte[] buf = r.buf;
+
+        while (pos < length && state != CHUNKED_DONE) {
+            if (pos > maxRequestBytes) {
+                throw new HttpParseException("413 Payload Too Large");
+            }
+
+            if (state == CHUNK_DATA) {
+                // Move as much of the chunk as has arrived right after the body decoded so far.
+                int n = (int) Math.min(chunkRemaining, length - pos);
+                System.arraycopy(buf, r.base + pos, buf, r.base + r.bodyStart + r.bodyLength, n);
+                r.bodyLength += n;
+                chunkRemaining -= n;
+                pos += n;
+                if (chunkRemaining == 0) {
+                    state = CHUNK_DATA_CR;
+                }
+                continue;
+            }
+
+            int b = buf[r.base + pos];
+            switch (state) {
+                case CHUNK_SIZE:
+                    int digit = b < 0 ? -1 : HEX_VALUES[b];
+                    if (digit >= 0) {
+                        if (++chunkSizeDigits > 8) {
+                            throw new HttpParseException("413 Payload Too Large");
+                        }
+                        chunkRemaining = chunkRemaining * 16 + digit;
+                    } else if (chunkSizeDigits == 0) {
+                        throw new HttpParseException("400 Bad Request");
+                    } else if (b == ';' || b == ' ' || b == '\t') {
+                        // Chunk extensions are ignored.
+                        state = CHUNK_EXTENSION;
+                    } else if (b == '\r') {
+                        state = CHUNK_SIZE_LF;
+                    } else if (b == '\n') {
+                        state = chunkSizeDone(r);
+                    } else {
+                        throw new HttpParseException("400 Bad Request");
+                    }
+                    break;
+
+                case CHUNK_EXTENSION:
+                    if (b == '\r') {
+                        state = CHUNK_SIZE_LF;
+                    } else if (b == '\n') {
+                        state = chunkSizeDone(r);
+                    } else if (b == 0) {
+                        throw new HttpParseException("400 Bad Request");
+                    }
+                    break;
+
+                case CHUNK_SIZE_LF:
+                    if (b != '\n') {
+                        throw new HttpParseException("400 Bad Request");
+                    }
+                    state = chunkSizeDone(r);
+                    break;
+
+                case CHUNK_DATA_CR:
+                    if (b == '\r') {
+                        state = CHUNK_DATA_LF;
+                    } else if (b == '\n') {
+                        state = CHUNK_SIZE;
+                    } else {
+                        throw new HttpParseException("400 Bad Request");
+                    }
+                    break;
+
+                case CHUNK_DATA_LF:
+                    if (b != '\n') {
+                        throw new HttpParseException("400 Bad Request");
+                    }
+                    state = CHUNK_SIZE;
+                    break;
+
+                case TRAILER_LINE_START:
+                    // Trailer fields are skipped (nothing here needs them).
+                    if (b == '\r') {
+                        state = TRAILER_END_LF;
+                    } else if (b == '\n') {
+                        state = CHUNKED_DONE;
+                    } else {
+                        state = TRAILER_LINE;
+                    }
+                    break;
+
+                case TRAILER_LINE:
+                    if (b == '\r') {
+                        state = TRAILER_LF;
+                    } else if (b == '\n') {
+                        state = TRAILER_LINE_START;
+                    }
+                    break;
+
+                case TRAILER_LF:
+                    if (b != '\n') {
+                        throw new HttpParseException("400 Bad Request");
+                    }
+                    state = TRAILER_LINE_START;
+                    break;
+
+                case TRAILER_END_LF:
+                    if (b != '\n') {
+                        throw new HttpParseException("400 Bad Request");
+                    }
+                    state = CHUNKED_DONE;
+                    break;
+
+                default:
+                    break;
+            }
+            pos++;
+        }
+
+        if (state != CHUNKED_DONE) {
+            return INCOMPLETE;
+        }
+        return leadingBlankBytes + pos;
+    }
+
+    /**
+     * Called at the end of a chunk size line.
+     * Precondition: chunkRemaining holds the size of the chunk.
+     * Postcondition: returns the next state (trailers after the last, empty, chunk).
+     */
+    private int chunkSizeDone(HttpRequest r) throws HttpParseException {
+        chunkSizeDigits = 0;
+        if (chunkRemaining == 0) {
+            return TRAILER_LINE_START;
+        }
+        // The decoded body can't be longer than the raw one, so this bounds both.
+        if (chunkRemaining > maxRequestBytes - r.bodyStart - r.bodyLength) {
+            throw new HttpParseException("413 Payload Too Large");
+        }
+        return CHUNK_DATA;
+    }
+
+    // Compares a header value with a lowercase word.
+    private static boolean valueIs(HttpRequest r, int from, int to, String lowerWord) {
+        if (to - from != lowerWord.length()) {
+            return false;
+        }
+        for (int i = 0; i < lowerWord.length(); i++) {
+            if ((r.buf[r.base + from + i] | 0x20) != lowerWord.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Compares the current header name with a lowercase name.
+    private boolean nameIs(HttpRequest r, String lowerName) {
+        for (int i = 0; i < lowerName.length(); i++) {
+            if ((r.buf[r.base + currentNameStart + i] | 0x20) != lowerName.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Parses the digits of a Content-Length value.
+    private static long parseContentLength(HttpRequest r, int from, int to) throws HttpParseException {
+        if (from == to || to - from > 18) {
+            throw new HttpParseException("400 Bad Request");
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = r.buf[r.base + i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new HttpParseException("400 Bad Request");
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,646 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * KeyValueStore.java
+ *
+ * Embedded key-value store behind /database.php. Every write is appended to a log file
+ * (webserver.database.file) that is memory-mapped in regions of 16 MB, and an in-memory
+ * index maps each key to its latest record, so a read is one hash lookup and a slice of
+ * the mapping (values never go through the Java heap). Records are never changed once
+ * written: a new value or a delete is a new record, and the old one becomes garbage.
+ *
+ * Record: CRC32 of the rest (4 bytes), key length (4), value length (4, -1 for a delete),
+ * key (UTF-8), value. Records don't cross regions: a region whose rest is too small for the
+ * next record is closed with a filler. On startup the log is read from the start to build
+ * the index, and stops at the first zeroed or damaged record (a write cut off by a crash).
+ *
+ * Writes are made durable by group commit: writers append under the store's lock, then
+ * wait for a committer thread that forces everything appended so far in one go, so many
+ * writers share one fsync (webserver.database.fsync=false answers without waiting).
+ *
+ * Once garbage outweighs live records (and passes webserver.database.compactMinBytes), a
+ * background thread copies the live records to a new log and swaps it in. Readers work on
+ * a Generation (file, mapping and index together), so a swap never mixes old and new offsets.
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+public class KeyValueStore {
+
+    // Size of a mapped region (the file grows a region at a time).
+    private static final int REGION_SIZE = 16 * 1024 * 1024;
+    // CRC, key length, value length.
+    private static final int HEADER_SIZE = 12;
+    // Key length of the filler closing a region, value length of a delete.
+    private static final int FILLER = -1;
+    private static final int DELETED = -1;
+    // Longest key (bytes).
+    public static final int MAX_KEY_BYTES = 1024;
+
+    // Log file of the server's store, and the file compaction writes before renaming it.
+    private static final Path FILE = Paths.get(ServerConfig.databaseFile).toAbsolutePath().normalize();
+    private static final Path COMPACT_FILE = compactFile(FILE);
+
+    // Store of the server (opened on first use).
+    private static KeyValueStore instance;
+
+    /**
+     * Callback of forEach().
+     */
+    public interface Visitor {
+        void record(ByteBuffer key, ByteBuffer value) throws IOException;
+    }
+
+    /**
+     * One log file, its mapping and its index. Compaction replaces the whole thing.
+     */
+    private static class Generation {
+        final FileChannel channel;
+        // Mapped regions (replaced by a longer array when the file grows).
+        volatile MappedByteBuffer[] regions = new MappedByteBuffer[0];
+        // Offset of the latest record of every key that has a value.
+        final ConcurrentHashMap<String, Long> index = new ConcurrentHashMap<String, Long>();
+        // End of the records, bytes of records that are no longer the latest, and how far
+        // the file is known to be on disk (under the store's lock, synced by the committer).
+        long end;
+        long garbage;
+        long synced;
+
+        Generation(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        // Maps regions until the file holds offset `needed`.
+        void mapUpTo(long needed) throws IOException {
+            MappedByteBuffer[] current = regions;
+            if ((long) current.length * REGION_SIZE >= needed) {
+                return;
+            }
+            int count = (int) ((needed + REGION_SIZE - 1) / REGION_SIZE);
+            MappedByteBuffer[] grown = Arrays.copyOf(current, count);
+            for (int i = current.length; i < count; i++) {
+                // Mapping past the end of the file makes it longer.
+                grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * REGION_SIZE, REGION_SIZE);
+            }
+            regions = grown;
+        }
+
+        MappedByteBuffer region(long offset) {
+            return regions[(int) (offset / REGION_SIZE)];
+        }
+
+        // Forces the bytes in [from, to) to disk.
+        void force(long from, long to) {
+            MappedByteBuffer[] mapped = regions;
+            while (from < to) {
+                int region = (int) (from / REGION_SIZE);
+                int start = (int) (from % REGION_SIZE);
+                int length = (int) Math.min(REGION_SIZE - start, to - from);
+                mapped[region].force(start, length);
+                from += length;
+            }
+        }
+    }
+
+    private final Path path;
+    private volatile Generation current;
+
+    // Bytes ever appended (all generations), and how many of them are on disk. Writers wait
+    // on syncLock for their bytes.
+    private long appended;
+    private final Object syncLock = new Object();
+    private long syncedSeq;
+    private long requestedSeq;
+    private boolean closed;
+
+    // Set when a compaction should run (under the store's lock).
+    private boolean compactionWanted;
+    private long compactions;
+
+    private KeyValueStore(Path path) throws IOException {
+        this.path = path;
+        this.current = recover(path);
+        if (ServerConfig.databaseFsync) {
+            Thread committer = new Thread(this::commitLoop, "database-committer");
+            committer.setDaemon(true);
+            committer.start();
+        }
+        Thread compactor = new Thread(this::compactLoop, "database-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * The server's store (opened the first time, from webserver.database.file).
+     * Precondition:
+     * Postcondition: returns the open store.
+     * @throws IOException if the log can't be opened.
+     */
+    public static synchronized KeyValueStore instance() throws IOException {
+        if (instance == null) {
+            Files.createDirectories(FILE.getParent());
+            instance = new KeyValueStore(FILE);
+            Log.info("Database opened: " + instance.stats());
+        }
+        return instance;
+    }
+
+    /**
+     * Closes the store if it was opened (called when the server stops).
+     * Precondition: no request is using it any more.
+     * Postcondition: everything written is on disk.
+     */
+    public static synchronized void closeIfOpen() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    // File compaction writes before renaming it over log.
+    private static Path compactFile(Path log) {
+        return log.resolveSibling(log.getFileName() + ".compact");
+    }
+
+    /**
+     * Whether a file is one of the server store's (StaticFiles never serves them).
+     * Precondition: file is absolute and normalized.
+     * Postcondition: returns true for the log and the file compaction writes.
+     */
+    public static boolean isStoreFile(Path file) {
+        return file.equals(FILE) || file.equals(COMPACT_FILE);
+    }
+
+    // Prints the store's stats line if it was opened (<stats>).
+    public static synchronized void printStatsIfOpen() {
+        if (instance != null) {
+            System.out.println(instance.stats());
+        }
+    }
+
+    /**
+     * Whether a record fits in the log.
+     * Precondition:
+     * Postcondition: returns false if the key or the whole record is too big.
+     */
+    public static boolean fits(int keyBytes, int valueBytes) {
+        return keyBytes <= MAX_KEY_BYTES && (long) HEADER_SIZE + keyBytes + valueBytes <= REGION_SIZE;
+    }
+
+    /**
+     * Reads the value of a key.
+     * Precondition:
+     * Postcondition: returns the value (a read-only slice of the log, valid for as long as
+     *                it is referenced), or null if the key has none.
+     */
+    public ByteBuffer get(String key) {
+        Generation gen = current;
+        Long offset = gen.index.get(key);
+        if (offset == null) {
+            return null;
+        }
+        MappedByteBuffer region = gen.region(offset);
+        int start = (int) (offset % REGION_SIZE);
+        int keyLength = region.getInt(start + 4);
+        int valueLength = region.getInt(start + 8);
+        return region.slice(start + HEADER_SIZE + keyLength, valueLength).asReadOnlyBuffer();
+    }
+
+    /**
+     * Stores a value.
+     * @param value array holding the value, at [offset, offset + length).
+     * Precondition: fits(key bytes, length).
+     * Postcondition: record is in the log (and on disk, unless fsync is off). Returns true
+     *                if the key had no value before.
+     */
+    public boolean put(String key, byte[] value, int offset, int length) throws IOException {
+        return write(key, value, offset, length);
+    }
+
+    /**
+     * Deletes a key.
+     * Precondition:
+     * Postcondition: key has no value (the delete is on disk, unless fsync is off).
+     *                Returns false if it had none to begin with.
+     */
+    public boolean delete(String key) throws IOException {
+        if (current.index.get(key) == null) {
+            return false;
+        }
+        return !write(key, null, 0, DELETED);
+    }
+
+    // Appends a record and waits for it to be on disk. Returns true if the key had no value.
+    private boolean write(String key, byte[] value, int offset, int length) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        boolean wasAbsent;
+        long seq;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Database is closed.");
+            }
+            Generation gen = current;
+            int size = HEADER_SIZE + keyBytes.length + Math.max(0, length);
+            long before = gen.end;
+            long at = reserve(gen, size);
+
+            MappedByteBuffer region = gen.region(at);
+            int start = (int) (at % REGION_SIZE);
+            region.putInt(start + 4, keyBytes.length);
+            region.putInt(start + 8, length);
+            region.put(start + HEADER_SIZE, keyBytes, 0, keyBytes.length);
+            if (length > 0) {
+                region.put(start + HEADER_SIZE + keyBytes.length, value, offset, length);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(region.slice(start + 4, size - 4));
+            region.putInt(start, (int) crc.getValue());
+
+            gen.end = at + size;
+            wasAbsent = index(gen, key, at, size, length == DELETED);
+            appended += gen.end - before;
+            seq = appended;
+            wantCompaction(gen);
+        }
+        if (ServerConfig.databaseFsync) {
+            awaitSync(seq);
+        }
+        return wasAbsent;
+    }
+
+    /**
+     * Makes room for a record at the end of a generation's log.
+     * Precondition: store lock is held (or gen isn't visible to other threads yet).
+     * Postcondition: returns the offset of the record, the region holding it is mapped.
+     */
+    private long reserve(Generation gen, int size) throws IOException {
+        long at = gen.end;
+        int left = REGION_SIZE - (int) (at % REGION_SIZE);
+        if (size > left) {
+            // Close the region, the record starts the next one.
+            if (left >= HEADER_SIZE) {
+                gen.mapUpTo(at + HEADER_SIZE);
+                gen.region(at).putInt((int) (at % REGION_SIZE) + 4, FILLER);
+            }
+            gen.garbage += left;
+            at += left;
+            gen.end = at;
+        }
+        gen.mapUpTo(at + size);
+        return at;
+    }
+
+    // Points the index at a new record and counts what it replaced. Returns true if the key had no value.
+    private static boolean index(Generation gen, String key, long at, int size, boolean deleted) {
+        Long previous = deleted ? gen.index.remove(key) : gen.index.put(key, at);
+        if (previous != null) {
+            gen.garbage += recordSize(gen, previous);
+        }
+        if (deleted) {
+            // Only needed until compaction drops it (with the records it deletes).
+            gen.garbage += size;
+        }
+        return previous == null;
+    }
+
+    private static int recordSize(Generation gen, long offset) {
+        MappedByteBuffer region = gen.region(offset);
+        int start = (int) (offset % REGION_SIZE);
+        return HEADER_SIZE + region.getInt(start + 4) + Math.max(0, region.getInt(start + 8));
+    }
+
+    /**
+     * Opens a log and builds its index from the records in it.
+     * Precondition:
+     * Postcondition: returns the generation, whose end is after the last whole record.
+     */
+    private Generation recover(Path file) throws IOException {
+        Generation gen = new Generation(file);
+        gen.mapUpTo(Math.max(gen.channel.size(), 1));
+        long limit = (long) gen.regions.length * REGION_SIZE;
+
+        CRC32 crc = new CRC32();
+        long at = 0;
+        while (at < limit) {
+            MappedByteBuffer region = gen.region(at);
+            int start = (int) (at % REGION_SIZE);
+            int left = REGION_SIZE - start;
+            if (left < HEADER_SIZE || region.getInt(start + 4) == FILLER) {
+                gen.garbage += left;
+                at += left;
+                continue;
+            }
+            int keyLength = region.getInt(start + 4);
+            int valueLength = region.getInt(start + 8);
+            if (keyLength <= 0 || keyLength > MAX_KEY_BYTES || valueLength < DELETED
+                    || HEADER_SIZE + keyLength + Math.max(0, valueLength) > left) {
+                // Zeroed space (end of the log) or a damaged header.
+                break;
+            }
+            int size = HEADER_SIZE + keyLength + Math.max(0, valueLength);
+            crc.reset();
+            crc.update(region.slice(start + 4, size - 4));
+            if ((int) crc.getValue() != region.getInt(start)) {
+                Log.warn("Database record at " + at + " is damaged, ignoring it and everything after it.");
+                break;
+            }
+            byte[] key = new byte[keyLength];
+            region.get(start + HEADER_SIZE, key);
+            index(gen, new String(key, StandardCharsets.UTF_8), at, size, valueLength == DELETED);
+            at += size;
+        }
+        gen.end = at;
+        gen.synced = at;
+
+        // Whatever is after the end (a cut off write, or records after a damaged one) is
+        // zeroed, so a later crash can't bring it back.
+        byte[] zeros = new byte[4096];
+        for (long page = at; page < limit; page = (page / zeros.length + 1) * zeros.length) {
+            MappedByteBuffer region = gen.region(page);
+            int start = (int) (page % REGION_SIZE);
+            int length = zeros.length - (int) (page % zeros.length);
+            if (!region.slice(start, length).equals(ByteBuffer.wrap(zeros, 0, length))) {
+                region.put(start, zeros, 0, length);
+            }
+        }
+        return gen;
+    }
+
+    /**
+     * Calls visitor with every key and its value, in log order, without loading them.
+     * Precondition:
+     * Postcondition: visitor has seen every record that was the latest of its key when the
+     *                walk got to it (writes made during the walk may or may not be seen).
+     */
+    public void forEach(Visitor visitor) throws IOException {
+        Generation gen = current;
+        long end;
+        synchronized (this) {
+            end = gen.end;
+        }
+
+        long at = 0;
+        while (at < end) {
+            MappedByteBuffer region = gen.region(at);
+            int start = (int) (at % REGION_SIZE);
+            int left = REGION_SIZE - start;
+            if (left < HEADER_SIZE || region.getInt(start + 4) == FILLER) {
+                at += left;
+                continue;
+            }
+            int keyLength = region.getInt(start + 4);
+            int valueLength = region.getInt(start + 8);
+            if (valueLength != DELETED) {
+                ByteBuffer key = region.slice(start + HEADER_SIZE, keyLength);
+                Long latest = gen.index.get(StandardCharsets.UTF_8.decode(key.duplicate()).toString());
+                if (latest != null && latest == at) {
+                    visitor.record(key.asReadOnlyBuffer(),
+                            region.slice(start + HEADER_SIZE + keyLength, valueLength).asReadOnlyBuffer());
+                }
+            }
+            at += HEADER_SIZE + keyLength + Math.max(0, valueLength);
+        }
+    }
+
+    // Waits until the bytes appended up to seq are on disk.
+    private void awaitSync(long seq) throws IOException {
+        synchronized (syncLock) {
+            if (seq > requestedSeq) {
+                requestedSeq = seq;
+                syncLock.notifyAll();
+            }
+            while (syncedSeq < seq) {
+                if (closed) {
+                    throw new IOException("Database closed before the write was on disk.");
+                }
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the database to sync.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Committer thread: whenever writers wait, forces everything appended so far (by them
+     * and by whoever came after them) with one fsync, then wakes them all.
+     */
+    private void commitLoop() {
+        while (true) {
+            synchronized (syncLock) {
+                while (requestedSeq <= syncedSeq && !closed) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            sync();
+        }
+    }
+
+    // Forces the current generation up to its end and marks those bytes synced.
+    private void sync() {
+        Generation gen;
+        long from;
+        long to;
+        long seq;
+        synchronized (this) {
+            gen = current;
+            from = gen.synced;
+            to = gen.end;
+            seq = appended;
+        }
+        try {
+            gen.force(from, to);
+        } catch (RuntimeException e) {
+            // Mapped I/O reports failures as unchecked exceptions.
+            Log.error("Error syncing the database! Message: " + e.getMessage());
+        }
+        synchronized (this) {
+            if (gen == current && gen.synced < to) {
+                gen.synced = to;
+            }
+        }
+        synchronized (syncLock) {
+            if (seq > syncedSeq) {
+                syncedSeq = seq;
+            }
+            syncLock.notifyAll();
+        }
+    }
+
+    // Asks for a compaction when garbage outweighs the live records.
+    private void wantCompaction(Generation gen) {
+        if (!compactionWanted && gen.garbage >= ServerConfig.databaseCompactMinBytes
+                && gen.garbage > gen.end - gen.garbage) {
+            compactionWanted = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Compactor thread: waits for wantCompaction(), then compacts.
+     */
+    private void compactLoop() {
+        while (true) {
+            synchronized (this) {
+                while (!compactionWanted && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            try {
+                compact();
+            } catch (IOException | RuntimeException e) {
+                Log.error("Error compacting the database! Message: " + e.getMessage());
+            }
+            synchronized (this) {
+                compactionWanted = false;
+            }
+        }
+    }
+
+    /**
+     * Copies the live records to a new log and swaps it in. Writers only wait for the last
+     * step (records appended while the copy ran).
+     * Precondition: called on the compactor thread.
+     * Postcondition: the log holds only the latest record of each key that has a value.
+     */
+    private void compact() throws IOException {
+        long started = System.nanoTime();
+        Generation old;
+        long copiedUpTo;
+        synchronized (this) {
+            old = current;
+            copiedUpTo = old.end;
+        }
+        long before = old.end;
+        long seq;
+
+        Path tmp = compactFile(path);
+        Files.deleteIfExists(tmp);
+        Generation fresh = new Generation(tmp);
+        fresh.mapUpTo(1);
+
+        // Live records, without holding up writers (the ones they replace are caught below).
+        long at = copyRecords(old, fresh, 0, copiedUpTo, true);
+        fresh.force(0, fresh.end);
+
+        synchronized (this) {
+            // Records appended meanwhile go after them, in order.
+            long tail = fresh.end;
+            copyRecords(old, fresh, at, old.end, false);
+            fresh.force(tail, fresh.end);
+            fresh.synced = fresh.end;
+
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            current = fresh;
+            compactions++;
+            seq = appended;
+        }
+        // Readers may still use the old mapping, it goes away with the last of them.
+        old.channel.close();
+
+        synchronized (syncLock) {
+            // Everything appended so far is in the new log, on disk.
+            syncedSeq = Math.max(syncedSeq, seq);
+            syncLock.notifyAll();
+        }
+        Log.info("Database compacted from " + before / 1024 + "KB to " + fresh.end / 1024 + "KB in "
+                + (System.nanoTime() - started) / 1000000 + " ms.");
+    }
+
+    /**
+     * Copies records of old's log in [from, to) to the end of fresh's.
+     * @param liveOnly true: copy a record only if it is (still) the latest of its key.
+     *                 false: replay every record (a delete only if fresh has the key).
+     * Precondition: fresh is only used by this thread.
+     * Postcondition: returns the offset after the last record looked at.
+     */
+    private long copyRecords(Generation old, Generation fresh, long from, long to, boolean liveOnly) throws IOException {
+        long at = from;
+        while (at < to) {
+            MappedByteBuffer region = old.region(at);
+            int start = (int) (at % REGION_SIZE);
+            int left = REGION_SIZE - start;
+            if (left < HEADER_SIZE || region.getInt(start + 4) == FILLER) {
+                at += left;
+                continue;
+            }
+            int keyLength = region.getInt(start + 4);
+            int valueLength = region.getInt(start + 8);
+            int size = HEADER_SIZE + keyLength + Math.max(0, valueLength);
+            byte[] keyBytes = new byte[keyLength];
+            region.get(start + HEADER_SIZE, keyBytes);
+            String key = new String(keyBytes, StandardCharsets.UTF_8);
+
+            boolean copy;
+            if (liveOnly) {
+                Long latest = old.index.get(key);
+                copy = valueLength != DELETED && latest != null && latest == at;
+            } else {
+                copy = valueLength != DELETED || fresh.index.containsKey(key);
+            }
+            if (copy) {
+                long copyAt = reserve(fresh, size);
+                fresh.region(copyAt).put((int) (copyAt % REGION_SIZE), region, start, size);
+                fresh.end = copyAt + size;
+                index(fresh, key, copyAt, size, valueLength == DELETED);
+            }
+            at += size;
+        }
+        return at;
+    }
+
+    // Syncs everything and stops the threads.
+    private void close() {
+        sync();
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        synchronized (syncLock) {
+            syncLock.notifyAll();
+        }
+    }
+
+    /**
+     * One line summary of the store, for the console.
+     */
+    public String stats() {
+        Generation gen = current;
+        long end;
+        long garbage;
+        synchronized (this) {
+            end = gen.end;
+            garbage = gen.garbage;
+        }
+        return "Database (" + path + "): keys=" + gen.index.size() + " log=" + end / 1024 + "KB garbage="
+                + garbage / 1024 + "KB compactions=" + compactions;
+    }
+}
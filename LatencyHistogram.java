@@ -0,0 +1,107 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * LatencyHistogram.java
+ *
+ * HDR-style latency histogram: buckets are log-linear (every power of two of microseconds
+ * is split in 16 equal sub-buckets), so every recorded value is kept with about 6% precision
+ * from 1 microsecond up to hours, in a fixed number of counters. Counters are LongAdders,
+ * so workers recording at the same time don't fight over them.
+ */
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+
+    // Sub-buckets per power of two (2^SUB_BITS).
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // Largest power of two tracked (2^36 microseconds is about 19 hours). Bigger values go in the last bucket.
+    private static final int MAX_EXPONENT = 36;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMicros = new LongAdder();
+
+    // Constructor.
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records one duration.
+     * @param nanos duration in nanoseconds.
+     * Precondition:
+     * Postcondition: duration is counted in its bucket.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        buckets[bucketIndex(micros)].increment();
+        count.increment();
+        sumMicros.add(micros);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    // Sum of every recorded duration, in seconds.
+    public double sumSeconds() {
+        return sumMicros.sum() / 1e6;
+    }
+
+    /**
+     * Value at a quantile.
+     * @param quantile e.g. 0.99.
+     * Precondition: 0 <= quantile <= 1.
+     * Postcondition: returns the highest value (in seconds) of the bucket the quantile falls in, 0 if empty.
+     */
+    public double quantileSeconds(double quantile) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return bucketHighestMicros(i) / 1e6;
+            }
+        }
+        return bucketHighestMicros(BUCKET_COUNT - 1) / 1e6;
+    }
+
+    // Bucket of a value: values below 16 get their own bucket, above that each power of two has 16.
+    private static int bucketIndex(long micros) {
+        if (micros < SUB_COUNT) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    // Highest value (microseconds) that lands in a bucket.
+    private static long bucketHighestMicros(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int exponent = index / SUB_COUNT + SUB_BITS - 1;
+        int sub = index % SUB_COUNT;
+        long lowest = (long) (SUB_COUNT + sub) << (exponent - SUB_BITS);
+        return lowest + (1L << (exponent - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,347 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * Log.java
+ *
+ * Leveled logging that never makes a worker wait on the console. Messages go into a
+ * lock-free ring buffer and a background thread writes them out in batches. If the
+ * buffer is full the message is dropped (and counted) instead of blocking.
+ *
+ * Callers guard messages that build strings, so disabled levels cost one comparison:
+ *     if (Log.isDebug()) {
+ *         Log.debug("Worker " + workerNumber + " got work!");
+ *     }
+ *
+ * The level can be changed while the server runs (console: <log debug>).
+ * Access logging (one compact line per request) is off unless webserver.log.access=true.
+ */
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class Log {
+
+    // Levels, from most to least important.
+    public static final int ERROR = 0;
+    public static final int WARN = 1;
+    public static final int INFO = 2;
+    public static final int DEBUG = 3;
+    public static final int TRACE = 4;
+    // Access log lines (not a level, written whenever access logging is on).
+    private static final int ACCESS = -1;
+
+    private static final String[] LEVEL_NAMES = {"ERROR", "WARN", "INFO", "DEBUG", "TRACE"};
+
+    // Current level (messages above it are ignored).
+    private static volatile int level = parseLevel(ServerConfig.logLevel, INFO);
+    // Whether access lines are logged.
+    private static volatile boolean access = ServerConfig.accessLog;
+
+    /**
+     * One message waiting to be written.
+     */
+    private static class Entry {
+        final long time;
+        final int level;
+        final String thread;
+        final String message;
+
+        Entry(long time, int level, String thread, String message) {
+            this.time = time;
+            this.level = level;
+            this.thread = thread;
+            this.message = message;
+        }
+    }
+
+    // Ring buffer (bounded, many producers, one consumer). Every slot has a sequence number
+    // telling whose turn it is: producers claim slots by moving tail with a CAS, the writer
+    // thread follows behind with head. No locks, so workers never wait for each other here.
+    private static final int CAPACITY = roundUpToPowerOfTwo(ServerConfig.logBufferSize);
+    private static final int MASK = CAPACITY - 1;
+    private static final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<Entry>(CAPACITY);
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    // Only touched by the writer thread.
+    private static long head = 0;
+
+    // Messages lost because the buffer was full.
+    private static final LongAdder dropped = new LongAdder();
+
+    // Where messages go (captured before anyone can swap System.out).
+    private static final PrintStream console = System.out;
+    // Where access lines go (console unless a file is configured).
+    private static final Writer accessOut = openAccessLog();
+
+    // Formats times in the writer thread only.
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    // Batches end with a flush once they get this big.
+    private static final int BATCH_CHARS = 64 * 1024;
+
+    // Batches of messages and access lines (writer thread only).
+    private static final StringBuilder messages = new StringBuilder(BATCH_CHARS);
+    private static final StringBuilder accessLines = new StringBuilder(BATCH_CHARS);
+    // Drops already reported.
+    private static long droppedReported = 0;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        // Write out whatever is left when the JVM exits.
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+    }
+
+    // Not meant to be instantiated.
+    private Log() {
+    }
+
+    public static boolean isEnabled(int messageLevel) {
+        return messageLevel <= level;
+    }
+
+    public static boolean isInfo() {
+        return INFO <= level;
+    }
+
+    public static boolean isDebug() {
+        return DEBUG <= level;
+    }
+
+    public static boolean isTrace() {
+        return TRACE <= level;
+    }
+
+    public static boolean accessEnabled() {
+        return access;
+    }
+
+    public static void error(String message) {
+        log(ERROR, message);
+    }
+
+    public static void warn(String message) {
+        log(WARN, message);
+    }
+
+    public static void info(String message) {
+        log(INFO, message);
+    }
+
+    public static void debug(String message) {
+        log(DEBUG, message);
+    }
+
+    public static void trace(String message) {
+        log(TRACE, message);
+    }
+
+    /**
+     * Logs one access line (see Worker for the format).
+     * Precondition: accessEnabled() (checked by the caller before building the line).
+     * Postcondition: line is queued for the writer thread.
+     */
+    public static void access(String line) {
+        offer(new Entry(0, ACCESS, null, line));
+    }
+
+    /**
+     * Logs a message at a level.
+     * Precondition:
+     * Postcondition: message is queued if its level is enabled (dropped if the buffer is full).
+     */
+    public static void log(int messageLevel, String message) {
+        if (messageLevel > level) {
+            return;
+        }
+        offer(new Entry(System.currentTimeMillis(), messageLevel, Thread.currentThread().getName(), message));
+    }
+
+    /**
+     * Changes the level while the server runs.
+     * @param name level name, e.g. "debug".
+     * Precondition:
+     * Postcondition: returns true if the name was a level and it's now in effect.
+     */
+    public static boolean setLevel(String name) {
+        int parsed = parseLevel(name, -1);
+        if (parsed == -1) {
+            return false;
+        }
+        level = parsed;
+        return true;
+    }
+
+    public static String levelName() {
+        return LEVEL_NAMES[level];
+    }
+
+    public static void setAccess(boolean enabled) {
+        access = enabled;
+    }
+
+    public static long dropped() {
+        return dropped.sum();
+    }
+
+    // Level of a name ("info", "DEBUG", ...), otherwise if it isn't one.
+    private static int parseLevel(String name, int otherwise) {
+        for (int i = 0; i < LEVEL_NAMES.length; i++) {
+            if (LEVEL_NAMES[i].equalsIgnoreCase(name.trim())) {
+                return i;
+            }
+        }
+        return otherwise;
+    }
+
+    /**
+     * Puts an entry in the ring buffer.
+     * Precondition:
+     * Postcondition: entry is queued, or counted as dropped if the buffer is full.
+     */
+    private static void offer(Entry entry) {
+        while (true) {
+            long pos = tail.get();
+            int index = (int) (pos & MASK);
+            long diff = sequences.get(index) - pos;
+
+            if (diff == 0) {
+                // Slot is free, try to claim it.
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots.set(index, entry);
+                    // Publish: the writer may read the slot now.
+                    sequences.set(index, pos + 1);
+                    return;
+                }
+            } else if (diff < 0) {
+                // Writer hasn't freed this slot yet: buffer is full.
+                dropped.increment();
+                return;
+            }
+            // Another producer took the slot, try the next one.
+        }
+    }
+
+    /**
+     * Takes the next entry out of the ring buffer.
+     * Precondition: called by one thread at a time.
+     * Postcondition: returns the oldest entry, null if there is none (yet).
+     */
+    private static Entry poll() {
+        int index = (int) (head & MASK);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        Entry entry = slots.get(index);
+        slots.set(index, null);
+        // Hand the slot back to producers for the next lap.
+        sequences.set(index, head + CAPACITY);
+        head++;
+        return entry;
+    }
+
+    /**
+     * Writer thread: writes everything queued in one batch, sleeps a little when idle.
+     */
+    private static void writeLoop() {
+        while (true) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(1000000L);
+            }
+        }
+    }
+
+    /**
+     * Writes out every queued entry. Called by the writer thread, and by whoever needs the
+     * messages out right now (e.g. the server stopping during JVM shutdown).
+     * Precondition:
+     * Postcondition: returns how many entries were written.
+     */
+    static synchronized int drain() {
+        int count = 0;
+        Entry entry;
+        while ((entry = poll()) != null) {
+            count++;
+            if (entry.level == ACCESS) {
+                accessLines.append(entry.message).append('\n');
+            } else {
+                TIME_FORMAT.formatTo(Instant.ofEpochMilli(entry.time), messages);
+                messages.append(' ').append(LEVEL_NAMES[entry.level]).append(" [").append(entry.thread).append("] ")
+                        .append(entry.message).append('\n');
+            }
+            if (messages.length() > BATCH_CHARS || accessLines.length() > BATCH_CHARS) {
+                flush();
+            }
+        }
+
+        long lost = dropped.sum();
+        if (lost != droppedReported) {
+            messages.append("Log buffer full, dropped ").append(lost - droppedReported).append(" message(s).\n");
+            droppedReported = lost;
+        }
+
+        if (count > 0 || messages.length() > 0) {
+            flush();
+        }
+        return count;
+    }
+
+    // Writes the batches (writer thread only).
+    private static void flush() {
+        if (messages.length() > 0) {
+            console.print(messages);
+            console.flush();
+            messages.setLength(0);
+        }
+        if (accessLines.length() > 0) {
+            try {
+                accessOut.append(accessLines);
+                accessOut.flush();
+            } catch (IOException e) {
+                console.println("Error writing access log! Message: " + e.getMessage());
+            }
+            accessLines.setLength(0);
+        }
+    }
+
+    // Opens the access log file (appending), or wraps the console if there is none.
+    private static Writer openAccessLog() {
+        String file = ServerConfig.accessLogFile;
+        if (file != null && !file.isEmpty()) {
+            try {
+                return new BufferedWriter(new FileWriter(file, true));
+            } catch (IOException e) {
+                console.println("Error opening access log " + file + ", using the console! Message: " + e.getMessage());
+            }
+        }
+        return new OutputStreamWriter(console);
+    }
+
+    // Smallest power of two >= n (at least 2).
+    private static int roundUpToPowerOfTwo(int n) {
+        int size = 2;
+        while (size < n && size < (1 << 30)) {
+            size <<= 1;
+        }
+        return size;
+    }
+}
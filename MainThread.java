@@ -10,8 +10,12 @@
  * Sources:
  * BlockingQueue help: https://www.youtube.com/watch?v=d3xb1Nj88pw
  */
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
@@ -19,8 +23,6 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MainThread implements Runnable {
 
-    private boolean debug = true;
-
     /***
      * Thread-safe blocking queue. (This data structure makes it so that producer thread
      * blocks when inserting into queue, and consumer blocks when taking from head of queue.)
@@ -29,36 +31,64 @@ public class MainThread implements Runnable {
      * an item in the queue.
      * 
      * Also BlockingQueue is an interface, so we need to create an instance of a class that
-     * implements the BlockingQueue interface. In this case, we use the LinkedList impl.
+     * implements the BlockingQueue interface. In this case, we use the bounded array impl
+     * (owned by AdmissionControl), so a traffic spike can't pile up sockets without limit.
+     * With webserver.dispatch=sharded every worker has a queue of its own (see WorkQueues).
      */
-    public static BlockingQueue<Socket> queue;
+    public static WorkQueues queue;
+    // Decides what happens to connections when the queue is full (and counts them).
+    public static AdmissionControl admission;
     // Used to kill server gracefully.
     public static AtomicBoolean die;
     // Server socket.
     public static ServerSocket ss;
+    // When a stopping server gives up on the connections still open (System.nanoTime()).
+    public static volatile long drainDeadlineNanos;
+
+    // Listening sockets of the extra acceptors (webserver.reusePort), closed by stop().
+    private final List<ServerSocket> listeners = new ArrayList<ServerSocket>();
+
+    // Do a system call to find out how many cores the CPU has.
+    private final int cores = Runtime.getRuntime().availableProcessors();
 
     // Constructor.
     public MainThread(ServerSocket ss, AtomicBoolean die) {
-        MainThread.queue = new LinkedBlockingQueue<Socket>();
+        MainThread.admission = new AdmissionControl(cores);
+        MainThread.queue = admission.queue();
         MainThread.die = die;
         MainThread.ss = ss;
     }
 
+    /**
+     * Starts stopping the engine.
+     * @param deadlineNanos System.nanoTime() by which the open connections have to be done.
+     * Precondition:
+     * Postcondition: die is set. Once the server socket is closed, run() stops accepting,
+     *                drains the queue and the workers, then returns.
+     */
+    public void stop(long deadlineNanos) {
+        drainDeadlineNanos = deadlineNanos;
+        die.set(true);
+
+        synchronized (listeners) {
+            for (ServerSocket listener : listeners) {
+                try {
+                    listener.close();
+                } catch (IOException e) {
+                    Log.error("Error closing ServerSocket! Message: " + e.getMessage());
+                }
+            }
+        }
+    }
+
     @Override
     public void run() {
         // Listen for new requests.
         // Generate worker threads that consume from blocking queue.
-        if (debug) {
-            System.out.println("Main thread has been initialized!");
-        }
+        Log.info("Main thread has been initialized!");
 
-        // Do a system call to find out how many cores the CPU has.
         // Generate a thread for every core in the CPU.
-        int cores = Runtime.getRuntime().availableProcessors();
-
-        if (debug) {
-            System.out.println("Cores: " + cores);
-        }
+        Log.info("Cores: " + cores);
 
         // Create list of workers.
         List<Worker> workers = new ArrayList<Worker>();
@@ -69,33 +99,173 @@ public class MainThread implements Runnable {
         }
 
         // Create and start worker threads.
+        List<Thread> threads = new ArrayList<Thread>();
         for (int i = 0; i < workers.size(); i++) {
-            new Thread(workers.get(i)).start();
+            Thread thread = new Thread(workers.get(i));
+            threads.add(thread);
+            thread.start();
         }
 
+        // Extra acceptors, each on its own listening socket or on the shared one.
+        List<Thread> acceptorThreads = new ArrayList<Thread>();
+        for (int i = 1; i < ServerConfig.acceptors; i++) {
+            ServerSocket listener = ServerConfig.reusePort ? openListener() : ss;
+            if (listener == null) {
+                break;
+            }
+            Thread acceptor = new Thread(() -> accept(listener), "acceptor-" + (acceptorThreads.size() + 2));
+            acceptorThreads.add(acceptor);
+            acceptor.start();
+        }
+
+        // This thread is the first acceptor.
+        accept(ss);
+
+        try {
+            for (Thread acceptor : acceptorThreads) {
+                acceptor.join();
+            }
+        } catch (InterruptedException e) {
+            Log.error("Interrupted while waiting for acceptors to finish! Message: " + e.getMessage());
+        }
+
+        drain(workers, threads);
+
+        Log.info("Main thread has killed itself!");
+
+    }
+
+    /**
+     * Accept loop: grabs connections from a listening socket and puts them in the queue(s).
+     * @param listener listening socket (several acceptors may share one).
+     * Precondition:
+     * Postcondition: returns once the server is dying and the socket has been closed.
+     */
+    private void accept(ServerSocket listener) {
         // Used to store current request IP address.
         String currentRequestIP = "";
         while (!die.get()) {
             // Grab request from ss and put them in BlockingQueue.
             try {
-                // Accept new connection. (Times out after 30 seconds.)
-                Socket sock = ss.accept();
+                // Accept new connection. (Closing the server socket wakes it up to die.)
+                Socket sock = listener.accept();
+                Metrics.connectionAccepted();
                 currentRequestIP = sock.getInetAddress().getHostAddress();
 
+                // Clients opening connections faster than their rate limit get 429.
+                if (!RateLimiter.admit(sock)) {
+                    continue;
+                }
+
                 try {
-                    queue.offer(sock);
+                    // Queue it, or turn it away if the workers are too far behind.
+                    admission.admit(sock);
                 } catch (Exception e) {
-                    System.out.println("Queue Exception: " + e.getMessage());
+                    Log.error("Queue Exception: " + e.getMessage());
                 }
 
             } catch (Exception e) {
-                System.out.println("Socket exception MainThread: " + e.getMessage());
-                System.out.println("Last socket connection was to: " + currentRequestIP);
+                if (!die.get()) {
+                    Log.warn("Socket exception MainThread: " + e.getMessage());
+                    Log.warn("Last socket connection was to: " + currentRequestIP);
+                }
             }
         }
+    }
+
+    /**
+     * Opens one more listening socket on the server's port with SO_REUSEPORT, so the kernel
+     * spreads new connections over the acceptors instead of waking them all on one socket.
+     * Precondition: ss was bound with SO_REUSEPORT.
+     * Postcondition: returns the bound socket (closed by stop()), or null if it can't be opened.
+     */
+    private ServerSocket openListener() {
+        try {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            channel.bind(new InetSocketAddress(ss.getInetAddress(), ss.getLocalPort()));
+            synchronized (listeners) {
+                listeners.add(channel.socket());
+                if (die.get()) {
+                    // stop() already ran.
+                    channel.close();
+                }
+            }
+            return channel.socket();
+        } catch (IOException | UnsupportedOperationException e) {
+            Log.warn("Can't open another listening socket with SO_REUSEPORT! Message: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Lets the workers finish before they exit: connections waiting for another request are
+     * closed, queued connections and requests being answered are finished. Whatever is still
+     * open at drainDeadlineNanos is cut off.
+     * Precondition: accepting has stopped.
+     * Postcondition: worker threads have exited (or are stuck past the deadline, a second later).
+     */
+    private void drain(List<Worker> workers, List<Thread> threads) {
+        for (Worker worker : workers) {
+            worker.closeIfIdle();
+        }
+
+        try {
+            // One STOP per worker, behind the connections still queued.
+            int stops = 0;
+            while (stops < workers.size() && queue.stop(stops, remainingNanos(), TimeUnit.NANOSECONDS)) {
+                stops++;
+            }
+            for (Thread thread : threads) {
+                // (A timed join of 0 would wait forever.)
+                long left = remainingNanos();
+                if (left > 0) {
+                    TimeUnit.NANOSECONDS.timedJoin(thread, left);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.error("Interrupted while waiting for workers to finish! Message: " + e.getMessage());
+        }
 
-        System.out.println("Main thread has killed itself!");
+        int open = 0;
+        for (Thread thread : threads) {
+            if (thread.isAlive()) {
+                open++;
+            }
+        }
+        if (open == 0) {
+            return;
+        }
+
+        for (Worker worker : workers) {
+            worker.abort();
+        }
+        int waiting = 0;
+        QueuedSocket queued;
+        while ((queued = queue.poll()) != null) {
+            waiting++;
+            try {
+                queued.sock.close();
+            } catch (Exception e) {
+                Log.error("Error closing socket! Message: " + e.getMessage());
+            }
+        }
+        Log.warn("Drain deadline passed, cut off " + open + " worker(s) and " + waiting + " queued connection(s).");
+        try {
+            // The STOP markers went with the queued connections.
+            for (int i = 0; i < workers.size(); i++) {
+                queue.stop(i, 0, TimeUnit.NANOSECONDS);
+            }
+            for (Thread thread : threads) {
+                thread.join(1000);
+            }
+        } catch (InterruptedException e) {
+            Log.error("Interrupted while waiting for workers to finish! Message: " + e.getMessage());
+        }
+    }
 
+    // Time left until the drain deadline (0 once it has passed).
+    private static long remainingNanos() {
+        return Math.max(0, drainDeadlineNanos - System.nanoTime());
     }
-    
 }
@@ -0,0 +1,251 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * Metrics.java
+ *
+ * Server counters, shown by GET /metrics in the Prometheus text format: requests by method,
+ * route and status, latency histograms per route, accept queue depth and wait time, and
+ * open connections. Everything is a LongAdder (or a LatencyHistogram made of them), so
+ * recording never makes workers wait for each other.
+ */
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Metrics {
+
+    /**
+     * Counters of one route (kept by the Router, so recording needs no lookup).
+     */
+    public static class RouteMetrics {
+        final String label;
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        RouteMetrics(String label) {
+            this.label = label;
+        }
+    }
+
+    // Quantiles reported for every histogram.
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    // Every route, in the order they were made.
+    private static final List<RouteMetrics> routes = new ArrayList<RouteMetrics>();
+
+    // Requests by HttpRequest.methodIndex() (last slot: unknown methods).
+    private static final LongAdder[] requestsByMethod = newAdders(HttpRequest.knownMethodCount() + 1);
+    // Responses by status code.
+    private static final LongAdder[] responsesByStatus = newAdders(600);
+
+    // Connections accepted by any engine, and connections open right now.
+    private static final LongAdder accepted = new LongAdder();
+    private static final LongAdder activeConnections = new LongAdder();
+    // How long connections waited in the accept queue (blocking engine).
+    private static final LatencyHistogram queueWait = new LatencyHistogram();
+    // Connections whose deadline passed, by Deadlines phase.
+    private static final LongAdder[] timeoutsByPhase = newAdders(Deadlines.count());
+
+    // Not meant to be instantiated.
+    private Metrics() {
+    }
+
+    private static LongAdder[] newAdders(int n) {
+        LongAdder[] adders = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Makes the counters of a route.
+     * @param label route label, e.g. "/multiply".
+     * Precondition: called while routes are set up.
+     * Postcondition: returns counters that show up in /metrics.
+     */
+    public static RouteMetrics route(String label) {
+        RouteMetrics route = new RouteMetrics(label);
+        synchronized (routes) {
+            routes.add(route);
+        }
+        return route;
+    }
+
+    /**
+     * Records an answered request.
+     * @param methodIndex HttpRequest.methodIndex() of the request.
+     * @param route route that answered it (null if none did).
+     * @param status status line of the response, e.g. "200 OK" (null if none was sent).
+     * @param nanos time spent answering it.
+     * Precondition:
+     * Postcondition: request is counted.
+     */
+    public static void recordRequest(int methodIndex, RouteMetrics route, String status, long nanos) {
+        requestsByMethod[methodIndex == -1 ? requestsByMethod.length - 1 : methodIndex].increment();
+        recordStatus(status);
+        if (route != null) {
+            route.latency.record(nanos);
+        }
+    }
+
+    /**
+     * Counts a response by status code (also used for requests the parser rejected).
+     */
+    public static void recordStatus(String status) {
+        if (status == null || status.length() < 3) {
+            return;
+        }
+        int code = (status.charAt(0) - '0') * 100 + (status.charAt(1) - '0') * 10 + (status.charAt(2) - '0');
+        if (code >= 100 && code < responsesByStatus.length) {
+            responsesByStatus[code].increment();
+        }
+    }
+
+    public static void connectionAccepted() {
+        accepted.increment();
+    }
+
+    public static void connectionOpened() {
+        activeConnections.increment();
+    }
+
+    public static void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    public static void recordTimeout(int phase) {
+        timeoutsByPhase[phase].increment();
+    }
+
+    public static void recordQueueWait(long nanos) {
+        queueWait.record(nanos);
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format (version 0.0.4).
+     * Each metric family is built in a small StringBuilder and written out before the next
+     * one, so the whole text is never held in memory.
+     * @param out stream the text is written to (UTF-8).
+     * Precondition:
+     * Postcondition: every metric has been written to out.
+     */
+    public static void writePrometheus(OutputStream out) throws IOException {
+        StringBuilder text = new StringBuilder(1024);
+
+        header(text, "webserver_requests_total", "counter", "Requests answered, by method.");
+        for (int i = 0; i < requestsByMethod.length; i++) {
+            long n = requestsByMethod[i].sum();
+            if (n > 0) {
+                String method = i < HttpRequest.knownMethodCount() ? HttpRequest.methodName(i) : "other";
+                text.append("webserver_requests_total{method=\"").append(method).append("\"} ").append(n).append('\n');
+            }
+        }
+        drain(text, out);
+
+        header(text, "webserver_responses_total", "counter", "Responses sent, by status code.");
+        for (int code = 100; code < responsesByStatus.length; code++) {
+            long n = responsesByStatus[code].sum();
+            if (n > 0) {
+                text.append("webserver_responses_total{status=\"").append(code).append("\"} ").append(n).append('\n');
+            }
+        }
+        drain(text, out);
+
+        List<RouteMetrics> snapshot;
+        synchronized (routes) {
+            snapshot = new ArrayList<RouteMetrics>(routes);
+        }
+        header(text, "webserver_request_duration_seconds", "summary", "Time spent answering requests, by route.");
+        for (RouteMetrics route : snapshot) {
+            summary(text, "webserver_request_duration_seconds", "route=\"" + escape(route.label) + "\"", route.latency);
+            drain(text, out);
+        }
+
+        header(text, "webserver_connections_accepted_total", "counter", "Connections accepted.");
+        text.append("webserver_connections_accepted_total ").append(accepted.sum()).append('\n');
+
+        header(text, "webserver_connections_active", "gauge", "Connections open right now.");
+        text.append("webserver_connections_active ").append(activeConnections.sum()).append('\n');
+
+        header(text, "webserver_connection_timeouts_total", "counter", "Connections whose deadline passed, by what they were waiting for.");
+        for (int phase = 0; phase < timeoutsByPhase.length; phase++) {
+            text.append("webserver_connection_timeouts_total{phase=\"").append(Deadlines.name(phase)).append("\"} ")
+                    .append(timeoutsByPhase[phase].sum()).append('\n');
+        }
+
+        if (RateLimiter.enabled()) {
+            header(text, "webserver_rate_limited_total", "counter", "Connections and requests turned away with 429, by limit.");
+            for (RateLimiter limiter : RateLimiter.all()) {
+                text.append("webserver_rate_limited_total{limit=\"").append(escape(limiter.name())).append("\"} ")
+                        .append(limiter.limited()).append('\n');
+            }
+        }
+
+        AdmissionControl admission = MainThread.admission;
+        if (admission != null) {
+            header(text, "webserver_accept_queue_depth", "gauge", "Connections waiting for a worker.");
+            text.append("webserver_accept_queue_depth ").append(admission.depth()).append('\n');
+            header(text, "webserver_accept_queue_rejected_total", "counter", "Connections turned away because the accept queue was full.");
+            text.append("webserver_accept_queue_rejected_total ").append(admission.rejected()).append('\n');
+            header(text, "webserver_accept_queue_steals_total", "counter", "Connections a worker took from another worker's queue (sharded dispatch).");
+            text.append("webserver_accept_queue_steals_total ").append(admission.queue().steals()).append('\n');
+            header(text, "webserver_accept_queue_wait_seconds", "summary", "Time connections waited in the accept queue.");
+            summary(text, "webserver_accept_queue_wait_seconds", null, queueWait);
+        }
+
+        bufferPoolFamily(text, "webserver_buffer_pool_in_use_bytes", "gauge", "Bytes of pooled I/O buffers handed out.", 0);
+        bufferPoolFamily(text, "webserver_buffer_pool_idle_bytes", "gauge", "Bytes of idle buffers in the shared pool (thread caches not included).", 1);
+        bufferPoolFamily(text, "webserver_buffer_pool_acquired_total", "counter", "Buffers taken from the pool.", 2);
+        bufferPoolFamily(text, "webserver_buffer_pool_allocated_total", "counter", "Buffers the pool had to allocate.", 3);
+        drain(text, out);
+    }
+
+    // Writes the text built so far and empties the builder.
+    private static void drain(StringBuilder text, OutputStream out) throws IOException {
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+        text.setLength(0);
+    }
+
+    // One metric of both buffer pools (0: in use, 1: idle, 2: acquired, 3: allocated).
+    private static void bufferPoolFamily(StringBuilder out, String name, String type, String help, int which) {
+        header(out, name, type, help);
+        for (BufferPool pool : new BufferPool[] {BufferPool.DIRECT, BufferPool.HEAP}) {
+            long value = which == 0 ? pool.inUseBytes() : which == 1 ? pool.idleBytes()
+                    : which == 2 ? pool.acquired() : pool.allocated();
+            out.append(name).append("{pool=\"").append(pool.name()).append("\"} ").append(value).append('\n');
+        }
+    }
+
+    // "# HELP" and "# TYPE" lines of a metric.
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    // Quantile, _sum and _count lines of a histogram.
+    private static void summary(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        String prefix = labels == null ? "{" : "{" + labels + ",";
+        for (double quantile : QUANTILES) {
+            out.append(name).append(prefix).append("quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(histogram.quantileSeconds(quantile))).append('\n');
+        }
+        String suffix = labels == null ? " " : "{" + labels + "} ";
+        out.append(name).append("_sum").append(suffix).append(seconds(histogram.sumSeconds())).append('\n');
+        out.append(name).append("_count").append(suffix).append(histogram.count()).append('\n');
+    }
+
+    private static String seconds(double value) {
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    // Escapes a label value (backslash, quote, newline).
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,191 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * MultiplyHandler.java
+ *
+ * Fast path of the /multiply endpoint. Reads the operands straight from the body bytes
+ * in one pass (no regex, no Strings) and writes the products into a reusable buffer.
+ *
+ * Body format: "a=<integer>&b=<integer>", optionally repeated to multiply many pairs in
+ * one request: "a=2&b=3&a=-4&b=5". Products are written one per line ("6\n-20"), so a
+ * single pair gets exactly its product back. Operands are 64-bit; products are exact even
+ * when they don't fit in 64 bits.
+ */
+import java.math.BigInteger;
+
+public class MultiplyHandler {
+
+    // Products of the last body, as ASCII.
+    private byte[] out = new byte[64];
+    private int outLength = 0;
+    // Number of pairs in the last body.
+    private int pairCount = 0;
+
+    // Position in the body while parsing, and the last number parsed.
+    private int pos;
+    private long number;
+
+    /**
+     * Multiplies every pair of a /multiply body.
+     * @param body array holding the body.
+     * @param offset first byte of the body.
+     * @param length number of body bytes.
+     * Precondition:
+     * Postcondition: returns false if the body doesn't match the format (nothing to answer
+     *                but 400), true if it does (products are in result()).
+     */
+    public boolean multiply(byte[] body, int offset, int length) {
+        int end = offset + length;
+        pos = offset;
+        outLength = 0;
+        pairCount = 0;
+
+        while (true) {
+            // "a=<integer>"
+            if (!expect(body, end, 'a') || !expect(body, end, '=') || !parseNumber(body, end)) {
+                return false;
+            }
+            long a = number;
+
+            // "&b=<integer>"
+            if (!expect(body, end, '&') || !expect(body, end, 'b') || !expect(body, end, '=') || !parseNumber(body, end)) {
+                return false;
+            }
+            long b = number;
+
+            if (pairCount > 0) {
+                appendByte('\n');
+            }
+            appendProduct(a, b);
+            pairCount++;
+
+            if (pos == end) {
+                return true;
+            }
+            // Another pair follows.
+            if (!expect(body, end, '&')) {
+                return false;
+            }
+        }
+    }
+
+    public byte[] result() {
+        return out;
+    }
+
+    public int resultLength() {
+        return outLength;
+    }
+
+    public int pairCount() {
+        return pairCount;
+    }
+
+    // Consumes one expected byte.
+    private boolean expect(byte[] body, int end, char c) {
+        if (pos < end && body[pos] == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parses "[-]digits" into number.
+     * Precondition:
+     * Postcondition: returns false if there are no digits or the value doesn't fit in a long.
+     */
+    private boolean parseNumber(byte[] body, int end) {
+        boolean negative = false;
+        if (pos < end && body[pos] == '-') {
+            negative = true;
+            pos++;
+        }
+
+        // Accumulate negatively so Long.MIN_VALUE can be parsed too.
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multiplyMin = limit / 10;
+        long result = 0;
+        int start = pos;
+
+        while (pos < end) {
+            int digit = body[pos] - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            if (result < multiplyMin) {
+                return false;
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                return false;
+            }
+            result -= digit;
+            pos++;
+        }
+
+        if (pos == start) {
+            return false;
+        }
+        number = negative ? result : -result;
+        return true;
+    }
+
+    // Appends a * b, exactly.
+    private void appendProduct(long a, long b) {
+        long high = Math.multiplyHigh(a, b);
+        long low = a * b;
+
+        // Fits in a long if the high word is just the sign extension of the low word.
+        if ((high == 0 && low >= 0) || (high == -1 && low < 0)) {
+            appendLong(low);
+        } else {
+            // Rare, allocating is fine here.
+            String product = BigInteger.valueOf(a).multiply(BigInteger.valueOf(b)).toString();
+            for (int i = 0; i < product.length(); i++) {
+                appendByte(product.charAt(i));
+            }
+        }
+    }
+
+    // Appends a long in decimal without making a String.
+    private void appendLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            String min = Long.toString(value);
+            for (int i = 0; i < min.length(); i++) {
+                appendByte(min.charAt(i));
+            }
+            return;
+        }
+        if (value < 0) {
+            appendByte('-');
+            value = -value;
+        }
+
+        ensureRoom(19);
+        int start = outLength;
+        do {
+            out[outLength++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = outLength - 1; i < j; i++, j--) {
+            byte tmp = out[i];
+            out[i] = out[j];
+            out[j] = tmp;
+        }
+    }
+
+    private void appendByte(int c) {
+        ensureRoom(1);
+        out[outLength++] = (byte) c;
+    }
+
+    private void ensureRoom(int count) {
+        if (outLength + count > out.length) {
+            byte[] bigger = new byte[Math.max(out.length * 2, outLength + count)];
+            System.arraycopy(out, 0, bigger, 0, outLength);
+            out = bigger;
+        }
+    }
+}
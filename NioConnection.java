@@ -0,0 +1,95 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * NioConnection.java
+ *
+ * State of one client connection handled by an NioEventLoop. Bytes read from the
+ * channel pile up in readBuffer until the parser has a whole request (header and body),
+ * which is then handed to a worker.
+ */
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+public class NioConnection {
+
+    // Size the read buffer starts with. It grows (up to ServerConfig.maxRequestBytes) for big requests.
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    // Channel of the client.
+    final SocketChannel channel;
+    // Selection key of the channel (in the event loop's selector).
+    SelectionKey key;
+    // Event loop that owns this connection. All fields are only touched by its thread.
+    final NioEventLoop loop;
+
+    // Bytes read from the client that haven't been answered yet, and the parser working on them.
+    final RequestBuffer readBuffer = new RequestBuffer(ServerConfig.requestBufferBytes);
+    final HttpRequestParser parser = new HttpRequestParser();
+    // Length in bytes of the request being answered.
+    private int currentRequestLength;
+
+    // Response currently being written to the client (null if none).
+    ArrayDeque<NioResponseStream.Segment> writeQueue;
+    // Whether the connection stays open once writeQueue has been fully sent.
+    boolean keepAliveAfterWrite;
+    // Responses held in writeQueue while pipelined requests after them are answered.
+    int pipelinedResponses;
+    // True while the worker is still writing the response whose first parts are in writeQueue.
+    boolean responseInParts;
+
+    // True while a request of this connection is being answered or its response written
+    // (reading is paused).
+    boolean busy;
+    // True from dispatching a request to a worker until its response is handed back: the
+    // worker reads the request in readBuffer meanwhile, so it can't go back to the pool.
+    boolean workerOwnsBuffer;
+    // Number of requests read on this connection.
+    int requestCount;
+
+    // Deadline of the connection (on the loop's wheel) and the Deadlines phase it is for
+    // (-1 while a worker answers a request: the connection waits for nobody then).
+    final TimingWheel.Timeout deadline;
+    int deadlinePhase = -1;
+
+    // Constructor.
+    NioConnection(SocketChannel channel, NioEventLoop loop) {
+        this.channel = channel;
+        this.loop = loop;
+        this.deadline = new TimingWheel.Timeout(() -> loop.deadlinePassed(this));
+    }
+
+    /**
+     * Tries to parse one complete request out of the bytes read so far.
+     * Precondition: no request of this connection is being answered.
+     * Postcondition: returns the request if a whole one was read, null otherwise.
+     *                Its bytes stay in readBuffer until requestDone() is called.
+     * @throws HttpParseException if the request is malformed or too big.
+     */
+    HttpRequest nextRequest() throws HttpParseException {
+        int length = parser.parse(readBuffer.data, readBuffer.start, readBuffer.end);
+        if (length == HttpRequestParser.INCOMPLETE) {
+            return null;
+        }
+
+        requestCount++;
+        currentRequestLength = length;
+        return parser.request();
+    }
+
+    /**
+     * Frees the bytes of the request that was just answered.
+     * Precondition: its response is complete (responses never point into readBuffer).
+     * Postcondition: a pipelined next request (if any) is at the front of readBuffer.
+     */
+    void requestDone() {
+        readBuffer.consume(currentRequestLength);
+        currentRequestLength = 0;
+        parser.reset();
+        if (readBuffer.available() == 0) {
+            // Nothing pipelined: no buffer is held while waiting for the next request.
+            readBuffer.release();
+        }
+    }
+}
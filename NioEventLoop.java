@@ -0,0 +1,510 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * NioEventLoop.java
+ *
+ * Event loop thread of the NIO engine. Owns a Selector and does all reading and writing
+ * of its connections without ever blocking on a client. Whole requests are handed to the
+ * worker pool, answers come back through submitResponse().
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class NioEventLoop implements Runnable {
+
+    // Longest the loop sleeps in select() (it wakes up sooner when a deadline is due).
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+
+    // Most responses to pipelined requests held back to leave in one write.
+    private static final int MAX_PIPELINED_RESPONSES = 16;
+
+    // Selector watching every connection of this loop.
+    private final Selector selector;
+    // Work coming from other threads (new connections, finished responses).
+    // Runs on the loop thread so connection state is never shared.
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    // Pool answering the requests.
+    private final ExecutorService workers;
+    // Used to kill server gracefully.
+    private final AtomicBoolean die;
+    // Number of the loop (for debug output).
+    private final int loopNumber;
+
+    // Deadlines of this loop's connections (loop thread only).
+    private final TimingWheel wheel = new TimingWheel(Deadlines.TICK_MILLIS, Deadlines.WHEEL_SLOTS);
+    // Connections open on this loop (loop thread only).
+    private int connections = 0;
+    // Scratch array of gathering writes.
+    private final ByteBuffer[] gather = new ByteBuffer[NioResponseStream.MAX_GATHER];
+
+    // Constructor.
+    NioEventLoop(ExecutorService workers, AtomicBoolean die, int loopNumber) throws IOException {
+        this.selector = Selector.open();
+        this.workers = workers;
+        this.die = die;
+        this.loopNumber = loopNumber;
+    }
+
+    /**
+     * Gives a newly accepted connection to this loop. Called by the acceptor thread.
+     * @param channel connection in non-blocking mode.
+     * Precondition:
+     * Postcondition: connection will be registered by the loop thread.
+     */
+    public void addConnection(SocketChannel channel) {
+        tasks.add(() -> register(channel));
+        selector.wakeup();
+    }
+
+    /**
+     * Wakes the loop up so it sees that the server is stopping.
+     */
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    /**
+     * Hands a finished response back to the loop. Called by worker threads.
+     * @param connection connection the response belongs to.
+     * @param response segments to write, in order.
+     * @param keepAlive whether to keep reading requests once the response is sent.
+     * Precondition:
+     * Postcondition: response will be written by the loop thread.
+     */
+    public void submitResponse(NioConnection connection, ArrayDeque<NioResponseStream.Segment> response,
+                               boolean keepAlive) {
+        tasks.add(() -> startWrite(connection, response, keepAlive));
+        selector.wakeup();
+    }
+
+    /**
+     * Hands the first part of a response to the loop while the worker keeps writing the
+     * rest (see NioResponseStream). Called by worker threads.
+     * @param connection connection the response belongs to.
+     * @param part segments to write, in order.
+     * Precondition: the rest of the response follows with submitPart() or submitResponse().
+     * Postcondition: part will be written by the loop thread.
+     */
+    void submitPart(NioConnection connection, ArrayDeque<NioResponseStream.Segment> part) {
+        tasks.add(() -> writePart(connection, part));
+        selector.wakeup();
+    }
+
+    /**
+     * Registers a new connection with the selector.
+     * Precondition: called on the loop thread.
+     * Postcondition: connection is being read from.
+     */
+    private void register(SocketChannel channel) {
+        NioConnection connection = new NioConnection(channel, this);
+        try {
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections++;
+            Metrics.connectionOpened();
+            setDeadline(connection, Deadlines.IDLE);
+        } catch (ClosedChannelException e) {
+            Log.error("NIO event loop " + loopNumber + " got a closed channel! Message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads whatever the client sent and dispatches the request once it's whole.
+     * Precondition: key is readable.
+     * Postcondition: bytes are stored in the connection, complete request has been sent to a worker.
+     */
+    private void read(NioConnection connection) {
+        if (!connection.readBuffer.makeRoom(ServerConfig.maxRequestBytes)) {
+            if (Log.isDebug()) {
+                Log.debug("NIO event loop " + loopNumber + " request too big.");
+            }
+            // Like the other engines: answered, then closed.
+            dispatchError(connection, "413 Payload Too Large");
+            return;
+        }
+
+        int bytesRead;
+        try {
+            bytesRead = connection.readBuffer.readFrom(connection.channel);
+        } catch (IOException e) {
+            close(connection);
+            return;
+        }
+
+        if (bytesRead == -1) {
+            // Client closed the connection.
+            close(connection);
+            return;
+        }
+
+        if (!dispatchNextRequest(connection)) {
+            readDeadline(connection);
+        }
+    }
+
+    /**
+     * Sends the next complete request of the connection (if any) to the worker pool.
+     * Only one request per connection is answered at a time so responses come back in order.
+     * Precondition: no request of the connection is being answered.
+     * Postcondition: connection is busy (and not read from) if a request was dispatched.
+     *                Returns true if one was.
+     */
+    private boolean dispatchNextRequest(NioConnection connection) {
+        HttpRequest request;
+        String parseError = null;
+        try {
+            request = connection.nextRequest();
+        } catch (HttpParseException e) {
+            request = null;
+            parseError = e.getStatus();
+        }
+
+        if (parseError != null) {
+            dispatchError(connection, parseError);
+            return connection.channel.isOpen();
+        }
+        if (request == null) {
+            return false;
+        }
+
+        connection.busy = true;
+        connection.workerOwnsBuffer = true;
+        connection.key.interestOps(0);
+        setDeadline(connection, -1);
+
+        try {
+            HttpRequest parsed = request;
+            workers.execute(() -> NioMainThread.answer(connection, parsed));
+        } catch (RejectedExecutionException e) {
+            // Pool is shutting down.
+            connection.workerOwnsBuffer = false;
+            close(connection);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Starts writing a response produced by a worker. If the client pipelined another
+     * request that is already read, that one is answered first and both responses go out
+     * together (up to MAX_PIPELINED_RESPONSES at a time).
+     * Precondition: called on the loop thread.
+     * Postcondition: response has been written, will be written when the channel is writable,
+     *                or waits for the response of the next pipelined request.
+     */
+    private void startWrite(NioConnection connection, ArrayDeque<NioResponseStream.Segment> response,
+                            boolean keepAlive) {
+        // The worker is done with the request (responses never point into the read buffer).
+        connection.workerOwnsBuffer = false;
+        boolean inParts = connection.responseInParts;
+        connection.responseInParts = false;
+        if (connection.writeQueue == null) {
+            connection.writeQueue = response;
+        } else {
+            connection.writeQueue.addAll(response);
+        }
+        if (!connection.channel.isOpen()) {
+            close(connection);
+            return;
+        }
+        connection.keepAliveAfterWrite = keepAlive;
+
+        if (keepAlive && !die.get()) {
+            // Done with the request bytes (a pipelined request may follow them).
+            connection.requestDone();
+            // A response that is already leaving isn't held back.
+            if (!inParts && ++connection.pipelinedResponses < MAX_PIPELINED_RESPONSES
+                    && dispatchNextRequest(connection)) {
+                return;
+            }
+        }
+        connection.pipelinedResponses = 0;
+        write(connection);
+    }
+
+    /**
+     * Starts writing the first part of a response the worker is still writing.
+     * Precondition: called on the loop thread.
+     * Postcondition: part (and responses held before it) has been written or will be written
+     *                when the channel is writable.
+     */
+    private void writePart(NioConnection connection, ArrayDeque<NioResponseStream.Segment> part) {
+        if (connection.writeQueue == null) {
+            connection.writeQueue = part;
+        } else {
+            connection.writeQueue.addAll(part);
+        }
+        if (!connection.channel.isOpen()) {
+            // Frees the part (and lets the worker see the connection is gone).
+            close(connection);
+            return;
+        }
+        connection.responseInParts = true;
+        connection.pipelinedResponses = 0;
+        write(connection);
+    }
+
+    /**
+     * Writes as much of the pending response(s) as the socket takes. Byte segments next to
+     * each other go out in one gathering write.
+     * Precondition: connection has a pending response.
+     * Postcondition: connection is read from again (or closed) once everything is sent.
+     */
+    private void write(NioConnection connection) {
+        ArrayDeque<NioResponseStream.Segment> queue = connection.writeQueue;
+        try {
+            while (!queue.isEmpty()) {
+                NioResponseStream.Segment segment = queue.peek();
+                boolean written;
+                if (segment instanceof NioResponseStream.BufferSegment) {
+                    written = NioResponseStream.writeBufferSegments(queue, connection.channel, gather);
+                } else if (segment.writeTo(connection.channel)) {
+                    queue.poll().release();
+                    written = true;
+                } else {
+                    written = false;
+                }
+
+                if (!written) {
+                    // Slow client, finish when the socket has room (the deadline starts over
+                    // every time it takes some bytes).
+                    connection.key.interestOps(SelectionKey.OP_WRITE);
+                    setDeadline(connection, Deadlines.WRITE);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            close(connection);
+            return;
+        }
+
+        connection.writeQueue = null;
+        if (connection.responseInParts) {
+            // Everything so far is out, the worker is still writing: wait for it, not the client.
+            connection.key.interestOps(0);
+            setDeadline(connection, -1);
+            return;
+        }
+
+        // Response done.
+        connection.busy = false;
+
+        if (!connection.keepAliveAfterWrite || die.get()) {
+            close(connection);
+            return;
+        }
+
+        connection.key.interestOps(SelectionKey.OP_READ);
+        // A pipelined request may already be in the buffer (startWrite stopped holding responses).
+        if (!dispatchNextRequest(connection)) {
+            readDeadline(connection);
+        }
+    }
+
+    /**
+     * Sets the deadline of a connection that waits for (the rest of) a request: IDLE before
+     * its first byte, then HEADER, then BODY. A phase's deadline runs from when it started.
+     * Precondition: connection is not busy.
+     * Postcondition: deadline is on the phase the buffered bytes are in.
+     */
+    private void readDeadline(NioConnection connection) {
+        if (!connection.channel.isOpen()) {
+            // Closed while dispatching (the pool is shutting down).
+            return;
+        }
+        int phase = connection.parser.inBody() ? Deadlines.BODY
+                : connection.readBuffer.available() > 0 ? Deadlines.HEADER : Deadlines.IDLE;
+        if (phase != connection.deadlinePhase) {
+            setDeadline(connection, phase);
+        }
+    }
+
+    /**
+     * Puts a connection's deadline on a phase.
+     * @param phase Deadlines phase, or -1 for none.
+     * Precondition: called on the loop thread.
+     * Postcondition: deadline is set (or cancelled for -1 or a phase without limit).
+     */
+    private void setDeadline(NioConnection connection, int phase) {
+        connection.deadlinePhase = phase;
+        long millis = phase == -1 ? 0 : Deadlines.millis(phase);
+        if (millis > 0) {
+            wheel.schedule(connection.deadline, millis);
+        } else {
+            wheel.cancel(connection.deadline);
+        }
+    }
+
+    /**
+     * Called by the wheel when a connection's deadline passes.
+     * Precondition: called on the loop thread (from wheel.expire()).
+     * Postcondition: a connection in the middle of a request gets 408 Request Timeout
+     *                (and is closed after it), any other one is closed.
+     */
+    void deadlinePassed(NioConnection connection) {
+        int phase = connection.deadlinePhase;
+        Metrics.recordTimeout(phase);
+        if (Log.isDebug()) {
+            Log.debug("NIO event loop " + loopNumber + " connection timed out (" + Deadlines.name(phase) + ").");
+        }
+
+        if ((phase == Deadlines.HEADER || phase == Deadlines.BODY) && !connection.busy) {
+            dispatchError(connection, "408 Request Timeout");
+            return;
+        }
+        close(connection);
+    }
+
+    /**
+     * Hands a connection to a worker to answer an error without reading any more of it.
+     * @param status status line, e.g. "413 Payload Too Large".
+     * Precondition: connection is not busy.
+     * Postcondition: connection is busy and closed once the error response is written
+     *                (closed right away if the pool is shutting down).
+     */
+    private void dispatchError(NioConnection connection, String status) {
+        connection.busy = true;
+        connection.workerOwnsBuffer = true;
+        connection.key.interestOps(0);
+        setDeadline(connection, -1);
+        try {
+            workers.execute(() -> NioMainThread.answerError(connection, status));
+        } catch (RejectedExecutionException e) {
+            // Pool is shutting down.
+            connection.workerOwnsBuffer = false;
+            close(connection);
+        }
+    }
+
+    /**
+     * Closes the connections waiting for their next request. Used while the server stops:
+     * busy connections finish their response first (and are closed after it), connections
+     * that haven't sent a whole first request yet are still answered.
+     * Precondition: called on the loop thread.
+     * Postcondition: idle keep-alive connections have been closed.
+     */
+    private void closeWaitingConnections() {
+        for (SelectionKey key : selector.keys()) {
+            NioConnection connection = (NioConnection) key.attachment();
+            if (connection != null && !connection.busy && connection.requestCount > 0
+                    && connection.readBuffer.available() == 0) {
+                close(connection);
+            }
+        }
+    }
+
+    /**
+     * Closes a connection.
+     * Precondition:
+     * Postcondition: channel is closed and removed from the selector, pending response freed.
+     */
+    private void close(NioConnection connection) {
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+        wheel.cancel(connection.deadline);
+
+        // Free whatever an unfinished response still holds (open files).
+        if (connection.writeQueue != null) {
+            for (NioResponseStream.Segment segment : connection.writeQueue) {
+                segment.release();
+            }
+            connection.writeQueue = null;
+        }
+        // The read buffer goes back to the pool, unless a worker is still reading a request in
+        // it (then startWrite() closes the connection again once the response comes back).
+        if (!connection.workerOwnsBuffer) {
+            connection.readBuffer.release();
+        }
+        if (!connection.channel.isOpen()) {
+            // Already closed (a cancelled key can still show up in selector.keys()).
+            return;
+        }
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            Log.error("Error closing socket! Message: " + e.getMessage());
+        }
+        connections--;
+        Metrics.connectionClosed();
+    }
+
+    @Override
+    public void run() {
+        Log.info("NIO event loop " + loopNumber + " has been initialized!");
+        BufferPool.cacheOnThisThread();
+
+        while (true) {
+            long timeout = SELECT_TIMEOUT_MILLIS;
+            if (die.get()) {
+                // Stopping: wait only for the connections that still have a request to finish.
+                closeWaitingConnections();
+                long left = NioMainThread.drainDeadlineNanos - System.nanoTime();
+                if (connections == 0) {
+                    break;
+                }
+                if (left <= 0) {
+                    Log.warn("NIO event loop " + loopNumber + " cutting off " + connections + " connection(s) at the drain deadline.");
+                    break;
+                }
+                timeout = Math.min(timeout, TimeUnit.NANOSECONDS.toMillis(left) + 1);
+            }
+            long nextTick = wheel.millisToNextTick(System.nanoTime());
+            if (nextTick != -1) {
+                timeout = Math.min(timeout, nextTick);
+            }
+
+            try {
+                selector.select(timeout);
+            } catch (IOException e) {
+                Log.error("Selector exception in NIO event loop " + loopNumber + "! Message: " + e.getMessage());
+                break;
+            }
+
+            // Run work handed over by other threads.
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+
+            for (SelectionKey key : selector.selectedKeys()) {
+                NioConnection connection = (NioConnection) key.attachment();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isReadable()) {
+                    read(connection);
+                } else if (key.isWritable()) {
+                    write(connection);
+                }
+            }
+            selector.selectedKeys().clear();
+
+            // Connections whose deadline passed.
+            wheel.expire(System.nanoTime());
+        }
+
+        // Close every connection that's left.
+        for (SelectionKey key : selector.keys()) {
+            close((NioConnection) key.attachment());
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.error("Error closing selector! Message: " + e.getMessage());
+        }
+
+        Log.info("NIO event loop " + loopNumber + " has killed itself!");
+    }
+}
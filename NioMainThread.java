@@ -0,0 +1,200 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * NioMainThread.java
+ *
+ * Main thread of the NIO engine (-Dwebserver.engine=nio). Accepts connections on a
+ * non-blocking ServerSocketChannel and spreads them over the event loops. The event loops
+ * do the socket I/O, so the worker pool only ever sees whole requests and a slow or idle
+ * client never ties up a worker.
+ */
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class NioMainThread implements Runnable {
+
+    // Server socket channel.
+    public static ServerSocketChannel ssc;
+    // Used to kill server gracefully.
+    public static AtomicBoolean die;
+    // When a stopping server gives up on the connections still open (System.nanoTime()).
+    public static volatile long drainDeadlineNanos;
+
+    // Selector of the accept loop and the event loops (woken up when the server stops).
+    private volatile Selector acceptSelector;
+    private volatile NioEventLoop[] loops;
+
+    // Used to number the workers of the pool.
+    private static final int[] workerNumber = {1};
+
+    // Every pool thread answers requests with its own Worker (workers keep per-request state).
+    private static final ThreadLocal<Worker> worker = ThreadLocal.withInitial(() -> {
+        synchronized (workerNumber) {
+            return new Worker(null, NioMainThread.die, workerNumber);
+        }
+    });
+
+    // Constructor.
+    public NioMainThread(ServerSocketChannel ssc, AtomicBoolean die) {
+        NioMainThread.ssc = ssc;
+        NioMainThread.die = die;
+    }
+
+    /**
+     * Answers a request read by an event loop. Runs on a worker pool thread.
+     * @param connection connection the request came in on.
+     * @param request whole request (points into the connection's buffer).
+     * Precondition: the event loop doesn't touch the connection until the response is submitted.
+     * Postcondition: response has been handed back to the event loop of the connection.
+     */
+    static void answer(NioConnection connection, HttpRequest request) {
+        NioResponseStream out = new NioResponseStream(connection);
+
+        Worker answering = worker.get();
+        if (Log.accessEnabled() || RateLimiter.enabled()) {
+            answering.setClientAddress(connection.channel.socket().getInetAddress());
+        }
+        boolean keepAlive = answering.answerParsedRequest(request, connection.requestCount, out);
+
+        connection.loop.submitResponse(connection, out.segments(), keepAlive);
+    }
+
+    /**
+     * Answers a request the parser rejected. Runs on a worker pool thread.
+     * @param connection connection the request came in on.
+     * @param status status line, e.g. "400 Bad Request".
+     * Precondition:
+     * Postcondition: error response has been handed to the event loop, which then closes the connection.
+     */
+    static void answerError(NioConnection connection, String status) {
+        NioResponseStream out = new NioResponseStream(connection);
+
+        worker.get().answerParseError(status, out);
+
+        connection.loop.submitResponse(connection, out.segments(), false);
+    }
+
+    /**
+     * Starts stopping the engine.
+     * @param deadlineNanos System.nanoTime() by which the open connections have to be done.
+     * Precondition:
+     * Postcondition: die is set and every loop is woken up: accepting stops, event loops close
+     *                their idle connections and finish the busy ones, then run() returns.
+     */
+    public void stop(long deadlineNanos) {
+        drainDeadlineNanos = deadlineNanos;
+        die.set(true);
+
+        Selector selector = acceptSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        NioEventLoop[] started = loops;
+        if (started != null) {
+            for (NioEventLoop loop : started) {
+                loop.wakeup();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        Log.info("NIO main thread has been initialized!");
+
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        // Worker pool, one thread per core (same as the blocking engine). Its threads keep
+        // pooled buffers of their own.
+        ExecutorService workers = Executors.newFixedThreadPool(cores, task -> new Thread(() -> {
+            BufferPool.cacheOnThisThread();
+            task.run();
+        }));
+
+        // Start the event loops.
+        int loopCount = Math.max(1, ServerConfig.nioEventLoops);
+        NioEventLoop[] loops = new NioEventLoop[loopCount];
+        Thread[] loopThreads = new Thread[loopCount];
+
+        Selector acceptSelector = null;
+        try {
+            for (int i = 0; i < loopCount; i++) {
+                loops[i] = new NioEventLoop(workers, die, i + 1);
+                loopThreads[i] = new Thread(loops[i], "nio-event-loop-" + (i + 1));
+                loopThreads[i].start();
+            }
+            this.loops = loops;
+
+            ssc.configureBlocking(false);
+            acceptSelector = Selector.open();
+            ssc.register(acceptSelector, SelectionKey.OP_ACCEPT);
+            this.acceptSelector = acceptSelector;
+        } catch (IOException e) {
+            Log.error("Error starting NIO engine! Message: " + e.getMessage());
+            die.set(true);
+        }
+
+        int nextLoop = 0;
+        while (!die.get()) {
+            try {
+                // Wait for connections (stop() wakes it up to die).
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+
+                // Accept every pending connection, round robin over the loops.
+                SocketChannel channel;
+                while ((channel = ssc.accept()) != null) {
+                    Metrics.connectionAccepted();
+                    // Clients opening connections faster than their rate limit get 429
+                    // (answered while the channel is still blocking).
+                    if (!RateLimiter.admit(channel.socket())) {
+                        continue;
+                    }
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    loops[nextLoop].addConnection(channel);
+                    nextLoop = (nextLoop + 1) % loopCount;
+                }
+            } catch (Exception e) {
+                if (!die.get()) {
+                    Log.warn("Socket exception NioMainThread: " + e.getMessage());
+                }
+            }
+        }
+
+        try {
+            if (acceptSelector != null) {
+                acceptSelector.close();
+            }
+        } catch (IOException e) {
+            Log.error("Error closing selector! Message: " + e.getMessage());
+        }
+
+        // Event loops exit once their connections are done (or at the drain deadline), then
+        // the pool has nothing left to answer.
+        try {
+            for (Thread thread : loopThreads) {
+                if (thread != null) {
+                    // Loops give up at the deadline on their own, a second more is plenty.
+                    long left = Math.max(0, drainDeadlineNanos - System.nanoTime()) + TimeUnit.SECONDS.toNanos(1);
+                    TimeUnit.NANOSECONDS.timedJoin(thread, left);
+                }
+            }
+            workers.shutdown();
+            if (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Log.error("Interrupted while waiting for event loops to finish! Message: " + e.getMessage());
+        }
+
+        Log.info("NIO main thread has killed itself!");
+    }
+}
@@ -0,0 +1,275 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * NioResponseStream.java
+ *
+ * ResponseStream of the NIO engine. A worker can't write to the (non-blocking) channel
+ * itself, so the response is recorded as a list of segments (bytes or file regions) that
+ * the event loop writes out when the socket has room. Written bytes are collected in pooled
+ * direct buffers, which the event loop gives back once they are sent.
+ *
+ * A big response (a chunked body of any length) is handed to the event loop in parts while
+ * the worker is still writing it, so it starts leaving early. At most MAX_QUEUED_SEGMENTS
+ * pooled buffers of a response wait to be sent: a worker that gets that far ahead of the
+ * client waits for the event loop, and a write fails once the connection is closed.
+ */
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Semaphore;
+
+public class NioResponseStream extends ResponseStream {
+
+    // Most buffers handed to one gathering write.
+    static final int MAX_GATHER = 64;
+    // Size of the pooled buffers written bytes are collected in.
+    private static final int SEGMENT_SIZE = 16 * 1024;
+    // Most pooled buffers of a response that may wait to be sent (256 KB).
+    private static final int MAX_QUEUED_SEGMENTS = 16;
+    // Full buffers collected before they are handed to the event loop (64 KB).
+    private static final int HANDOFF_SEGMENTS = 4;
+
+    // Connection the response is for.
+    private final NioConnection connection;
+    // One permit per pooled buffer that may still be taken; the event loop gives them back
+    // as the buffers are sent (or dropped with the connection).
+    private final Semaphore room = new Semaphore(MAX_QUEUED_SEGMENTS);
+
+    // Bytes written since the last segment was cut (null until something is written).
+    private ByteBuffer pending;
+    // Segments of the response not handed to the event loop yet, in order.
+    private ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    // Full pooled buffers in segments.
+    private int fullSegments = 0;
+
+    // Constructor.
+    public NioResponseStream(NioConnection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (pending == null) {
+            takePendingBuffer();
+        }
+        pending.put((byte) b);
+        if (!pending.hasRemaining()) {
+            cutFullBuffer();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (pending == null) {
+                takePendingBuffer();
+            }
+            int n = Math.min(len, pending.remaining());
+            pending.put(b, off, n);
+            off += n;
+            len -= n;
+            if (!pending.hasRemaining()) {
+                cutFullBuffer();
+            }
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) {
+        cutPendingBytes();
+        segments.add(new BufferSegment(buffer, null));
+    }
+
+    @Override
+    public void transferFrom(FileChannel file, long position, long count) {
+        cutPendingBytes();
+        segments.add(new FileSegment(file, position, count));
+    }
+
+    /**
+     * Gives the rest of the response to the event loop.
+     * Precondition: worker is done writing.
+     * Postcondition: returns the segments not handed over yet, in order.
+     */
+    ArrayDeque<Segment> segments() {
+        cutPendingBytes();
+        return segments;
+    }
+
+    // Turns the bytes written so far into a segment.
+    private void cutPendingBytes() {
+        if (pending != null) {
+            pending.flip();
+            segments.add(new BufferSegment(pending, room));
+            pending = null;
+        }
+    }
+
+    // Cuts a full buffer, and hands the response so far to the event loop every few of them.
+    private void cutFullBuffer() {
+        cutPendingBytes();
+        if (++fullSegments == HANDOFF_SEGMENTS) {
+            handOff();
+        }
+    }
+
+    // Gives the segments recorded so far to the event loop (the response isn't done yet).
+    private void handOff() {
+        if (!segments.isEmpty()) {
+            connection.loop.submitPart(connection, segments);
+            segments = new ArrayDeque<Segment>();
+        }
+        fullSegments = 0;
+    }
+
+    // Takes the buffer the next bytes go in, once the client has taken enough of the response.
+    private void takePendingBuffer() throws IOException {
+        if (!room.tryAcquire()) {
+            // Client is behind: what was written has to leave before more is taken.
+            handOff();
+            try {
+                room.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the client to read the response.");
+            }
+        }
+        if (!connection.channel.isOpen()) {
+            room.release();
+            throw new IOException("Connection was closed before the response was sent.");
+        }
+        pending = BufferPool.DIRECT.acquire(SEGMENT_SIZE);
+    }
+
+    /**
+     * Writes the byte segments at the front of a queue with one gathering write, so the
+     * responses of pipelined requests (queued back to back) leave in a single system call.
+     * @param queue segments to write, starting with a BufferSegment.
+     * @param channel non-blocking channel of the client.
+     * @param gather scratch array of MAX_GATHER buffers (reused by the event loop).
+     * Precondition: queue.peek() is a BufferSegment.
+     * Postcondition: fully written segments have been removed from the queue. Returns false
+     *                if the socket ran out of room.
+     */
+    static boolean writeBufferSegments(ArrayDeque<Segment> queue, SocketChannel channel, ByteBuffer[] gather)
+            throws IOException {
+        int n = 0;
+        for (Segment segment : queue) {
+            if (!(segment instanceof BufferSegment) || n == gather.length) {
+                break;
+            }
+            gather[n++] = ((BufferSegment) segment).buffer;
+        }
+
+        if (n == 1) {
+            channel.write(gather[0]);
+        } else {
+            channel.write(gather, 0, n);
+        }
+
+        boolean done = true;
+        for (int i = 0; i < n; i++) {
+            if (done && gather[i].hasRemaining()) {
+                // Socket is full.
+                done = false;
+            } else if (done) {
+                queue.poll().release();
+            }
+            gather[i] = null;
+        }
+        return done;
+    }
+
+    /**
+     * Part of a response, written by the event loop.
+     */
+    abstract static class Segment {
+
+        /**
+         * Writes as much of the segment as the channel takes.
+         * Precondition: channel is non-blocking.
+         * Postcondition: returns true once the whole segment has been written.
+         */
+        abstract boolean writeTo(SocketChannel channel) throws IOException;
+
+        /**
+         * Frees what the segment holds (called when done or when the connection dies).
+         */
+        void release() {
+        }
+    }
+
+    /**
+     * Bytes in a buffer.
+     */
+    static class BufferSegment extends Segment {
+        private final ByteBuffer buffer;
+        // Permits of the response a pooled buffer was taken under. Pooled buffers go back to
+        // BufferPool.DIRECT when done, the others (cached files) have null.
+        private final Semaphore room;
+
+        BufferSegment(ByteBuffer buffer, Semaphore room) {
+            this.buffer = buffer;
+            this.room = room;
+        }
+
+        @Override
+        boolean writeTo(SocketChannel channel) throws IOException {
+            channel.write(buffer);
+            return !buffer.hasRemaining();
+        }
+
+        @Override
+        void release() {
+            if (room != null) {
+                BufferPool.DIRECT.release(buffer);
+                room.release();
+            }
+        }
+    }
+
+    /**
+     * Region of a file, sent with FileChannel.transferTo so it never passes through the heap.
+     */
+    static class FileSegment extends Segment {
+        private final FileChannel file;
+        private long position;
+        private long remaining;
+
+        FileSegment(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        @Override
+        boolean writeTo(SocketChannel channel) throws IOException {
+            while (remaining > 0) {
+                long sent = file.transferTo(position, remaining, channel);
+                if (sent <= 0) {
+                    if (position >= file.size()) {
+                        throw new IOException("File shrank while it was being sent.");
+                    }
+                    // Socket buffer is full.
+                    return false;
+                }
+                position += sent;
+                remaining -= sent;
+            }
+            return true;
+        }
+
+        @Override
+        void release() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.error("Error closing file! Message: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * QueuedSocket.java
+ *
+ * Accepted connection waiting in the accept queue, with the time it was queued
+ * (so workers can measure how long connections wait for them).
+ */
+import java.net.Socket;
+
+public class QueuedSocket {
+
+    // Queued once per worker when the server stops: a worker taking it exits.
+    static final QueuedSocket STOP = new QueuedSocket(null);
+
+    final Socket sock;
+    // System.nanoTime() when the connection was put in the queue.
+    final long queuedNanos;
+
+    // Constructor.
+    QueuedSocket(Socket sock) {
+        this.sock = sock;
+        this.queuedNanos = System.nanoTime();
+    }
+}
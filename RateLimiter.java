@@ -0,0 +1,296 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * RateLimiter.java
+ *
+ * Per-client rate limit: one token bucket per client address, each allowing `rate` requests
+ * (or connections) per second with bursts of up to `burst`. A client that runs out gets
+ * 429 Too Many Requests with a Retry-After header, and its connection is closed so it has
+ * to come back through the connection limit.
+ *
+ * A bucket is kept as one long, the time its next token comes back if it is empty
+ * ("theoretical arrival time", the GCRA form of a token bucket): taking a token is a single
+ * compare-and-set, and refilling is worked out from the clock when the bucket is next used.
+ * Buckets live in an open addressing table keyed by the client's address as a long (the IPv4
+ * address, or the /64 prefix of an IPv6 one), so looking one up allocates nothing and takes
+ * no lock. Each call also looks at a couple of random slots and frees the ones that have been
+ * full for a while (a full bucket is the same as no bucket), so the table keeps room for new
+ * clients. If it is full anyway, new clients aren't limited (and counted as overflows).
+ *
+ * Limits: CONNECTIONS (at accept time, webserver.rateLimit.connectionsPerSecond), REQUESTS
+ * (every request, webserver.rateLimit.requestsPerSecond) and per route
+ * (webserver.rateLimit.routes, see Router.limitRoutes()).
+ */
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class RateLimiter {
+
+    // Keys of free slots and of slots whose bucket was evicted.
+    private static final long EMPTY = 0;
+    private static final long EVICTED = -1;
+    // Most slots looked at to find a client.
+    private static final int MAX_PROBES = 32;
+    // Slots looked at for eviction on every call.
+    private static final int SWEEP_SLOTS = 2;
+    // How long a bucket has to have been full before its slot is freed.
+    private static final long IDLE_NANOS = 1000000000L;
+
+    // Zero of the buckets' clock (so a bucket of 0 is a full one).
+    private static final long START_NANOS = System.nanoTime();
+
+    // Every limiter (for <stats> and /metrics).
+    private static final List<RateLimiter> all = new CopyOnWriteArrayList<RateLimiter>();
+
+    // Limit on new connections, and on requests, per client (null if not configured).
+    public static final RateLimiter CONNECTIONS = create("connections",
+            ServerConfig.rateLimitConnectionsPerSecond, ServerConfig.rateLimitConnectionBurst);
+    public static final RateLimiter REQUESTS = create("requests",
+            ServerConfig.rateLimitRequestsPerSecond, ServerConfig.rateLimitRequestBurst);
+
+    private final String name;
+    // Time between two tokens, and how far ahead of the clock a bucket may run (burst - 1 tokens).
+    private final long intervalNanos;
+    private final long toleranceNanos;
+
+    // Client keys, and the bucket of each (next-token time on the buckets' clock).
+    private final AtomicLongArray keys;
+    private final AtomicLongArray buckets;
+    private final int mask;
+
+    // Counters.
+    private final LongAdder limited = new LongAdder();
+    private final LongAdder clients = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+
+    /**
+     * @param name name in <stats> and /metrics.
+     * @param perSecond tokens added per second.
+     * @param burst most tokens a bucket holds.
+     * @param maxClients clients tracked at once (the table has twice as many slots).
+     */
+    public RateLimiter(String name, double perSecond, int burst, int maxClients) {
+        this.name = name;
+        this.intervalNanos = Math.max(1, (long) (1e9 / perSecond));
+        this.toleranceNanos = intervalNanos * (Math.max(1, burst) - 1);
+        int slots = Integer.highestOneBit(Math.max(2, 2 * maxClients - 1)) << 1;
+        this.keys = new AtomicLongArray(slots);
+        this.buckets = new AtomicLongArray(slots);
+        this.mask = slots - 1;
+        all.add(this);
+    }
+
+    /**
+     * Makes a limiter with the table size from ServerConfig.
+     * Precondition:
+     * Postcondition: returns null if perSecond isn't positive (no limit).
+     */
+    public static RateLimiter create(String name, double perSecond, int burst) {
+        if (perSecond <= 0) {
+            return null;
+        }
+        return new RateLimiter(name, perSecond, burst, ServerConfig.rateLimitMaxClients);
+    }
+
+    /**
+     * Reads a "<rate>/<burst>" limit, e.g. "10/20" (burst defaults to the rate, at least 1).
+     * Precondition:
+     * Postcondition: returns the limiter, or null (with a warning) if spec can't be read.
+     */
+    public static RateLimiter parse(String name, String spec) {
+        try {
+            int slash = spec.indexOf('/');
+            double perSecond = Double.parseDouble(slash == -1 ? spec.trim() : spec.substring(0, slash).trim());
+            int burst = slash == -1 ? (int) Math.ceil(perSecond) : Integer.parseInt(spec.substring(slash + 1).trim());
+            if (perSecond > 0) {
+                return create(name, perSecond, burst);
+            }
+        } catch (NumberFormatException e) {
+            // Warned below.
+        }
+        Log.warn("Bad rate limit for " + name + " (want <per second>/<burst>): " + spec);
+        return null;
+    }
+
+    /**
+     * Whether any limit is configured (engines only look up client addresses then).
+     */
+    public static boolean enabled() {
+        return !all.isEmpty();
+    }
+
+    /**
+     * Key of a client: its IPv4 address, or the /64 prefix of its IPv6 address (the part a
+     * single client usually can't choose).
+     * Precondition:
+     * Postcondition: returns a key that is never EMPTY or EVICTED.
+     */
+    public static long key(InetAddress address) {
+        if (address == null) {
+            return 1;
+        }
+        byte[] bytes = address.getAddress();
+        long key = 0;
+        for (int i = 0; i < Math.min(8, bytes.length); i++) {
+            key = key << 8 | (bytes[i] & 0xff);
+        }
+        return key == EMPTY || key == EVICTED ? 1 : key;
+    }
+
+    /**
+     * Applies the connection limit to a newly accepted connection.
+     * @param sock accepted socket (still in blocking mode).
+     * Precondition: called by an acceptor thread, before the connection is queued.
+     * Postcondition: returns true if it may go on. Otherwise it has been answered with 429
+     *                (without reading the request) and closed.
+     */
+    public static boolean admit(Socket sock) {
+        if (CONNECTIONS == null) {
+            return true;
+        }
+        long wait = CONNECTIONS.tryAcquire(key(sock.getInetAddress()));
+        if (wait == 0) {
+            return true;
+        }
+        if (Log.isDebug()) {
+            Log.debug("Connection from " + sock.getInetAddress().getHostAddress() + " rate limited.");
+        }
+        Metrics.recordStatus("429");
+        AdmissionControl.refuse(sock, "429 Too Many Requests", retryAfterSeconds(wait));
+        return false;
+    }
+
+    /**
+     * Takes a token from a client's bucket.
+     * @param key client key (see key()).
+     * Precondition:
+     * Postcondition: returns 0 if the client may go on, otherwise the nanoseconds until
+     *                its bucket has a token again.
+     */
+    public long tryAcquire(long key) {
+        long now = System.nanoTime() - START_NANOS;
+        sweep(now);
+
+        int slot = slot(key);
+        if (slot == -1) {
+            overflows.increment();
+            return 0;
+        }
+        while (true) {
+            long next = buckets.get(slot);
+            long tat = Math.max(next, now);
+            long wait = tat - toleranceNanos - now;
+            if (wait > 0) {
+                limited.increment();
+                return wait;
+            }
+            if (buckets.compareAndSet(slot, next, tat + intervalNanos)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Finds the slot of a client, claiming a free one for a new client.
+     * Precondition: key is neither EMPTY nor EVICTED.
+     * Postcondition: returns the slot, or -1 if the table has no room near the key's place.
+     */
+    private int slot(long key) {
+        retry:
+        while (true) {
+            int i = hash(key) & mask;
+            int evictedSlot = -1;
+            for (int probes = 0; probes < MAX_PROBES; probes++) {
+                long current = keys.get(i);
+                if (current == key) {
+                    return i;
+                }
+                if (current == EMPTY) {
+                    // Not in the table: reuse the first freed slot on the way, or this one.
+                    int claim = evictedSlot != -1 ? evictedSlot : i;
+                    if (keys.compareAndSet(claim, evictedSlot != -1 ? EVICTED : EMPTY, key)) {
+                        clients.increment();
+                        return claim;
+                    }
+                    // Somebody else took it (maybe for the same client): look again.
+                    continue retry;
+                }
+                if (current == EVICTED && evictedSlot == -1) {
+                    evictedSlot = i;
+                }
+                i = (i + 1) & mask;
+            }
+            if (evictedSlot != -1) {
+                if (keys.compareAndSet(evictedSlot, EVICTED, key)) {
+                    clients.increment();
+                    return evictedSlot;
+                }
+                continue;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Frees the slots of a few random clients whose bucket has been full for IDLE_NANOS.
+     * A request racing with the eviction of its own bucket gets a full bucket, which is
+     * what it would have found anyway.
+     */
+    private void sweep(long now) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int n = 0; n < SWEEP_SLOTS; n++) {
+            int i = random.nextInt(mask + 1);
+            long key = keys.get(i);
+            if (key != EMPTY && key != EVICTED && buckets.get(i) < now - IDLE_NANOS
+                    && keys.compareAndSet(i, key, EVICTED)) {
+                clients.decrement();
+                evicted.increment();
+            }
+        }
+    }
+
+    // Spreads client keys over the table (consecutive addresses are common).
+    private static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ key >>> 32);
+    }
+
+    /**
+     * Retry-After value for a wait.
+     * Precondition:
+     * Postcondition: returns whole seconds, at least 1.
+     */
+    public static long retryAfterSeconds(long waitNanos) {
+        return Math.max(1, (waitNanos + 999999999L) / 1000000000L);
+    }
+
+    // Every limiter configured.
+    public static List<RateLimiter> all() {
+        return all;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    // Requests (or connections) turned away.
+    public long limited() {
+        return limited.sum();
+    }
+
+    /**
+     * One line summary of the limiter, for the console.
+     */
+    public String stats() {
+        return "Rate limit (" + name + ", " + 1e9 / intervalNanos + "/s burst " + (toleranceNanos / intervalNanos + 1)
+                + "): clients=" + clients.sum() + "/" + (mask + 1) / 2 + " limited=" + limited() + " evicted=" + evicted.sum()
+                + " overflows=" + overflows.sum();
+    }
+}
@@ -0,0 +1,147 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * RequestBuffer.java
+ *
+ * Reusable byte buffer holding what has been read from a connection but not consumed yet.
+ * The unconsumed bytes are data[start, end). Parsed requests point straight into data, so
+ * nothing is copied out of it.
+ *
+ * The array comes from BufferPool.HEAP when the first bytes are read and goes back with
+ * release(), so a connection that waits for its next request holds no buffer. It grows
+ * (up to webserver.maxRequestBytes) until it holds a whole request, body included.
+ */
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+public class RequestBuffer {
+
+    // Nothing read yet (no pooled buffer).
+    private static final byte[] EMPTY = new byte[0];
+
+    // Bytes read from the connection.
+    byte[] data = EMPTY;
+    // First unconsumed byte.
+    int start = 0;
+    // One past the last byte read.
+    int end = 0;
+
+    // Pooled buffer whose array is data (null while none is held), also used for channel reads.
+    private ByteBuffer view;
+    // Size of the first buffer taken.
+    private final int initialSize;
+
+    // Constructor.
+    public RequestBuffer(int initialSize) {
+        this.initialSize = initialSize;
+    }
+
+    /**
+     * Number of bytes read but not consumed yet.
+     */
+    public int available() {
+        return end - start;
+    }
+
+    /**
+     * Marks bytes as used (the request they belong to has been answered).
+     * @param count number of bytes from start.
+     * Precondition: count <= available().
+     * Postcondition: start moved forward (buffer rewound if it became empty).
+     */
+    public void consume(int count) {
+        start += count;
+        if (start == end) {
+            start = 0;
+            end = 0;
+        }
+    }
+
+    /**
+     * Forgets everything in the buffer (used when the buffer moves to a new connection).
+     */
+    public void clear() {
+        start = 0;
+        end = 0;
+    }
+
+    /**
+     * Gives the array back to the pool.
+     * Precondition: nothing points into data any more (unconsumed bytes are dropped).
+     * Postcondition: buffer is empty and holds no array (the next makeRoom() takes one).
+     */
+    public void release() {
+        clear();
+        if (view != null) {
+            BufferPool.HEAP.release(view);
+            view = null;
+            data = EMPTY;
+        }
+    }
+
+    /**
+     * Makes room after end for more bytes, moving unconsumed bytes to the front or growing
+     * the array when needed.
+     * @param maxSize size the array may grow to.
+     * Precondition:
+     * Postcondition: returns false if the unconsumed bytes already fill maxSize bytes.
+     */
+    public boolean makeRoom(int maxSize) {
+        if (view == null) {
+            view = BufferPool.HEAP.acquire(Math.min(initialSize, maxSize));
+            data = view.array();
+            return true;
+        }
+        if (end < data.length) {
+            return true;
+        }
+        if (start > 0) {
+            // Slide the unconsumed bytes to the front. (Parsed offsets are relative to start.)
+            System.arraycopy(data, start, data, 0, end - start);
+            end -= start;
+            start = 0;
+            return true;
+        }
+        if (data.length >= maxSize) {
+            return false;
+        }
+
+        ByteBuffer bigger = BufferPool.HEAP.acquire((int) Math.min((long) data.length * 2, maxSize));
+        System.arraycopy(data, 0, bigger.array(), 0, end);
+        BufferPool.HEAP.release(view);
+        view = bigger;
+        data = bigger.array();
+        return true;
+    }
+
+    /**
+     * Reads from a blocking stream into the free space.
+     * Precondition: makeRoom() returned true.
+     * Postcondition: returns the number of bytes read, -1 at end of stream.
+     */
+    public int readFrom(InputStream in) throws IOException {
+        int read = in.read(data, end, data.length - end);
+        if (read > 0) {
+            end += read;
+        }
+        return read;
+    }
+
+    /**
+     * Reads from a channel into the free space.
+     * Precondition: makeRoom() returned true.
+     * Postcondition: returns the number of bytes read (0 if none were ready), -1 at end of stream.
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        view.limit(data.length);
+        view.position(end);
+        int read = channel.read(view);
+        if (read > 0) {
+            end += read;
+        }
+        return read;
+    }
+}
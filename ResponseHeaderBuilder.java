@@ -0,0 +1,135 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * ResponseHeaderBuilder.java
+ *
+ * Reusable buffer a worker builds the status line and headers of a response in, so the
+ * whole header block goes to the socket with one write. Status lines and headers that
+ * never change are encoded once.
+ */
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ResponseHeaderBuilder {
+
+    // Headers that are the same on every response.
+    public static final byte[] SERVER = ascii("Server: Marco's HTTP server.\r\n");
+    public static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+    public static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    public static final byte[] CRLF = ascii("\r\n");
+
+    // Encoded status lines ("HTTP/1.1 200 OK\r\n"), filled on first use of each status.
+    private static final ConcurrentHashMap<String, byte[]> STATUS_LINES = new ConcurrentHashMap<String, byte[]>();
+
+    static {
+        for (String status : new String[] {"200 OK", "201 Created", "206 Partial Content", "301 Moved Permanently", "304 Not Modified", "400 Bad Request", "403 Forbidden",
+                "404 Not Found", "405 Method Not Allowed", "408 Request Timeout", "413 Payload Too Large", "416 Range Not Satisfiable", "429 Too Many Requests",
+                "431 Request Header Fields Too Large", "500 Internal Server Error", "501 Not Implemented",
+                "503 Service Unavailable", "505 HTTP Version Not Supported"}) {
+            statusLine(status);
+        }
+    }
+
+    // Header bytes built so far.
+    private byte[] buf = new byte[512];
+    private int length = 0;
+
+    /**
+     * Encoded status line of a status.
+     * @param status status code and reason, e.g. "200 OK".
+     * Precondition:
+     * Postcondition: returns "HTTP/1.1 <status>\r\n" encoded, shared (don't modify it).
+     */
+    public static byte[] statusLine(String status) {
+        byte[] line = STATUS_LINES.get(status);
+        if (line == null) {
+            line = ascii("HTTP/1.1 " + status + "\r\n");
+            STATUS_LINES.putIfAbsent(status, line);
+        }
+        return line;
+    }
+
+    // Encodes a string as ASCII (ISO-8859-1, header values are bytes on the wire).
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Starts a new header block.
+     */
+    public ResponseHeaderBuilder reset() {
+        length = 0;
+        return this;
+    }
+
+    public ResponseHeaderBuilder append(byte[] bytes) {
+        ensureRoom(bytes.length);
+        System.arraycopy(bytes, 0, buf, length, bytes.length);
+        length += bytes.length;
+        return this;
+    }
+
+    /**
+     * Appends a string, one byte per char (no intermediate byte[]).
+     */
+    public ResponseHeaderBuilder append(String s) {
+        int n = s.length();
+        ensureRoom(n);
+        for (int i = 0; i < n; i++) {
+            buf[length++] = (byte) s.charAt(i);
+        }
+        return this;
+    }
+
+    /**
+     * Appends a number in decimal (no intermediate String).
+     */
+    public ResponseHeaderBuilder append(long value) {
+        if (value == Long.MIN_VALUE) {
+            return append(Long.toString(value));
+        }
+        ensureRoom(20);
+        if (value < 0) {
+            buf[length++] = '-';
+            value = -value;
+        }
+
+        // Write digits backwards, then reverse them.
+        int start = length;
+        do {
+            buf[length++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            byte tmp = buf[i];
+            buf[i] = buf[j];
+            buf[j] = tmp;
+        }
+        return this;
+    }
+
+    /**
+     * Appends a whole "Name: value\r\n" line.
+     */
+    public ResponseHeaderBuilder header(String name, String value) {
+        return append(name).append(": ").append(value).append(CRLF);
+    }
+
+    public byte[] array() {
+        return buf;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    // Grows the buffer if it can't take count more bytes.
+    private void ensureRoom(int count) {
+        if (length + count > buf.length) {
+            byte[] bigger = new byte[Math.max(buf.length * 2, length + count)];
+            System.arraycopy(buf, 0, bigger, 0, length);
+            buf = bigger;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * ResponseStream.java
+ *
+ * Output stream a Worker writes its HTTP response to. Besides normal bytes it can send
+ * part of a file, which each engine does without copying the file through the Java heap.
+ */
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public abstract class ResponseStream extends OutputStream {
+
+    /**
+     * Sends part of a file as response bytes (right after whatever was written before).
+     * @param file open file, the stream takes ownership and closes it when done.
+     * @param position offset in the file of the first byte to send.
+     * @param count number of bytes to send.
+     * Precondition: file has at least position + count bytes.
+     * Postcondition: file bytes have been sent (or scheduled to be sent) in order.
+     */
+    public abstract void transferFrom(FileChannel file, long position, long count) throws IOException;
+
+    /**
+     * Sends the remaining bytes of a buffer (e.g. a cached file in a direct buffer).
+     * @param buffer bytes to send, the stream may keep a reference until they're written.
+     * Precondition: nobody changes the buffer's contents while it's being sent.
+     * Postcondition: bytes have been sent (or scheduled to be sent) in order.
+     */
+    public abstract void write(ByteBuffer buffer) throws IOException;
+
+    @Override
+    public abstract void write(int b) throws IOException;
+
+    @Override
+    public abstract void write(byte[] b, int off, int len) throws IOException;
+}
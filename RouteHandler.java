@@ -0,0 +1,22 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * RouteHandler.java
+ *
+ * Handles requests for one path and method, registered in a Router.
+ * Worker methods taking (HttpRequest, ResponseStream) can be used directly,
+ * e.g. Worker::handleMultiply.
+ */
+public interface RouteHandler {
+
+    /**
+     * Answers a request.
+     * @param worker worker answering the request (builds headers, holds per-worker state).
+     * @param request parsed request.
+     * @param httpResponse where the response is written.
+     * Precondition: request path and method match the route.
+     * Postcondition: response has been written.
+     */
+    void handle(Worker worker, HttpRequest request, ResponseStream httpResponse);
+}
@@ -0,0 +1,219 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * Router.java
+ *
+ * Route table. Paths are stored in a byte trie, so finding the route of a request walks
+ * the path bytes once (O(path length)) straight out of the request buffer, without making
+ * a String. Each route has one handler per method. Requests for a known path with a
+ * method it doesn't have get 405 with an Allow header, unknown paths go to the fallback
+ * handler (or get 404). Every route has its own Metrics counters, and may have its own
+ * per-client RateLimiter.
+ */
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class Router {
+
+    // Root of the trie (the empty path).
+    private final Node root = new Node();
+    // Handler for paths without a route (null: 404).
+    private RouteHandler fallback;
+    // Counters of requests that went to the fallback, or found nothing at all.
+    private Metrics.RouteMetrics fallbackMetrics;
+    private final Metrics.RouteMetrics notFoundMetrics = Metrics.route("not_found");
+
+    /**
+     * Trie node. Children are kept in small parallel arrays (paths share most of their
+     * bytes, so nodes rarely have more than a few children).
+     */
+    private static class Node {
+        byte[] labels = new byte[0];
+        Node[] children = new Node[0];
+        // Route ending at this node (null if no path ends here).
+        Route route;
+
+        Node child(byte label) {
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] == label) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node addChild(byte label) {
+            Node child = new Node();
+            byte[] newLabels = new byte[labels.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, labels.length);
+            System.arraycopy(children, 0, newChildren, 0, children.length);
+            newLabels[labels.length] = label;
+            newChildren[children.length] = child;
+            labels = newLabels;
+            children = newChildren;
+            return child;
+        }
+    }
+
+    /**
+     * Handlers of one path.
+     */
+    private static class Route {
+        final Metrics.RouteMetrics metrics;
+        // Handler by HttpRequest.methodIndex() (null: method not allowed).
+        final RouteHandler[] handlers = new RouteHandler[HttpRequest.knownMethodCount()];
+        // "Allow: ..." header for 405 responses, rebuilt when a handler is added.
+        List<String> allowHeader;
+        // Per-client limit of the route (null: none).
+        RateLimiter limiter;
+
+        Route(String path) {
+            metrics = Metrics.route(path);
+        }
+
+        void rebuildAllowHeader() {
+            StringBuilder allow = new StringBuilder("Allow: ");
+            boolean first = true;
+            for (int i = 0; i < handlers.length; i++) {
+                if (handlers[i] != null) {
+                    if (!first) {
+                        allow.append(", ");
+                    }
+                    allow.append(HttpRequest.methodName(i));
+                    first = false;
+                }
+            }
+            List<String> headers = new ArrayList<String>();
+            headers.add(allow.toString());
+            allowHeader = headers;
+        }
+    }
+
+    /**
+     * Registers a handler.
+     * @param method HTTP method, e.g. "GET" (must be one of the methods HttpRequest knows).
+     * @param path exact path, without query string, e.g. "/multiply".
+     * @param handler handler for requests with that method and path.
+     * Precondition: router isn't used by workers yet (routes are set up at startup).
+     * Postcondition: requests matching method and path go to handler.
+     */
+    public Router add(String method, String path, RouteHandler handler) {
+        int methodIndex = HttpRequest.knownMethodIndex(method);
+        if (methodIndex == -1) {
+            throw new IllegalArgumentException("Unknown HTTP method: " + method);
+        }
+
+        Node node = root;
+        for (byte label : path.getBytes(StandardCharsets.ISO_8859_1)) {
+            Node child = node.child(label);
+            node = child != null ? child : node.addChild(label);
+        }
+        if (node.route == null) {
+            node.route = new Route(path);
+        }
+        node.route.handlers[methodIndex] = handler;
+        node.route.rebuildAllowHeader();
+        return this;
+    }
+
+    /**
+     * Sets the handler for paths that have no route (e.g. static files).
+     * @param label name the fallback's requests are counted under in /metrics.
+     */
+    public Router setFallback(String label, RouteHandler handler) {
+        this.fallback = handler;
+        this.fallbackMetrics = Metrics.route(label);
+        return this;
+    }
+
+    /**
+     * Sets the rate limits of routes.
+     * @param config limits separated by ';', each "<path>=<per second>/<burst>",
+     *               e.g. "/multiply=10/20;/metrics=1/5".
+     * Precondition: routes have been added, router isn't used by workers yet.
+     * Postcondition: requests to those paths are limited per client (429 over the limit).
+     *                Paths without a route are skipped with a warning.
+     */
+    public Router limitRoutes(String config) {
+        for (String item : config.split(";")) {
+            int eq = item.indexOf('=');
+            if (eq <= 0) {
+                if (!item.trim().isEmpty()) {
+                    Log.warn("Bad route rate limit (want <path>=<per second>/<burst>): " + item);
+                }
+                continue;
+            }
+            String path = item.substring(0, eq).trim();
+            byte[] bytes = path.getBytes(StandardCharsets.ISO_8859_1);
+            Route route = find(bytes, 0, bytes.length);
+            if (route == null) {
+                Log.warn("No route for rate limited path " + path + ".");
+                continue;
+            }
+            route.limiter = RateLimiter.parse(path, item.substring(eq + 1));
+        }
+        return this;
+    }
+
+    /**
+     * Sends a request to its handler (or answers 404/405, or 429 if the client is over the
+     * route's rate limit).
+     * @param worker worker answering the request.
+     * @param request parsed request.
+     * @param httpResponse where the response is written.
+     * Precondition:
+     * Postcondition: response has been written. Returns the counters of the route that answered.
+     */
+    public Metrics.RouteMetrics dispatch(Worker worker, HttpRequest request, ResponseStream httpResponse) {
+        Route route = find(request.pathArray(), request.pathOffset(), request.pathLength());
+
+        if (route == null) {
+            if (fallback != null) {
+                fallback.handle(worker, request, httpResponse);
+                return fallbackMetrics;
+            }
+            // Return a 404 Not Found response code.
+            worker.buildResponseHeader(httpResponse, "404 Not Found", "text/html", 0, null);
+            return notFoundMetrics;
+        }
+
+        int methodIndex = request.methodIndex();
+        RouteHandler handler = methodIndex == -1 ? null : route.handlers[methodIndex];
+        if (handler == null) {
+            // Path exists, wrong method: return a 405 Method Not Allowed response code.
+            worker.buildResponseHeader(httpResponse, "405 Method Not Allowed", "text/html", 0, route.allowHeader);
+            return route.metrics;
+        }
+
+        RateLimiter limiter = route.limiter;
+        if (limiter != null) {
+            long wait = limiter.tryAcquire(worker.clientKey());
+            if (wait > 0) {
+                worker.answerTooManyRequests(httpResponse, wait);
+                return route.metrics;
+            }
+        }
+
+        handler.handle(worker, request, httpResponse);
+        return route.metrics;
+    }
+
+    /**
+     * Walks the trie along a path.
+     * @param buf array holding the path.
+     * @param offset first byte of the path.
+     * @param length number of path bytes.
+     * Precondition:
+     * Postcondition: returns the route of the path, null if there is none.
+     */
+    private Route find(byte[] buf, int offset, int length) {
+        Node node = root;
+        for (int i = offset; i < offset + length && node != null; i++) {
+            node = node.child(buf[i]);
+        }
+        return node == null ? null : node.route;
+    }
+}
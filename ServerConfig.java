@@ -0,0 +1,159 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * ServerConfig.java
+ *
+ * Server settings. Every setting can be changed at startup with a system property,
+ * for example: java -Dwebserver.keepAlive.maxRequests=50 WebServerMain
+ */
+public class ServerConfig {
+
+    // Maximum number of requests served on one keep-alive connection before it is closed.
+    public static int keepAliveMaxRequests = Integer.getInteger("webserver.keepAlive.maxRequests", 100);
+
+    // How long (milliseconds) a keep-alive connection may sit idle before the worker closes it.
+    public static int keepAliveTimeoutMillis = Integer.getInteger("webserver.keepAlive.timeoutMillis", 5000);
+
+    // Longest time (milliseconds) from the first byte of a request to the end of its header
+    // before it is answered with 408 Request Timeout (0: no limit).
+    public static long headerTimeoutMillis = Long.getLong("webserver.timeout.headerMillis", 10000L);
+
+    // Longest time (milliseconds) from the end of a request's header to the end of its body
+    // before it is answered with 408 Request Timeout (0: no limit).
+    public static long bodyTimeoutMillis = Long.getLong("webserver.timeout.bodyMillis", 30000L);
+
+    // Longest time (milliseconds) a response write may wait for the client to take bytes before
+    // the connection is closed (0: no limit).
+    public static long writeTimeoutMillis = Long.getLong("webserver.timeout.writeMillis", 30000L);
+
+    // Which engine serves connections: "blocking" (ServerSocket + worker queue), "nio" (selector event loops)
+    // or "virtual" (one virtual thread per connection).
+    public static String engine = System.getProperty("webserver.engine", "blocking");
+
+    // Number of selector event loop threads used by the NIO engine.
+    public static int nioEventLoops = Integer.getInteger("webserver.nio.eventLoops",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    // Biggest request (header + body, in bytes) buffered before the request is refused with 413.
+    public static int maxRequestBytes = Integer.getInteger("webserver.maxRequestBytes", 1024 * 1024);
+
+    // Most bytes of idle I/O buffers kept for reuse (per pool: direct and heap). 0 turns pooling off.
+    public static long bufferPoolMaxBytes = Long.getLong("webserver.bufferPool.maxBytes", 64L * 1024 * 1024);
+
+    // Whether buffers that are never given back to the pool are reported (slow, for debugging).
+    public static boolean bufferPoolLeakDetection = Boolean.getBoolean("webserver.bufferPool.leakDetection");
+
+    // Biggest request line + headers (in bytes) before the request is refused with 431.
+    public static int maxHeaderBytes = Integer.getInteger("webserver.maxHeaderBytes", 8192);
+
+    // Most header lines a request may have before it is refused with 431.
+    public static int maxHeaderCount = Integer.getInteger("webserver.maxHeaderCount", 100);
+
+    // Size a connection's read buffer starts with (it grows up to maxRequestBytes for big bodies).
+    public static int requestBufferBytes = Integer.getInteger("webserver.requestBufferBytes", 8192);
+
+    // Directory static files are served from (only what is meant to be public: everything
+    // in it can be downloaded).
+    public static String documentRoot = System.getProperty("webserver.documentRoot", "www");
+
+    // File (relative to the document root) served for "/" and "/index.html".
+    public static String indexFile = System.getProperty("webserver.indexFile", "cool.html");
+
+    // Byte budget of the static file cache (0 turns the cache off).
+    public static long cacheMaxBytes = Long.getLong("webserver.cache.maxBytes", 16L * 1024 * 1024);
+
+    // Biggest file kept in the static file cache. Bigger files are streamed from disk.
+    public static long cacheMaxEntryBytes = Long.getLong("webserver.cache.maxEntryBytes", 1024L * 1024);
+
+    // How often (milliseconds) a cached file is checked for changes on disk.
+    public static long cacheRevalidateMillis = Long.getLong("webserver.cache.revalidateMillis", 1000L);
+
+    // Cache-Control of static files by path prefix: "<prefix>=<value>" rules separated by ';'
+    // (longest prefix wins). The default makes clients revalidate with the ETag every time.
+    public static String cacheControl = System.getProperty("webserver.cacheControl", "/=no-cache");
+
+    // Whether responses are compressed for clients that send Accept-Encoding.
+    public static boolean compression = Boolean.parseBoolean(System.getProperty("webserver.compression", "true"));
+
+    // Content-Encodings offered, in order of preference: "gzip" or "<token>=<ContentEncoding class>".
+    public static String compressionEncodings = System.getProperty("webserver.compression.encodings", "gzip");
+
+    // Smallest body (bytes) worth compressing. Smaller ones are sent as they are.
+    public static int compressionMinBytes = Integer.getInteger("webserver.compression.minBytes", 1024);
+
+    // gzip level, 1 (fastest) to 9 (smallest).
+    public static int compressionLevel = Integer.getInteger("webserver.compression.level", 6);
+
+    // Most accepted connections waiting for a worker (blocking engine). More are turned away.
+    public static int acceptQueueCapacity = Integer.getInteger("webserver.acceptQueue.capacity", 1024);
+
+    // How the blocking engine's workers get connections: "shared" (one accept queue) or "sharded"
+    // (one queue per worker, idle workers steal from the others).
+    public static String dispatch = System.getProperty("webserver.dispatch", "shared");
+
+    // Number of threads accepting connections (blocking engine).
+    public static int acceptors = Integer.getInteger("webserver.acceptors", 1);
+
+    // Whether every acceptor gets its own listening socket on the port (SO_REUSEPORT, the kernel
+    // spreads new connections over them). Otherwise the acceptors share one.
+    public static boolean reusePort = Boolean.getBoolean("webserver.reusePort");
+
+    // What happens to a connection when the accept queue is full: "503" (503 + Retry-After),
+    // "reset" (TCP reset) or "block" (wait overloadBlockMillis for room, then 503).
+    public static String overloadPolicy = System.getProperty("webserver.overload.policy", "503");
+
+    // How long (milliseconds) the "block" policy waits for room in the accept queue.
+    public static long overloadBlockMillis = Long.getLong("webserver.overload.blockMillis", 100L);
+
+    // Retry-After value (seconds) sent with 503 responses.
+    public static int retryAfterSeconds = Integer.getInteger("webserver.overload.retryAfterSeconds", 1);
+
+    // New connections per second each client address may open (0: no limit), and how many it may
+    // open at once after a quiet period. Connections over the limit get 429 Too Many Requests.
+    public static double rateLimitConnectionsPerSecond = Double.parseDouble(System.getProperty("webserver.rateLimit.connectionsPerSecond", "0"));
+    public static int rateLimitConnectionBurst = Integer.getInteger("webserver.rateLimit.connectionBurst", 20);
+
+    // Requests per second each client address may send (0: no limit), and its burst.
+    public static double rateLimitRequestsPerSecond = Double.parseDouble(System.getProperty("webserver.rateLimit.requestsPerSecond", "0"));
+    public static int rateLimitRequestBurst = Integer.getInteger("webserver.rateLimit.requestBurst", 100);
+
+    // Limits of single routes, separated by ';', each "<path>=<per second>/<burst>",
+    // e.g. "/multiply=10/20;/metrics=1/5".
+    public static String rateLimitRoutes = System.getProperty("webserver.rateLimit.routes", "");
+
+    // Client addresses each rate limit keeps track of at once.
+    public static int rateLimitMaxClients = Integer.getInteger("webserver.rateLimit.maxClients", 65536);
+
+    // Log file of the /database.php key-value store (created, with its directory, on first
+    // use). Keep it out of the document root: StaticFiles won't serve it, but its directory
+    // may hold other files.
+    public static String databaseFile = System.getProperty("webserver.database.file", "data/database.log");
+
+    // Whether database writes are answered only once they are on disk (group commit).
+    public static boolean databaseFsync = Boolean.parseBoolean(System.getProperty("webserver.database.fsync", "true"));
+
+    // Garbage (bytes of replaced and deleted records) the database log needs before it is
+    // compacted (it also has to be more than the live records).
+    public static long databaseCompactMinBytes = Long.getLong("webserver.database.compactMinBytes", 64L * 1024 * 1024);
+
+    // Longest time (milliseconds) a stopping server waits for its open connections to finish
+    // before cutting them off.
+    public static long shutdownDrainMillis = Long.getLong("webserver.shutdown.drainMillis", 10000L);
+
+    // Log level: "error", "warn", "info", "debug" (one line per request) or "trace" (request headers too).
+    public static String logLevel = System.getProperty("webserver.log.level", "info");
+
+    // Whether one compact access log line is written per request.
+    public static boolean accessLog = Boolean.getBoolean("webserver.log.access");
+
+    // File access log lines are appended to (empty: the console).
+    public static String accessLogFile = System.getProperty("webserver.log.accessFile", "");
+
+    // Log messages that can wait for the writer thread. When it falls behind, new messages are dropped.
+    public static int logBufferSize = Integer.getInteger("webserver.log.bufferSize", 8192);
+
+    // Not meant to be instantiated.
+    private ServerConfig() {
+    }
+}
@@ -0,0 +1,169 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * SocketResponseStream.java
+ *
+ * ResponseStream of the blocking engines. Small writes (status line, headers, short
+ * bodies) are collected in a buffer and sent together on flush, so a response costs one
+ * write instead of one per fragment. The buffer is a pooled direct buffer (the channel
+ * writes it without copying it first), given back with release(). File bodies go through FileChannel.transferTo
+ * (sendfile on Linux) into the socket's channel.
+ *
+ * Writes block until the client takes the bytes. The stream tells when the current write
+ * started (writeStartedNanos()), so the connection's WRITE deadline can tell a client that
+ * stopped reading from a handler that is still working.
+ */
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+public class SocketResponseStream extends ResponseStream {
+
+    // Size of the write buffer. Bigger writes go to the socket directly.
+    private static final int BUFFER_SIZE = 8192;
+    // Most file bytes sent by one transferTo call (each call is one write for the deadline).
+    private static final long MAX_TRANSFER = 1024 * 1024;
+
+    // Channel the response is written to.
+    private final WritableByteChannel channel;
+
+    // Bytes waiting to be sent (buffer is in write mode: position is the count).
+    private ByteBuffer buf = BufferPool.DIRECT.acquire(BUFFER_SIZE);
+
+    // Used for gathering writes (buffered bytes + a cached body in one call).
+    private final ByteBuffer[] pair = new ByteBuffer[2];
+
+    // System.nanoTime() when the write in progress started, 0 when none is.
+    private volatile long writeStartedNanos;
+
+    // Constructor.
+    public SocketResponseStream(Socket sock) throws IOException {
+        // Sockets accepted from a ServerSocketChannel have a channel (zero-copy transfers).
+        // Plain sockets don't, their file bytes get copied through the stream instead.
+        if (sock.getChannel() != null) {
+            this.channel = sock.getChannel();
+        } else {
+            this.channel = Channels.newChannel(sock.getOutputStream());
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buf.hasRemaining()) {
+            flushBuffer();
+        }
+        buf.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > buf.remaining()) {
+            flushBuffer();
+            if (len > buf.remaining()) {
+                // Too big to buffer, send it as it is.
+                writeFully(ByteBuffer.wrap(b, off, len));
+                return;
+            }
+        }
+        buf.put(b, off, len);
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) throws IOException {
+        if (buf.position() == 0 || !(channel instanceof GatheringByteChannel)) {
+            flushBuffer();
+            writeFully(buffer);
+            return;
+        }
+
+        // Header and body leave in one gathering write.
+        buf.flip();
+        pair[0] = buf;
+        pair[1] = buffer;
+        GatheringByteChannel gathering = (GatheringByteChannel) channel;
+        try {
+            while (buf.hasRemaining() || buffer.hasRemaining()) {
+                writeStartedNanos = System.nanoTime();
+                gathering.write(pair);
+            }
+        } finally {
+            writeStartedNanos = 0;
+        }
+        pair[1] = null;
+        buf.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    @Override
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        try {
+            // Header has to be out before the file.
+            flushBuffer();
+
+            // transferTo may send less than asked, keep going until everything is out.
+            while (count > 0) {
+                writeStartedNanos = System.nanoTime();
+                long sent = file.transferTo(position, Math.min(count, MAX_TRANSFER), channel);
+                if (sent <= 0 && position >= file.size()) {
+                    throw new IOException("File shrank while it was being sent.");
+                }
+                position += sent;
+                count -= sent;
+            }
+        } finally {
+            writeStartedNanos = 0;
+            file.close();
+        }
+    }
+
+    /**
+     * When the write in progress started (read by the deadline thread).
+     * Precondition:
+     * Postcondition: returns its System.nanoTime(), or 0 if the stream isn't writing.
+     */
+    public long writeStartedNanos() {
+        return writeStartedNanos;
+    }
+
+    /**
+     * Gives the buffer back to the pool.
+     * Precondition: connection is done (buffered bytes that weren't flushed are dropped).
+     * Postcondition: stream can't be used any more.
+     */
+    public void release() {
+        if (buf != null) {
+            BufferPool.DIRECT.release(buf);
+            buf = null;
+        }
+    }
+
+    // Sends the buffered bytes.
+    private void flushBuffer() throws IOException {
+        if (buf.position() > 0) {
+            buf.flip();
+            writeFully(buf);
+            buf.clear();
+        }
+    }
+
+    // Writes a whole buffer (blocking channel, but write may still be partial).
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        try {
+            while (buffer.hasRemaining()) {
+                writeStartedNanos = System.nanoTime();
+                channel.write(buffer);
+            }
+        } finally {
+            writeStartedNanos = 0;
+        }
+    }
+}
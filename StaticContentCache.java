@@ -0,0 +1,358 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * StaticContentCache.java
+ *
+ * Cache of small static files, shared by all workers. File bytes are kept in direct
+ * ByteBuffers (outside the Java heap) and written to the socket as they are. The cache
+ * holds at most ServerConfig.cacheMaxBytes bytes, the least recently used files are
+ * evicted first. Entries are checked against the file's modification time and size, so
+ * edited files are picked up.
+ *
+ * A hit takes no lock: the map is a ConcurrentHashMap and each entry keeps the time it was
+ * last used. Only changes to the cache (loading, dropping, evicting) take a lock, and the
+ * least recently used entries are worked out from those times when something has to go.
+ *
+ * Compressed variants (one per ContentEncoding) are made the first time a client asks for
+ * them and kept next to the raw bytes, counted in the same budget and dropped with them.
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class StaticContentCache {
+
+    // Cached files. Read without locking, changed only under lock.
+    private static final ConcurrentHashMap<Path, Entry> entries = new ConcurrentHashMap<Path, Entry>(64);
+    // Held while entries are added, removed or evicted (never while reading files).
+    private static final Object lock = new Object();
+    // Bytes held by all entries (guarded by lock).
+    private static long sizeBytes = 0;
+
+    // A hit only updates its entry's last use if it is older than this (so workers hitting
+    // the same file don't all write the same field).
+    private static final long TOUCH_NANOS = 1000000L;
+
+    // Counters, LongAdder so workers don't fight over them.
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    // Not meant to be instantiated.
+    private StaticContentCache() {
+    }
+
+    // Stands for a variant that isn't smaller than the file itself (the file is sent as it is).
+    private static final ByteBuffer NOT_SMALLER = ByteBuffer.allocate(0);
+
+    /**
+     * Cached file.
+     */
+    public static class Entry {
+        // File the entry was read from.
+        final Path file;
+        // File contents (read only, use duplicate() before writing it out).
+        final ByteBuffer body;
+        // Modification time and size when the file was read.
+        final long lastModified;
+        final long size;
+        // Last time (System.currentTimeMillis()) the file was checked for changes.
+        volatile long lastChecked;
+        // Last time (System.nanoTime(), within TOUCH_NANOS) the entry was used, for eviction.
+        volatile long lastUsed;
+        // Validators: ETag of the file as it is and of every compressed variant (by
+        // ContentEncoding.id()), and the Last-Modified header line.
+        final String etag;
+        final String[] variantEtags = new String[ContentEncoding.count()];
+        final String lastModifiedLine;
+        // Compressed contents by ContentEncoding.id(), made on first use (null: not made yet).
+        final ByteBuffer[] variants = new ByteBuffer[ContentEncoding.count()];
+        // Bytes taken by the variants (guarded by lock).
+        long variantBytes;
+
+        Entry(Path file, ByteBuffer body, long lastModified, long size) {
+            this.file = file;
+            this.body = body;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.lastChecked = System.currentTimeMillis();
+            this.lastUsed = System.nanoTime();
+            this.etag = HttpCaching.etag(lastModified, size, null);
+            this.lastModifiedLine = "Last-Modified: " + HttpDate.format(lastModified);
+        }
+
+        /**
+         * ETag of the file sent with an encoding (null: as it is).
+         */
+        public String etag(ContentEncoding encoding) {
+            if (encoding == null) {
+                return etag;
+            }
+            String tag = variantEtags[encoding.id()];
+            if (tag == null) {
+                tag = HttpCaching.etag(lastModified, size, encoding);
+                variantEtags[encoding.id()] = tag;
+            }
+            return tag;
+        }
+
+        public long lastModified() {
+            return lastModified;
+        }
+
+        public String lastModifiedLine() {
+            return lastModifiedLine;
+        }
+
+        /**
+         * Contents of the file compressed with an encoding, compressing it on first use.
+         * @param encoding encoding the client accepts.
+         * Precondition:
+         * Postcondition: returns a new buffer over the compressed bytes, or null if they
+         *                wouldn't be smaller than the file (send body() instead).
+         */
+        public ByteBuffer variant(ContentEncoding encoding) {
+            ByteBuffer variant;
+            synchronized (this) {
+                variant = variants[encoding.id()];
+                if (variant == null) {
+                    // Done once per file and encoding; other workers asking meanwhile wait for it.
+                    variant = compress(encoding);
+                    variants[encoding.id()] = variant;
+                    addVariantBytes(this, variant.capacity());
+                }
+            }
+            return variant == NOT_SMALLER ? null : variant.duplicate();
+        }
+
+        // Compresses the file contents into a read only direct buffer.
+        private ByteBuffer compress(ContentEncoding encoding) {
+            byte[] plain = new byte[(int) size];
+            body.duplicate().get(plain);
+            byte[] compressed;
+            try {
+                compressed = encoding.encode(plain, 0, plain.length);
+            } catch (IOException e) {
+                Log.error("Error compressing cached file! Message: " + e.getMessage());
+                return NOT_SMALLER;
+            }
+            if (compressed.length >= size) {
+                return NOT_SMALLER;
+            }
+            ByteBuffer variant = ByteBuffer.allocateDirect(compressed.length);
+            variant.put(compressed).flip();
+            return variant.asReadOnlyBuffer();
+        }
+
+        // Bytes the entry takes in the cache budget.
+        long cachedBytes() {
+            return size + variantBytes;
+        }
+
+        /**
+         * Contents of the file, ready to be written.
+         * Precondition:
+         * Postcondition: returns a new buffer (own position/limit) over the cached bytes.
+         */
+        public ByteBuffer body() {
+            return body.duplicate();
+        }
+
+        public long size() {
+            return size;
+        }
+    }
+
+    /**
+     * Looks a file up, loading it if it isn't cached (or changed on disk).
+     * @param file regular file under the document root.
+     * Precondition:
+     * Postcondition: returns the cached file, or null if the cache is off, the file is too big
+     *                to be cached or can't be read (caller then streams it from disk).
+     */
+    public static Entry get(Path file) {
+        if (ServerConfig.cacheMaxBytes <= 0) {
+            return null;
+        }
+
+        Entry entry = entries.get(file);
+
+        long now = System.currentTimeMillis();
+        if (entry != null) {
+            touch(entry);
+            // Only ask the file system again every cacheRevalidateMillis.
+            if (now - entry.lastChecked < ServerConfig.cacheRevalidateMillis) {
+                hits.increment();
+                return entry;
+            }
+
+            BasicFileAttributes attributes = readAttributes(file);
+            if (attributes != null && attributes.lastModifiedTime().toMillis() == entry.lastModified
+                    && attributes.size() == entry.size) {
+                entry.lastChecked = now;
+                hits.increment();
+                return entry;
+            }
+
+            // File changed (or is gone), drop the old copy.
+            remove(file, entry);
+        }
+
+        misses.increment();
+        return load(file);
+    }
+
+    /**
+     * Reads a file into a direct buffer and caches it.
+     * Precondition:
+     * Postcondition: returns the new entry, or null if the file isn't cacheable.
+     */
+    private static Entry load(Path file) {
+        BasicFileAttributes attributes = readAttributes(file);
+        if (attributes == null || attributes.size() > ServerConfig.cacheMaxEntryBytes
+                || attributes.size() > ServerConfig.cacheMaxBytes) {
+            return null;
+        }
+
+        ByteBuffer body;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            body = ByteBuffer.allocateDirect((int) attributes.size());
+            while (body.hasRemaining()) {
+                if (channel.read(body) == -1) {
+                    // File shrank while reading it, try again next time.
+                    return null;
+                }
+            }
+            body.flip();
+        } catch (IOException e) {
+            Log.error("Error reading file into cache! Message: " + e.getMessage());
+            return null;
+        }
+
+        Entry entry = new Entry(file, body.asReadOnlyBuffer(), attributes.lastModifiedTime().toMillis(), attributes.size());
+
+        synchronized (lock) {
+            Entry old = entries.put(file, entry);
+            if (old != null) {
+                // Another worker loaded it at the same time.
+                sizeBytes -= old.cachedBytes();
+            }
+            sizeBytes += entry.size;
+
+            evictOver(entry);
+        }
+        return entry;
+    }
+
+    // Marks an entry as just used.
+    private static void touch(Entry entry) {
+        long now = System.nanoTime();
+        if (now - entry.lastUsed > TOUCH_NANOS) {
+            entry.lastUsed = now;
+        }
+    }
+
+    /**
+     * Evicts least recently used files until the cache is within budget.
+     * @param keep entry that stays (the one just added to).
+     * Precondition: holds lock.
+     * Postcondition: sizeBytes <= cacheMaxBytes, unless keep alone is bigger.
+     */
+    private static void evictOver(Entry keep) {
+        if (sizeBytes <= ServerConfig.cacheMaxBytes) {
+            return;
+        }
+        // Oldest first, by a snapshot of the last uses (hits keep updating them meanwhile).
+        List<Entry> byAge = new ArrayList<Entry>(entries.values());
+        long[] lastUsed = new long[byAge.size()];
+        for (int i = 0; i < lastUsed.length; i++) {
+            lastUsed[i] = byAge.get(i).lastUsed;
+        }
+        Integer[] order = new Integer[lastUsed.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> lastUsed[i]));
+
+        for (int i = 0; i < order.length && sizeBytes > ServerConfig.cacheMaxBytes; i++) {
+            Entry eldest = byAge.get(order[i]);
+            if (eldest == keep) {
+                continue;
+            }
+            if (entries.remove(eldest.file, eldest)) {
+                sizeBytes -= eldest.cachedBytes();
+                evictions.increment();
+            }
+        }
+    }
+
+    // Counts a new variant in the budget (if its entry is still cached).
+    private static void addVariantBytes(Entry entry, long bytes) {
+        synchronized (lock) {
+            if (entries.get(entry.file) == entry) {
+                entry.variantBytes += bytes;
+                sizeBytes += bytes;
+                evictOver(entry);
+            }
+        }
+    }
+
+    // Removes an entry if it's still the cached one.
+    private static void remove(Path file, Entry entry) {
+        synchronized (lock) {
+            if (entries.remove(file, entry)) {
+                sizeBytes -= entry.cachedBytes();
+            }
+        }
+    }
+
+    // Reads modification time and size of a file (null if it can't be read).
+    private static BasicFileAttributes readAttributes(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public static long hits() {
+        return hits.sum();
+    }
+
+    public static long misses() {
+        return misses.sum();
+    }
+
+    public static long evictions() {
+        return evictions.sum();
+    }
+
+    public static long sizeBytes() {
+        synchronized (lock) {
+            return sizeBytes;
+        }
+    }
+
+    public static int entryCount() {
+        return entries.size();
+    }
+
+    /**
+     * One line summary of the cache, for the console.
+     */
+    public static String stats() {
+        return "Static cache: " + entryCount() + " files, " + sizeBytes() + "/" + ServerConfig.cacheMaxBytes
+                + " bytes, hits=" + hits() + " misses=" + misses() + " evictions=" + evictions();
+    }
+}
@@ -0,0 +1,129 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * StaticFiles.java
+ *
+ * Maps request URIs to files under the document root (ServerConfig.documentRoot)
+ * and guesses their Content-Type.
+ */
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+public class StaticFiles {
+
+    // Document root, as an absolute path (every served file must be inside it).
+    public static final Path ROOT = Paths.get(ServerConfig.documentRoot).toAbsolutePath().normalize();
+
+    // Content-Type by file extension.
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<String, String>();
+
+    static {
+        CONTENT_TYPES.put("html", "text/html; charset=UTF-8");
+        CONTENT_TYPES.put("htm", "text/html; charset=UTF-8");
+        CONTENT_TYPES.put("css", "text/css; charset=UTF-8");
+        CONTENT_TYPES.put("js", "text/javascript; charset=UTF-8");
+        CONTENT_TYPES.put("json", "application/json");
+        CONTENT_TYPES.put("txt", "text/plain; charset=UTF-8");
+        CONTENT_TYPES.put("md", "text/markdown; charset=UTF-8");
+        CONTENT_TYPES.put("xml", "application/xml");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("webp", "image/webp");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("pdf", "application/pdf");
+        CONTENT_TYPES.put("zip", "application/zip");
+        CONTENT_TYPES.put("wasm", "application/wasm");
+        CONTENT_TYPES.put("mp3", "audio/mpeg");
+        CONTENT_TYPES.put("mp4", "video/mp4");
+        CONTENT_TYPES.put("webm", "video/webm");
+    }
+
+    // Not meant to be instantiated.
+    private StaticFiles() {
+    }
+
+    /**
+     * Finds the file a request URI points to.
+     * @param uri request URI (may have a query string and %-escapes).
+     * Precondition:
+     * Postcondition: returns the regular file under the document root the URI names, or null
+     *                if there is none (or the URI tries to leave the root / reach hidden files
+     *                or the database).
+     */
+    public static Path resolve(String uri) {
+
+        // Drop the query string.
+        int queryStart = uri.indexOf('?');
+        String path = queryStart == -1 ? uri : uri.substring(0, queryStart);
+
+        if (!path.startsWith("/")) {
+            return null;
+        }
+
+        // Undo %-escapes (a literal '+' stays a '+' in a path).
+        try {
+            path = URLDecoder.decode(path.replace("+", "%2B"), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        Path file = ROOT.resolve(path.substring(1)).normalize();
+
+        // No escaping the document root with "..".
+        if (!file.startsWith(ROOT)) {
+            return null;
+        }
+
+        // No hidden files or directories (.git, .htpasswd, ...).
+        for (Path part : ROOT.relativize(file)) {
+            if (part.toString().startsWith(".")) {
+                return null;
+            }
+        }
+
+        // The /database.php store is only reachable through its endpoint.
+        if (KeyValueStore.isStoreFile(file)) {
+            return null;
+        }
+
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Index page, served for "/" and "/index.html".
+     * Precondition:
+     * Postcondition: returns the index file (it may not exist).
+     */
+    public static Path indexFile() {
+        return ROOT.resolve(ServerConfig.indexFile);
+    }
+
+    /**
+     * Guesses the Content-Type of a file from its extension.
+     * Precondition:
+     * Postcondition: returns the Content-Type (application/octet-stream if unknown).
+     */
+    public static String contentType(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot != -1) {
+            String type = CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase());
+            if (type != null) {
+                return type;
+            }
+        }
+        return "application/octet-stream";
+    }
+}
@@ -0,0 +1,256 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * TimingWheel.java
+ *
+ * Hashed timing wheel: keeps the deadlines of every connection without a timer per
+ * connection. Time is cut in ticks, and a deadline goes in the slot of the tick it falls
+ * in (tick modulo the number of slots), so setting, moving and cancelling a deadline are
+ * O(1) however many there are. expire() walks the slots of the ticks that went by and fires
+ * the deadlines that are due; one further away than a turn of the wheel stays in its slot
+ * until the turn it falls in.
+ *
+ * Deadlines are Timeout objects owned by the connections and reused for every deadline
+ * they set, so moving a deadline allocates nothing. The wheel's lock is only held to link
+ * and unlink Timeouts: expire() takes the due ones off under it and runs their onExpiry
+ * after letting it go, so a slow onExpiry (closing a socket) doesn't hold up the threads
+ * setting deadlines. The blocking engines' workers share a few wheels and a clock thread
+ * (see Deadlines), an NIO event loop has its own (and the lock is never contended). It is
+ * a ReentrantLock, and the only lock the wheel takes, so virtual threads waiting for it
+ * don't pin their carrier thread.
+ *
+ * Since onExpiry runs unlocked, the owner of a Timeout may move or cancel it at the same
+ * moment. expire() skips a Timeout moved or cancelled after it was taken off (its
+ * generation changed), but one moved while its onExpiry already runs isn't stopped:
+ * onExpiry has to cope with that, and pushes its deadline back with postpone(), which
+ * leaves a Timeout its owner has moved meanwhile alone.
+ */
+import java.util.concurrent.locks.ReentrantLock;
+
+public class TimingWheel {
+
+    /**
+     * Deadline that can be put on a wheel. Reused: schedule() moves it, cancel() removes it.
+     */
+    public static class Timeout {
+        // What to do when the deadline passes.
+        private final Runnable onExpiry;
+        // Neighbours in the slot's list, and the tick the deadline falls in (guarded by the wheel's lock).
+        private Timeout prev;
+        private Timeout next;
+        private long deadlineTick;
+        // Bumped by every schedule() and cancel() (under the wheel's lock), and its value
+        // when expire() took the Timeout off.
+        private volatile int generation;
+        private int expiredGeneration;
+        // Next Timeout expire() took off (only used by the thread calling expire()).
+        private Timeout nextExpired;
+
+        /**
+         * @param onExpiry called when the deadline passes, on the thread calling expire(),
+         *                 without the wheel's lock. It may postpone, schedule or cancel this
+         *                 Timeout, not others.
+         */
+        public Timeout(Runnable onExpiry) {
+            this.onExpiry = onExpiry;
+        }
+    }
+
+    // Length of a tick.
+    private final long tickNanos;
+    // Slot lists (each starts with a sentinel node, empty when it points to itself).
+    private final Timeout[] slots;
+    private final int mask;
+    // Zero of the wheel's clock, and the last tick expire() has gone through.
+    private final long startNanos = System.nanoTime();
+    private long currentTick;
+    // Deadlines on the wheel.
+    private int size;
+    // Guards the slot lists, currentTick and size.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * @param tickMillis precision of the deadlines.
+     * @param slotCount slots of the wheel (rounded up to a power of two). Deadlines up to
+     *                  tickMillis * slotCount away are looked at once, later ones once per turn.
+     */
+    public TimingWheel(long tickMillis, int slotCount) {
+        this.tickNanos = tickMillis * 1000000L;
+        int n = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.slots = new Timeout[n];
+        this.mask = n - 1;
+        for (int i = 0; i < n; i++) {
+            Timeout sentinel = new Timeout(null);
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            slots[i] = sentinel;
+        }
+    }
+
+    /**
+     * Sets (or moves) a deadline.
+     * @param timeout deadline to set (may already be on this wheel).
+     * @param delayMillis time from now until it passes.
+     * Precondition:
+     * Postcondition: timeout fires after delayMillis (give or take a tick), unless it is
+     *                scheduled again or cancelled first.
+     */
+    public void schedule(Timeout timeout, long delayMillis) {
+        // Round up: a deadline never fires early.
+        long tick = (System.nanoTime() - startNanos + delayMillis * 1000000L + tickNanos - 1) / tickNanos;
+        lock.lock();
+        try {
+            unlink(timeout);
+            timeout.generation++;
+            link(timeout, tick);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets a deadline again from its onExpiry, unless it was moved or cancelled since it expired.
+     * @param timeout deadline whose onExpiry is running.
+     * @param delayMillis time from now until it passes.
+     * Precondition:
+     * Postcondition: returns true if the deadline was set, false if its owner had already
+     *                moved or cancelled it (that stays).
+     */
+    public boolean postpone(Timeout timeout, long delayMillis) {
+        long tick = (System.nanoTime() - startNanos + delayMillis * 1000000L + tickNanos - 1) / tickNanos;
+        lock.lock();
+        try {
+            if (timeout.next != null || timeout.generation != timeout.expiredGeneration) {
+                return false;
+            }
+            link(timeout, tick);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Puts a deadline in the slot of its tick (never one that has gone by).
+    private void link(Timeout timeout, long tick) {
+        timeout.deadlineTick = Math.max(tick, currentTick + 1);
+        Timeout sentinel = slots[(int) (timeout.deadlineTick & mask)];
+        timeout.prev = sentinel.prev;
+        timeout.next = sentinel;
+        sentinel.prev.next = timeout;
+        sentinel.prev = timeout;
+        size++;
+    }
+
+    /**
+     * Removes a deadline.
+     * Precondition:
+     * Postcondition: timeout won't fire (does nothing if it isn't on the wheel).
+     */
+    public void cancel(Timeout timeout) {
+        lock.lock();
+        try {
+            unlink(timeout);
+            timeout.generation++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Takes a deadline off its slot list.
+    private void unlink(Timeout timeout) {
+        if (timeout.next == null) {
+            return;
+        }
+        timeout.prev.next = timeout.next;
+        timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        size--;
+    }
+
+    /**
+     * Fires every deadline that has passed.
+     * @param nowNanos current System.nanoTime().
+     * Precondition: called by one thread at a time (the wheel's clock).
+     * Postcondition: due Timeouts have been taken off the wheel and their onExpiry has run
+     *                (unless they were moved or cancelled in between). Returns how many fired.
+     */
+    public int expire(long nowNanos) {
+        long target = (nowNanos - startNanos) / tickNanos;
+        Timeout first = null;
+        Timeout last = null;
+
+        lock.lock();
+        try {
+            if (target <= currentTick) {
+                return 0;
+            }
+
+            // Every slot is looked at once at most, even if many ticks went by.
+            long steps = Math.min(target - currentTick, slots.length);
+            long from = currentTick;
+            // Moved first: a deadline scheduled again by its onExpiry lands after target.
+            currentTick = target;
+            for (long i = 1; i <= steps && size > 0; i++) {
+                Timeout sentinel = slots[(int) ((from + i) & mask)];
+                Timeout timeout = sentinel.next;
+                while (timeout != sentinel) {
+                    Timeout following = timeout.next;
+                    if (timeout.deadlineTick <= target) {
+                        unlink(timeout);
+                        timeout.expiredGeneration = timeout.generation;
+                        timeout.nextExpired = null;
+                        if (last == null) {
+                            first = timeout;
+                        } else {
+                            last.nextExpired = timeout;
+                        }
+                        last = timeout;
+                    }
+                    timeout = following;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // Outside the wheel's lock, so the onExpiry calls don't hold up schedule() and cancel().
+        int fired = 0;
+        Timeout timeout = first;
+        while (timeout != null) {
+            Timeout following = timeout.nextExpired;
+            timeout.nextExpired = null;
+            // Skipped if its owner moved or cancelled it since it was taken off.
+            if (timeout.generation == timeout.expiredGeneration) {
+                fired++;
+                timeout.onExpiry.run();
+            }
+            timeout = following;
+        }
+        return fired;
+    }
+
+    /**
+     * Time until the next tick, for threads that sleep between expire() calls.
+     * Precondition:
+     * Postcondition: returns milliseconds (at least 1), or -1 if there is no deadline at all.
+     */
+    public long millisToNextTick(long nowNanos) {
+        if (size() == 0) {
+            return -1;
+        }
+        long untilTick = tickNanos - (nowNanos - startNanos) % tickNanos;
+        return Math.max(1, untilTick / 1000000L);
+    }
+
+    // Deadlines on the wheel.
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * VirtualThreadMainThread.java
+ *
+ * Main thread of the virtual thread engine (-Dwebserver.engine=virtual). Every accepted
+ * connection gets its own virtual thread running the normal Worker connection code, so
+ * blocking I/O doesn't need a tuned pool size.
+ *
+ * Virtual threads need Java 21. On older JVMs the engine falls back to one platform
+ * thread per connection (same code, just heavier threads).
+ */
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class VirtualThreadMainThread implements Runnable {
+
+    // Server socket.
+    public static ServerSocket ss;
+    // Used to kill server gracefully.
+    public static AtomicBoolean die;
+    // When a stopping server gives up on the connections still open (System.nanoTime()).
+    public static volatile long drainDeadlineNanos;
+
+    // Workers of the open connections (so a shutdown can close the idle ones).
+    private final Set<Worker> active = ConcurrentHashMap.newKeySet();
+
+    // Constructor.
+    public VirtualThreadMainThread(ServerSocket ss, AtomicBoolean die) {
+        VirtualThreadMainThread.ss = ss;
+        VirtualThreadMainThread.die = die;
+    }
+
+    /**
+     * Creates the executor that starts one thread per connection.
+     * Precondition:
+     * Postcondition: returns a virtual-thread-per-task executor if the JVM has one,
+     *                otherwise an executor that starts a platform thread per task.
+     */
+    public static ExecutorService newThreadPerConnectionExecutor() {
+        try {
+            // Looked up by name so the server still compiles and runs on Java 17.
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            Log.warn("Virtual threads need Java 21, using one platform thread per connection instead.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Starts stopping the engine.
+     * @param deadlineNanos System.nanoTime() by which the open connections have to be done.
+     * Precondition:
+     * Postcondition: die is set. Once the server socket is closed, run() stops accepting,
+     *                waits for the open connections, then returns.
+     */
+    public void stop(long deadlineNanos) {
+        drainDeadlineNanos = deadlineNanos;
+        die.set(true);
+    }
+
+    @Override
+    public void run() {
+        Log.info("Virtual thread main thread has been initialized!");
+
+        ExecutorService executor = newThreadPerConnectionExecutor();
+
+        // Numbers the per-connection workers (only touched by this thread).
+        int[] workerNumber = {1};
+
+        // Used to store current request IP address.
+        String currentRequestIP = "";
+        while (!die.get()) {
+            try {
+                // Accept new connection. (Closing the server socket wakes it up to die.)
+                Socket sock = ss.accept();
+                Metrics.connectionAccepted();
+                currentRequestIP = sock.getInetAddress().getHostAddress();
+
+                // Clients opening connections faster than their rate limit get 429.
+                if (!RateLimiter.admit(sock)) {
+                    continue;
+                }
+
+                // Same request handling as the pooled workers, one Worker per connection.
+                Worker worker = new Worker(null, die, workerNumber);
+                active.add(worker);
+                try {
+                    executor.execute(() -> {
+                        try {
+                            worker.handleConnection(sock);
+                        } finally {
+                            active.remove(worker);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    Log.error("Executor Exception: " + e.getMessage());
+                    active.remove(worker);
+                    sock.close();
+                }
+
+            } catch (Exception e) {
+                if (!die.get()) {
+                    Log.warn("Socket exception VirtualThreadMainThread: " + e.getMessage());
+                    Log.warn("Last socket connection was to: " + currentRequestIP);
+                }
+            }
+        }
+
+        // Close the connections waiting for another request, let the others finish their
+        // current request (each is closed after its response).
+        for (Worker worker : active) {
+            worker.closeIfIdle();
+        }
+        executor.shutdown();
+        try {
+            long left = Math.max(0, drainDeadlineNanos - System.nanoTime());
+            if (!executor.awaitTermination(left, TimeUnit.NANOSECONDS)) {
+                Log.warn("Drain deadline passed, cutting off " + active.size() + " connection(s).");
+                for (Worker worker : active) {
+                    worker.abort();
+                }
+                executor.shutdownNow();
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Log.error("Interrupted while waiting for connections to finish! Message: " + e.getMessage());
+        }
+
+        Log.info("Virtual thread main thread has killed itself!");
+    }
+}
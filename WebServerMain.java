@@ -13,9 +13,16 @@ import java.io.IOException;
 
 // Server socket waits for requests to come in over the 
 // network.
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+// Checks the document root exists.
+import java.nio.file.Files;
 
 // Thread safe variable used to kill server gracefully.
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 // Used for user input.
@@ -23,9 +30,6 @@ import java.util.Scanner;
 
 public class WebServerMain {
 
-    // Variable used for debugging purposes only.
-    private static boolean debug = true;
-
     // Use port 8080.
     private static final int PORT = 8080;
 
@@ -39,6 +43,13 @@ public class WebServerMain {
     static MainThread mainWorker;
     // Create main thread and start it.
     static Thread mainThread;
+    // Main thread of the NIO engine (only used with -Dwebserver.engine=nio).
+    static NioMainThread nioMainWorker;
+    // Main thread of the virtual thread engine (only used with -Dwebserver.engine=virtual).
+    static VirtualThreadMainThread virtualMainWorker;
+
+    // Set once stop() has run (it only runs once, from <die> or the shutdown hook).
+    private static boolean stopped = false;
 
     /**
      * Start server pool of threads.
@@ -56,58 +67,200 @@ public class WebServerMain {
         mainThread.start();
     }
 
+    /**
+     * Start NIO engine (acceptor, event loops and worker pool).
+     * Precondition: ServerSocketChannel has been bound.
+     * Postcondition: NIO main thread has been started.
+     * @param ssc a server socket channel.
+     */
+    public static void startNioThreads(ServerSocketChannel ssc) {
+
+        nioMainWorker = new NioMainThread(ssc, die);
+        mainThread = new Thread(nioMainWorker);
+        mainThread.start();
+    }
+
+    /**
+     * Start virtual thread engine (accept thread, one virtual thread per connection).
+     * Precondition: ServerSocket has been initialized.
+     * Postcondition: accept thread has been started.
+     * @param ss a server socket.
+     */
+    public static void startVirtualThreads(ServerSocket ss) {
+
+        virtualMainWorker = new VirtualThreadMainThread(ss, die);
+        mainThread = new Thread(virtualMainWorker);
+        mainThread.start();
+    }
+
+    /**
+     * Starts the server: binds the port and starts the engine picked by webserver.engine.
+     * Precondition: server hasn't been started.
+     * Postcondition: server is accepting connections. A JVM shutdown (SIGTERM, Ctrl+C) stops
+     *                it with stop(), like <die> does.
+     * @throws IOException if the port can't be bound.
+     */
+    public static void start() throws IOException {
+        // Opened through a channel: the NIO engine waits for connections with a Selector, the
+        // others accept blocking, and their accepted sockets have a SocketChannel, which lets
+        // workers send files with FileChannel.transferTo.
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        if (ServerConfig.reusePort && ssc.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            // Lets more acceptors bind listening sockets of their own to the port (MainThread).
+            ssc.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        ssc.bind(new InetSocketAddress(PORT));
+        ss = ssc.socket();
+
+        Log.info("Server started on 127.0.0.1:8080 (" + ServerConfig.engine + " engine)");
+        if (!Files.isDirectory(StaticFiles.ROOT)) {
+            Log.warn("Document root " + StaticFiles.ROOT + " is not a directory, static files will all be 404.");
+        }
+
+        if (ServerConfig.engine.equals("nio")) {
+            // Start acceptor, event loops and workers.
+            startNioThreads(ssc);
+        } else if (ServerConfig.engine.equals("virtual")) {
+            startVirtualThreads(ss);
+        } else {
+            startThreads(ss);
+        }
+
+        // kill -TERM drains the server instead of dropping its connections.
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> stop(ServerConfig.shutdownDrainMillis), "server-stop"));
+    }
+
+    /**
+     * Stops the server gracefully. New connections are refused right away, connections
+     * waiting for another request are closed, queued connections and requests being answered
+     * are finished (their responses say "Connection: close"), then the engine's threads exit.
+     * @param drainMillis longest time to wait for the open connections. Whatever is still
+     *                    open then is cut off.
+     * Precondition: start() has been called.
+     * Postcondition: server is stopped (later calls do nothing). Returns true if every
+     *                connection finished before the deadline.
+     */
+    public static synchronized boolean stop(long drainMillis) {
+        if (stopped) {
+            return true;
+        }
+        stopped = true;
+
+        long startNanos = System.nanoTime();
+        long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        Log.info("Server stopping, open connections get up to " + drainMillis + " ms to finish.");
+
+        // Tell all threads to die.
+        if (nioMainWorker != null) {
+            nioMainWorker.stop(deadlineNanos);
+        } else if (virtualMainWorker != null) {
+            virtualMainWorker.stop(deadlineNanos);
+        } else if (mainWorker != null) {
+            mainWorker.stop(deadlineNanos);
+        }
+
+        // Close ServerSocket (wakes up a thread blocked in accept).
+        try {
+            ss.close();
+        } catch (IOException e) {
+            Log.error("Error closing ServerSocket! Message: " + e.getMessage());
+        }
+
+        // The engine's main thread drains its connections, cuts off what's left at the
+        // deadline, and returns once its threads are gone.
+        try {
+            long left = Math.max(0, deadlineNanos - System.nanoTime()) + TimeUnit.SECONDS.toNanos(2);
+            TimeUnit.NANOSECONDS.timedJoin(mainThread, left);
+        } catch (InterruptedException e) {
+            Log.error("Interrupted while waiting for the server to stop! Message: " + e.getMessage());
+        }
+
+        boolean drained = System.nanoTime() - deadlineNanos < 0 && !mainThread.isAlive();
+        long tookMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        if (drained) {
+            Log.info("Server stopped in " + tookMillis + " ms.");
+        } else {
+            Log.warn("Server stopped in " + tookMillis + " ms, connections still open at the deadline were cut off.");
+        }
+
+        // Database writes still in memory go to disk.
+        KeyValueStore.closeIfOpen();
+
+        // During a JVM shutdown the log's own hook may already be done.
+        Log.drain();
+        return drained;
+    }
+
     public static void main(String[] args) throws IOException {
 
         Scanner scan = new Scanner(System.in);
 
         // Bind ServerSocket with port 8080.
         try {
-            ss = new ServerSocket(PORT);
-            // Set timeout to 30 seconds.
-            ss.setSoTimeout(30000);
-
-            if (debug) {
-                System.out.println("Server started on 127.0.0.1:8080");
-            }
-
-            // Start threads.
-            startThreads(ss);
+            start();
 
             String userInput = new String();
 
             while (true) {
                 // Kill server when user enters: "<die>".
-                System.out.println("Let me know when you want server to die. Enter <die>: ");
+                System.out.println("Let me know when you want server to die. Enter <die> (<stats> for cache, buffer, queue, rate limit and database stats, <log LEVEL> or <access on|off> for logging): ");
+                if (!scan.hasNextLine()) {
+                    // No console (e.g. started in the background): the server runs until the JVM is stopped.
+                    scan.close();
+                    return;
+                }
                 userInput = scan.nextLine();
 
+                // Print cache counters when user enters: "<stats>".
+                if (userInput.equals("<stats>")) {
+                    System.out.println(StaticContentCache.stats());
+                    System.out.println(BufferPool.DIRECT.stats());
+                    System.out.println(BufferPool.HEAP.stats());
+                    if (MainThread.admission != null) {
+                        System.out.println(MainThread.admission.stats());
+                    }
+                    for (RateLimiter limiter : RateLimiter.all()) {
+                        System.out.println(limiter.stats());
+                    }
+                    KeyValueStore.printStatsIfOpen();
+                }
+
+                // Change the log level when user enters e.g. "<log debug>".
+                if (userInput.startsWith("<log ") && userInput.endsWith(">")) {
+                    String level = userInput.substring(5, userInput.length() - 1);
+                    if (Log.setLevel(level)) {
+                        System.out.println("Log level is now " + Log.levelName() + ".");
+                    } else {
+                        System.out.println("Unknown log level " + level + " (error, warn, info, debug, trace).");
+                    }
+                }
+
+                // Turn access logging on/off when user enters "<access on>" / "<access off>".
+                if (userInput.equals("<access on>") || userInput.equals("<access off>")) {
+                    Log.setAccess(userInput.equals("<access on>"));
+                    System.out.println("Access log is now " + (Log.accessEnabled() ? "on" : "off") + ".");
+                }
+
                 if (userInput.equals("<die>")) {
 
-                    // Tell all threads to die.
-                    die.set(true);
+                    // Stop accepting, finish the open requests, let the threads go.
+                    stop(ServerConfig.shutdownDrainMillis);
 
-                    // Close ServerSocket.
-                    try {
-                        ss.close();
-                    } catch (IOException e) {
-                        System.out.println("Error closing ServerSocket! Message: " + e.getMessage());
-                    }
-                    
                     break;
                 }
             }
         
             System.out.println("WebServerMain thread is about to die. Server should be completely dead. Use ps aux to check.");
-            System.out.println("Workers may take up to 10 seconds to die. Patience is a virtue.");
 
 
         } catch (IOException e) {
 
-            System.out.println("Error binding ServerSocket to port " + PORT + ".");
-            System.out.println(e.toString());
+            Log.error("Error binding ServerSocket to port " + PORT + ".");
+            Log.error(e.toString());
             System.exit(1);
         }
 
         // Close scanner.
         scan.close();
     }
-}
\ No newline at end of file
+}
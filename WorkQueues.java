@@ -0,0 +1,251 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * WorkQueues.java
+ *
+ * Accept queue(s) the blocking engine's workers take connections from
+ * (webserver.dispatch):
+ *   "shared":  one queue for every worker (the workers all wait on the same lock).
+ *   "sharded": one queue per worker. A connection goes to an idle worker if there is one,
+ *              otherwise to the shorter of two queues (the next one round robin and a random
+ *              one). A worker whose queue is empty steals from the others before it waits,
+ *              so a connection never sits behind a long keep-alive connection while another
+ *              worker has nothing to do. Acceptors and workers only meet on the queue they
+ *              use, so no single lock is shared by all cores.
+ */
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class WorkQueues {
+
+    // Dispatch modes.
+    public static final String SHARED = "shared";
+    public static final String SHARDED = "sharded";
+
+    // Put in the queue of an idle worker to make it look for connections to steal.
+    private static final QueuedSocket WAKE = new QueuedSocket(null);
+
+    /**
+     * Queue of one worker (or of all of them in shared mode).
+     */
+    private static class Shard {
+        final ArrayBlockingQueue<QueuedSocket> queue;
+        // True while the owner waits on an empty queue and nobody has handed it a connection yet.
+        final AtomicBoolean idle = new AtomicBoolean(false);
+
+        Shard(int capacity) {
+            queue = new ArrayBlockingQueue<QueuedSocket>(capacity);
+        }
+    }
+
+    private final Shard[] shards;
+    private final String mode;
+    // Round robin position of the acceptors.
+    private final AtomicInteger next = new AtomicInteger();
+    // Connections taken from another worker's queue.
+    private final LongAdder steals = new LongAdder();
+
+    /**
+     * @param capacity most connections waiting in all the queues together.
+     * @param workers number of workers taking from the queues.
+     * @param mode SHARED or SHARDED.
+     */
+    public WorkQueues(int capacity, int workers, String mode) {
+        if (!mode.equals(SHARED) && !mode.equals(SHARDED)) {
+            Log.warn("Unknown dispatch mode " + mode + ", using " + SHARED + ".");
+            mode = SHARED;
+        }
+        this.mode = mode;
+
+        int count = mode.equals(SHARDED) ? Math.max(1, workers) : 1;
+        shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(Math.max(1, capacity / count));
+        }
+    }
+
+    /**
+     * Queues a connection without waiting.
+     * Precondition: called by an acceptor thread.
+     * Postcondition: returns false if there is no room for it.
+     */
+    public boolean offer(QueuedSocket queued) {
+        if (shards.length == 1) {
+            return shards[0].queue.offer(queued);
+        }
+
+        int start = Math.floorMod(next.getAndIncrement(), shards.length);
+
+        // An idle worker gets it right away (claimed, so the next connection goes elsewhere).
+        Shard idle = claimIdle(start);
+        if (idle != null && idle.queue.offer(queued)) {
+            return true;
+        }
+
+        // Everybody is busy: the shorter of two queues.
+        Shard first = shards[start];
+        Shard second = shards[ThreadLocalRandom.current().nextInt(shards.length)];
+        if (second.queue.size() < first.queue.size()) {
+            Shard swap = first;
+            first = second;
+            second = swap;
+        }
+        if (!first.queue.offer(queued) && !second.queue.offer(queued)) {
+            return false;
+        }
+
+        // A worker may have gone idle after it looked at this queue: have it steal the connection.
+        idle = claimIdle(start);
+        if (idle != null) {
+            idle.queue.offer(WAKE);
+        }
+        return true;
+    }
+
+    /**
+     * Queues a connection, waiting up to timeout for room (block overload policy).
+     * Precondition: called by an acceptor thread.
+     * Postcondition: returns false if there still was no room.
+     */
+    public boolean offer(QueuedSocket queued, long timeout, TimeUnit unit) throws InterruptedException {
+        if (offer(queued)) {
+            return true;
+        }
+        Shard shard = shards[Math.floorMod(next.getAndIncrement(), shards.length)];
+        return shard.queue.offer(queued, timeout, unit);
+    }
+
+    /**
+     * Takes the next connection of a worker, waiting until there is one.
+     * @param worker index of the worker (0 .. workers - 1).
+     * Precondition:
+     * Postcondition: returns a connection, or QueuedSocket.STOP when the worker should exit.
+     */
+    public QueuedSocket take(int worker) throws InterruptedException {
+        if (shards.length == 1) {
+            return shards[0].queue.take();
+        }
+
+        Shard own = shards[worker];
+        while (true) {
+            QueuedSocket queued = own.queue.poll();
+            if (queued != null && queued != WAKE) {
+                return queued;
+            }
+            if ((queued = steal(worker)) != null) {
+                return queued;
+            }
+
+            // Nothing anywhere. Say so first, then look once more: a connection queued before
+            // an acceptor could see the flag is found here, any later one comes with a WAKE.
+            own.idle.set(true);
+            if ((queued = steal(worker)) != null) {
+                own.idle.set(false);
+                return queued;
+            }
+            queued = own.queue.take();
+            own.idle.set(false);
+            if (queued != WAKE) {
+                return queued;
+            }
+        }
+    }
+
+    /**
+     * Takes a connection from another worker's queue.
+     * Precondition:
+     * Postcondition: returns null if every other queue is empty.
+     */
+    private QueuedSocket steal(int worker) {
+        for (int i = 1; i < shards.length; i++) {
+            ArrayBlockingQueue<QueuedSocket> queue = shards[(worker + i) % shards.length].queue;
+            QueuedSocket queued = queue.peek();
+            if (queued == null || queued == WAKE || queued == QueuedSocket.STOP) {
+                // Markers belong to the owner.
+                continue;
+            }
+            queued = queue.poll();
+            if (queued == WAKE || queued == QueuedSocket.STOP) {
+                // Taken by the owner and replaced in the meantime, hand it back.
+                queue.offer(queued);
+            } else if (queued != null) {
+                steals.increment();
+                return queued;
+            }
+        }
+        return null;
+    }
+
+    // Claims an idle worker, looking from start on. Returns its queue, or null if all are busy.
+    private Shard claimIdle(int start) {
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[(start + i) % shards.length];
+            if (shard.idle.get() && shard.idle.compareAndSet(true, false)) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queues the STOP marker of a worker behind the connections waiting for it.
+     * @param worker index of the worker.
+     * Precondition: acceptors have stopped.
+     * Postcondition: returns false if there was no room before the timeout.
+     */
+    public boolean stop(int worker, long timeout, TimeUnit unit) throws InterruptedException {
+        return shards[worker % shards.length].queue.offer(QueuedSocket.STOP, timeout, unit);
+    }
+
+    /**
+     * Takes any waiting connection (used to close them when the server gives up draining).
+     * Precondition:
+     * Postcondition: returns null once every queue is empty. Markers are skipped.
+     */
+    public QueuedSocket poll() {
+        for (Shard shard : shards) {
+            QueuedSocket queued;
+            while ((queued = shard.queue.poll()) != null) {
+                if (queued != WAKE && queued != QueuedSocket.STOP) {
+                    return queued;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Connections waiting in all the queues (a WAKE or STOP marker may be counted too).
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.queue.size();
+        }
+        return size;
+    }
+
+    /**
+     * Most connections that can wait in all the queues together.
+     */
+    public int capacity() {
+        int capacity = 0;
+        for (Shard shard : shards) {
+            capacity += shard.queue.size() + shard.queue.remainingCapacity();
+        }
+        return capacity;
+    }
+
+    public String mode() {
+        return mode;
+    }
+
+    public long steals() {
+        return steals.sum();
+    }
+}
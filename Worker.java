@@ -6,509 +6,1254 @@
  * 
  * Worker class (consumes from blocking queue). Handles HTTP requests.
  */
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
-import java.text.DateFormat;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.TimeZone;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 
 
 public class Worker implements Runnable {
 
-    BlockingQueue<Socket> queue;
+    WorkQueues queue;
     public static AtomicBoolean die;
     public static int[] check;
     int workerNumber;
 
-    // Used for debugging purposes only.
-    private boolean debug = true;
-
-    Worker(BlockingQueue<Socket> queue, AtomicBoolean die, int[] check) {
+    // Whether the connection of the request being answered stays open after the response.
+    // (Decided per request in handleConnection, read by buildResponseHeader.)
+    private boolean keepConnectionAlive = false;
+
+    // Number of requests served on the current connection (used in the Keep-Alive header).
+    private int requestsServedOnConnection = 0;
+
+    // Bytes read from the current connection and the parser working on them.
+    private final RequestBuffer requestBuffer = new RequestBuffer(ServerConfig.requestBufferBytes);
+    private final HttpRequestParser parser = new HttpRequestParser();
+    // Length in bytes of the request last returned by readRequest.
+    private int lastRequestLength;
+
+    // Parses /multiply bodies and holds the products (reused for every request).
+    private final MultiplyHandler multiplyHandler = new MultiplyHandler();
+
+    // Response header block is built here (reused for every response).
+    private final ResponseHeaderBuilder headerBuilder = new ResponseHeaderBuilder();
+
+    // Extra header lines of static file responses (reused for every response).
+    private final List<String> staticHeaders = new ArrayList<String>(6);
+
+    // Compressed dynamic bodies are built here (reused for every response, unless one was huge).
+    private ByteArrayOutputStream compressedBody = new ByteArrayOutputStream(1024);
+    private static final int MAX_KEPT_COMPRESSED_BYTES = 64 * 1024;
+
+    // Form encoded database keys and values are built here (reused for every record).
+    private final byte[] encodeBuffer = new byte[4096];
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    // Status and Content-Length of the last response header built, and the client of the
+    // current connection (for the access log).
+    private String responseStatus;
+    private long responseContentLength;
+    private InetAddress clientAddress;
+    // RateLimiter key of the client.
+    private long clientKey;
+    // Whether the request being answered is HTTP/1.1 (can take a chunked response).
+    private boolean requestHttp11;
+
+    // Connection handleConnection is serving (null between connections), and whether it is
+    // waiting for the next request. Read by the thread stopping the server.
+    private volatile Socket connection;
+    private volatile boolean idle;
+
+    // Deadline of the current connection (on the worker's shared wheel of Deadlines), which
+    // phase it is for, and whether it passed. Also read and written by the wheels' clock thread.
+    // A new Timeout per connection: a late onExpiry can then only touch its own connection.
+    private final TimingWheel wheel;
+    private volatile TimingWheel.Timeout deadline;
+    private volatile int deadlinePhase;
+    private volatile boolean timedOut;
+    // Stream of the current connection (the WRITE deadline looks at its writes).
+    private volatile SocketResponseStream output;
+
+
+    // Extra headers of fixed responses (built once, never modified).
+    private static final List<String> GOOGLE_REDIRECT_HEADERS =
+            Collections.unmodifiableList(Arrays.asList("location: https://google.com"));
+    private static final List<String> STATIC_ALLOW_HEADERS =
+            Collections.unmodifiableList(Arrays.asList("Allow: GET"));
+    private static final String ACCEPT_RANGES = "Accept-Ranges: bytes";
+
+    // Endpoints of the server. Anything else is looked up under the document root.
+    private static final Router ROUTER = new Router()
+            .add("GET", "/", Worker::handleIndex)
+            .add("GET", "/index.html", Worker::handleIndex)
+            .add("GET", "/google", Worker::handleGoogleRedirect)
+            .add("POST", "/multiply", Worker::handleMultiply)
+            .add("GET", "/database.php", Worker::handleDatabaseGet)
+            .add("POST", "/database.php", Worker::handleDatabasePost)
+            .add("DELETE", "/database.php", Worker::handleDatabaseDelete)
+            .add("GET", "/metrics", Worker::handleMetrics)
+            .setFallback("static", Worker::handleStaticFile)
+            .limitRoutes(ServerConfig.rateLimitRoutes);
+
+    Worker(WorkQueues queue, AtomicBoolean die, int[] check) {
         this.queue = queue;
         Worker.die = die;
         workerNumber = check[0];
         check[0]++;
+        wheel = Deadlines.shared(workerNumber);
+    }
+
+    /**
+     * Answers a request that an NIO event loop already read off the connection.
+     * @param request parsed request.
+     * @param requestNumber how many requests have been read on the connection (including this one).
+     * @param httpResponse where the response is written (sent to the client by the event loop).
+     * Precondition:
+     * Postcondition: response has been written to httpResponse. Returns true if the
+     *                connection should stay open after the response.
+     */
+    public boolean answerParsedRequest(HttpRequest request, int requestNumber, ResponseStream httpResponse) {
+
+        requestsServedOnConnection = requestNumber;
+        keepConnectionAlive = shouldKeepAlive(request);
+
+        answerHttpRequest(request, httpResponse);
+        return keepConnectionAlive;
+    }
+
+    /***
+     * Answers HTTP request.
+     * @param request parsed request (body may be empty, be careful!)
+     * @param httpResponse output stream the response is written to.
+     */
+    public void answerHttpRequest(HttpRequest request, ResponseStream httpResponse) {
+        answerHttpRequest(request, httpResponse, true);
     }
 
     /***
      * Answers HTTP request.
-     * @param requestHeaderString header
-     * @param requestBody could be null, be careful!
-     * @param sock network socket being used.
+     * @param request parsed request (body may be empty, be careful!)
+     * @param httpResponse output stream the response is written to.
+     * @param flush whether to send the response right away. Pipelined responses are left in
+     *              the stream's buffer so several of them go out in one write.
      */
-    public void answerHttpRequest(String requestHeaderString, char[] requestBody, Socket sock) {
+    private void answerHttpRequest(HttpRequest request, ResponseStream httpResponse, boolean flush) {
 
-        // Tokenize request (by line, hence the "\r\n").
-        String[] requestTokenizedByLine = requestHeaderString.split("\r\n");
+        long started = System.nanoTime();
+        Metrics.RouteMetrics route = null;
+        responseStatus = null;
+        requestHttp11 = request.isHttp11();
 
-        if (debug) {
+        if (Log.isTrace()) {
             // Print request.
-            System.out.println("Worker " + workerNumber + " request:");
-            System.out.println("******************************");
-            for (String line : requestTokenizedByLine) {
-                System.out.println(line);
+            StringBuilder dump = new StringBuilder("Worker ").append(workerNumber).append(" request:\n")
+                    .append(request.requestLine()).append('\n');
+            for (int i = 0; i < request.headerCount(); i++) {
+                dump.append(request.headerName(i)).append(": ").append(request.headerValue(i)).append('\n');
             }
-            System.out.println("******************************");
+            dump.setLength(dump.length() - 1);
+            Log.trace(dump.toString());
         }
 
-        // Grab first line of header.
-        // Contains the request line (Request method, URI, HTTP version).
-        String requestLine = requestTokenizedByLine[0];
-        // Tokenize request line by whitespace.
-        String[] requestLineTokenized = requestLine.split(" ");
-
         try {
-            // Init output stream to build HTTP response.
-            OutputStream httpResponse = sock.getOutputStream();
-            switch (requestLineTokenized[0]) {
-                case "GET":
-                    // Handle GET request.
-                    if (debug) {
-                        System.out.println("Worker " + workerNumber + " got a GET request!");
-                    }
-                    handleGetRequest(requestLine, httpResponse);
-                    break;
-                
-                case "POST":
-                    // Handle POST request.
+            if (Log.isDebug()) {
+                Log.debug("Worker " + workerNumber + " got a " + request.method() + " request!");
+            }
+            // Clients over their request rate limit get 429, otherwise find the handler of
+            // the path and method (404/405 if there is none).
+            long wait = RateLimiter.REQUESTS == null ? 0 : RateLimiter.REQUESTS.tryAcquire(clientKey);
+            if (wait > 0) {
+                answerTooManyRequests(httpResponse, wait);
+            } else {
+                route = ROUTER.dispatch(this, request, httpResponse);
+            }
 
-                    if (debug) {
-                        System.out.println("Worker " + workerNumber + " got a POST request!");
-                    }
-                    handlePostRequest(requestLine, requestBody, httpResponse);
-                    break;
-                
-                case "DELETE":
-                    // Handle DELETE request.
-                    if (debug) {
-                        System.out.println("Worker " + workerNumber + " got a DELETE request!");
-                    }
-                    handleDeleteRequest(requestLine, httpResponse);
-                    break;
-            
-                default:
-                    // Return a 405 Method Not Allowed response code.
-                    buildResponseHeader(httpResponse, "405 Method Not Allowed", "text/html", 0, null);
-                    break;
+            if (flush) {
+                // Force buffered data to be written to OutputStream immediately.
+                httpResponse.flush();
             }
-            // Force buffered data to be written to OutputStream immediately.
-            httpResponse.flush();
         } catch (Exception e) {
-            System.out.println("Problem in worker grabbing the output stream! Message: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("Problem in worker writing the response! Message: " + e.getMessage());
+            if (Log.isDebug()) {
+                e.printStackTrace();
+            }
+            // Connection is broken, don't try to reuse it.
+            keepConnectionAlive = false;
+        }
+
+        long elapsed = System.nanoTime() - started;
+        Metrics.recordRequest(request.methodIndex(), route, responseStatus, elapsed);
+        if (Log.accessEnabled()) {
+            logAccess(request, elapsed);
+        }
+    }
+
+    /**
+     * Writes the access log line of a request. Compact format, one line per request:
+     *     <epoch millis> <client> <method> <uri> <status> <content length> <microseconds>us
+     * Precondition: response has been written.
+     * Postcondition: line has been queued for the log writer thread.
+     */
+    private void logAccess(HttpRequest request, long elapsedNanos) {
+        long micros = elapsedNanos / 1000;
+        StringBuilder line = new StringBuilder(96);
+        line.append(System.currentTimeMillis()).append(' ')
+                .append(clientAddress == null ? "-" : clientAddress.getHostAddress()).append(' ')
+                .append(request.method()).append(' ')
+                .append(request.uri()).append(' ')
+                .append(responseStatus == null ? "-" : responseStatus.substring(0, 3)).append(' ')
+                .append(responseContentLength < 0 ? "-" : String.valueOf(responseContentLength)).append(' ')
+                .append(micros).append("us");
+        Log.access(line.toString());
+    }
+
+    /**
+     * Sets the client the next requests come from (used by engines that don't call handleConnection).
+     */
+    public void setClientAddress(InetAddress clientAddress) {
+        this.clientAddress = clientAddress;
+        this.clientKey = RateLimiter.key(clientAddress);
+    }
+
+    // RateLimiter key of the client of the request being answered.
+    public long clientKey() {
+        return clientKey;
+    }
+
+    /**
+     * Answers 429 Too Many Requests to a client over a rate limit. The connection is closed
+     * afterwards, so a client can't keep a worker busy with requests that get turned away.
+     * @param httpResponse output stream the response is written to.
+     * @param waitNanos time until the client may try again (sent as Retry-After).
+     * Precondition: nothing has been written for this request yet.
+     * Postcondition: 429 response has been written.
+     */
+    public void answerTooManyRequests(ResponseStream httpResponse, long waitNanos) {
+        if (Log.isDebug()) {
+            Log.debug("Worker " + workerNumber + " rate limited a request.");
+        }
+        keepConnectionAlive = false;
+        buildResponseHeader(httpResponse, "429 Too Many Requests", "text/html", 0,
+                Collections.singletonList("Retry-After: " + RateLimiter.retryAfterSeconds(waitNanos)));
+    }
+
+    /**
+     * Answers a request the parser rejected, the connection gets closed afterwards.
+     * @param status status line from the parser, e.g. "400 Bad Request".
+     * @param httpResponse output stream the response is written to.
+     * Precondition:
+     * Postcondition: error response has been written.
+     */
+    public void answerParseError(String status, ResponseStream httpResponse) {
+        if (Log.isDebug()) {
+            Log.debug("Worker " + workerNumber + " rejected request: " + status);
+        }
+
+        keepConnectionAlive = false;
+        buildResponseHeader(httpResponse, status, "text/html", 0, null);
+        Metrics.recordStatus(status);
+        try {
+            httpResponse.flush();
+        } catch (IOException e) {
+            Log.error("Problem in worker writing the response! Message: " + e.getMessage());
         }
     }
 
     /**
      * Build response header.
+     * The whole block is built in a reusable buffer and written with a single write
+     * (fixed lines are pre-encoded, the Date line comes from the shared HttpDate clock).
      * @param appendMoreHeaders: used to add more headers that are not part of the hard coded ones.
      * Precondition:
      * Postcondition: HTTP response header has been written to socket output stream.
      */
     public void buildResponseHeader(OutputStream httpResponse, String statusCode, 
-                                    String contentType, int contentLength,
+                                    String contentType, long contentLength,
                                     List<String> addMoreHeaders) {
-        // Used to put date on response. 
-        Date d = new Date();
-        // Used to format data object.
-        DateFormat df = DateFormat.getDateTimeInstance();
-        df.setTimeZone(TimeZone.getTimeZone("GMT"));
 
-        try {
+        responseStatus = statusCode;
+        responseContentLength = contentLength;
+
+        ResponseHeaderBuilder header = headerBuilder.reset();
 
-            // Response line.
-            httpResponse.write("HTTP/1.1 ".getBytes());
-            httpResponse.write(statusCode.getBytes());
-            httpResponse.write("\r\n".getBytes());
+        // Response line.
+        header.append(ResponseHeaderBuilder.statusLine(statusCode));
 
-            // Date line.
-            httpResponse.write("Date: ".getBytes());
-            httpResponse.write((df.format(d)).getBytes());
-            httpResponse.write("\r\n".getBytes());
+        // Date line.
+        header.append(HttpDate.headerLine());
 
-            // Server line.
-            httpResponse.write("Server: Marco's HTTP server.\r\n".getBytes());
+        // Server line.
+        header.append(ResponseHeaderBuilder.SERVER);
 
-            // Connection line.
-            httpResponse.write("Connection: close\r\n".getBytes());
+        // Connection line.
+        if (keepConnectionAlive) {
+            header.append(ResponseHeaderBuilder.CONNECTION_KEEP_ALIVE);
+            header.append("Keep-Alive: timeout=").append(ServerConfig.keepAliveTimeoutMillis / 1000)
+                    .append(", max=").append(ServerConfig.keepAliveMaxRequests - requestsServedOnConnection)
+                    .append(ResponseHeaderBuilder.CRLF);
+        } else {
+            header.append(ResponseHeaderBuilder.CONNECTION_CLOSE);
+        }
 
-            // Content-Type line.
-            httpResponse.write("Content-Type: ".getBytes());
-            httpResponse.write(contentType.getBytes());
-            httpResponse.write("\r\n".getBytes());
+        // Content-Length line (needed by the client to find the end of the body on a kept-alive connection).
+        // Bodies of unknown length are chunked (HTTP/1.0: end when the connection closes).
+        // A 304 has no body and describes the client's copy, so it gets neither.
+        boolean notModified = statusCode.startsWith("304");
+        if (contentLength >= 0) {
+            header.append("Content-Length: ").append(contentLength).append(ResponseHeaderBuilder.CRLF);
+        } else if (requestHttp11 && !notModified) {
+            header.append("Transfer-Encoding: chunked").append(ResponseHeaderBuilder.CRLF);
+        }
 
-            // Add the other headers (if any).
-            if (addMoreHeaders != null) {
-                for (int i = 0; i < addMoreHeaders.size(); i++) {
-                    httpResponse.write(addMoreHeaders.get(i).getBytes());
-                    httpResponse.write("\r\n".getBytes());
-                }
+        // Content-Type line.
+        if (!notModified) {
+            header.header("Content-Type", contentType);
+        }
+
+        // Add the other headers (if any).
+        if (addMoreHeaders != null) {
+            for (int i = 0; i < addMoreHeaders.size(); i++) {
+                header.append(addMoreHeaders.get(i)).append(ResponseHeaderBuilder.CRLF);
             }
+        }
+
+        // HTTP header ends with 2 newlines.
+        header.append(ResponseHeaderBuilder.CRLF);
 
-            // HTTP header ends with 2 newlines.
-            httpResponse.write("\r\n".getBytes());
+        try {
+            httpResponse.write(header.array(), 0, header.length());
         } catch (Exception e) {
-            System.out.println("Error writing HTTP response header in worker code! Message: " + e.getMessage());
+            Log.error("Error writing HTTP response header in worker code! Message: " + e.getMessage());
         }
     }
 
     /**
-     * Handles GET request. 
-     * @param requestLine first line of HTTP request.
-     * @param httpResponse socket output stream to be written to.
+     * Starts a response whose body length isn't known up front (generated output).
+     * @param httpResponse stream of the connection.
+     * @param statusCode status line, e.g. "200 OK".
+     * @param contentType Content-Type of the body.
+     * @param addMoreHeaders extra header lines (may be null).
+     * Precondition: nothing has been written for this request yet.
+     * Postcondition: header has been written (with Content-Encoding if the body gets
+     *                compressed). Returns the stream the body is written to, finish() must
+     *                be called on it at the end and close() once it isn't used any
+     *                more (gives its buffers back). HTTP/1.0 connections are closed after the
+     *                response since the body can't be framed for them.
+     */
+    public ChunkedResponseStream beginChunkedResponse(HttpRequest request, ResponseStream httpResponse,
+                                                      String statusCode, String contentType,
+                                                      List<String> addMoreHeaders) throws IOException {
+        if (!requestHttp11) {
+            keepConnectionAlive = false;
+        }
+
+        // Compress on the fly if the client takes it.
+        ContentEncoding encoding = null;
+        if (ContentEncoding.worthCompressing(contentType, -1)) {
+            encoding = ContentEncoding.negotiate(request);
+            addMoreHeaders = concat(addMoreHeaders, encoding == null ? ContentEncoding.VARY_HEADERS : encoding.headers());
+        }
+
+        buildResponseHeader(httpResponse, statusCode, contentType, -1, addMoreHeaders);
+        return new ChunkedResponseStream(httpResponse, requestHttp11, encoding);
+    }
+
+    // Joins two lists of header lines (either may be null).
+    private static List<String> concat(List<String> first, List<String> second) {
+        if (first == null) {
+            return second;
+        }
+        List<String> both = new ArrayList<String>(first);
+        both.addAll(second);
+        return both;
+    }
+
+    /**
+     * Serves the index page ("/" and "/index.html").
+     * Precondition:
+     * Postcondition: index file (or a 404 if it's missing) has been sent.
+     */
+    public void handleIndex(HttpRequest request, ResponseStream httpResponse) {
+        // Return a simple HTML page and a 200 OK.
+        serveStaticFile(request, StaticFiles.indexFile(), httpResponse);
+    }
+
+    /**
+     * Redirects to google.com ("/google").
      * Precondition:
-     * Postcondition: handles GET request appropriately.
+     * Postcondition: 301 response has been written.
      */
-    public void handleGetRequest(String requestLine, OutputStream httpResponse) {
+    public void handleGoogleRedirect(HttpRequest request, ResponseStream httpResponse) {
+        // Return a redirect 301 header to google.com.
+        buildResponseHeader(httpResponse, "301 Moved Permanently", "text/html", 0, GOOGLE_REDIRECT_HEADERS);
+    }
 
-        // Used to hold the three tokens of the request line.
-        String[] requestLineTokens = requestLine.split(" ");
+    /**
+     * Serves the server counters in the Prometheus text format ("/metrics").
+     * Precondition:
+     * Postcondition: 200 response with every metric has been written.
+     */
+    public void handleMetrics(HttpRequest request, ResponseStream httpResponse) {
+        // Size depends on the routes and statuses seen so far, so the body is streamed in chunks.
+        try (ChunkedResponseStream body = beginChunkedResponse(request, httpResponse, "200 OK",
+                "text/plain; version=0.0.4; charset=utf-8", null)) {
+            Metrics.writePrometheus(body);
+            body.finish();
+        } catch (IOException e) {
+            Log.error("Error writing metrics to response body in Worker! Message: " + e.getMessage());
+            keepConnectionAlive = false;
+        }
+    }
 
-        // Grab URI from request line.
-        String uri = requestLineTokens[1];
+    /**
+     * Handles requests for paths without a route: files under the document root.
+     * @param request parsed HTTP request.
+     * @param httpResponse socket output stream to be written to.
+     * Precondition: no route matches the path.
+     * Postcondition: file has been sent for GET, 405 for other methods on a file, 404 otherwise.
+     */
+    public void handleStaticFile(HttpRequest request, ResponseStream httpResponse) {
+
+        // Look for a file under the document root.
+        Path file = StaticFiles.resolve(request.uri());
+        if (file == null) {
+            // Return a 404 Not Found response code.
+            buildResponseHeader(httpResponse, "404 Not Found", "text/html", 0, null);
+        } else if (!"GET".equals(request.method())) {
+            // Files can only be read: return a 405 Method Not Allowed response code.
+            buildResponseHeader(httpResponse, "405 Method Not Allowed", "text/html", 0, STATIC_ALLOW_HEADERS);
+        } else {
+            serveStaticFile(request, file, httpResponse);
+        }
+    }
 
-        switch (uri) {
-            case "/":
-            case "/index.html":
-                // Return a simple HTML page and a 200 OK.
+    /**
+     * Sends a file as a 200 OK response. Small files are served from StaticContentCache
+     * (compressed if the client accepts it), others go out with FileChannel.transferTo so
+     * they are never read into memory. Responses carry ETag, Last-Modified and the path's
+     * Cache-Control; if the client's copy is still current it gets a 304 without the body.
+     * A Range header gets the requested parts (206) of the file as it is.
+     * @param request request asking for the file (its Accept-Encoding, conditional and
+     *                Range headers are looked at).
+     * @param file file to send.
+     * @param httpResponse response stream to be written to.
+     * Precondition:
+     * Postcondition: file (or part of it, a 304, a 416, or a 404 if it can't be opened)
+     *                has been sent.
+     */
+    public void serveStaticFile(HttpRequest request, Path file, ResponseStream httpResponse) {
+
+        String contentType = StaticFiles.contentType(file);
+
+        // Small files come straight out of the cache.
+        StaticContentCache.Entry cached = StaticContentCache.get(file);
+
+        long size;
+        long lastModified;
+        String lastModifiedLine;
+        if (cached != null) {
+            size = cached.size();
+            lastModified = cached.lastModified();
+            lastModifiedLine = cached.lastModifiedLine();
+        } else {
+            // Validators come from the file's attributes, so a 304 never opens the file.
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (IOException e) {
+                Log.warn("Request file not found! Message: " + e.getMessage());
+                // Return a 404 Not Found response code.
+                buildResponseHeader(httpResponse, "404 Not Found", "text/html", 0, null);
+                return;
+            }
+            size = attributes.size();
+            lastModified = attributes.lastModifiedTime().toMillis();
+            lastModifiedLine = "Last-Modified: " + HttpDate.format(lastModified);
+        }
+        String identityEtag = cached != null ? cached.etag(null) : HttpCaching.etag(lastModified, size, null);
+
+        // Parts of the file asked for (null: the whole file). Ranges are always of the file as
+        // it is, a range of a compressed variant couldn't be used to resume a download.
+        long[] ranges = null;
+        String range = request.header("Range");
+        if (range != null && ByteRanges.ifRangeMatches(request, identityEtag, lastModified)) {
+            ranges = ByteRanges.parse(range, size);
+        }
 
-                // Create file pointer.
-                File requestFile = new File("./cool.html");
-                // Used to store contents of file in memory.
-                StringBuilder fileContent = new StringBuilder();
+        // Compressed once per file and encoding, then served from the cache too.
+        ByteBuffer body = null;
+        ContentEncoding encoding = null;
+        boolean varies = cached != null && ContentEncoding.worthCompressing(contentType, size);
+        if (varies && ranges == null) {
+            encoding = ContentEncoding.negotiate(request);
+            body = encoding == null ? null : cached.variant(encoding);
+            if (body == null) {
+                encoding = null;
+            }
+        }
+        if (body == null && cached != null) {
+            body = cached.body();
+        }
 
-                try {
-                    
-                    // Create file reader.
-                    BufferedReader br = new BufferedReader(new FileReader(requestFile));
+        String etag = encoding == null ? identityEtag : cached.etag(encoding);
+        if (HttpCaching.notModified(request, etag, lastModified)) {
+            buildResponseHeader(httpResponse, "304 Not Modified", null, -1,
+                    cachingHeaders(request, etag, lastModifiedLine, null, varies));
+            return;
+        }
 
-                    try {
-                        // Read file contents.
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            fileContent.append(line);
-                        }
-                    } catch (Exception e) {
-                        System.out.println("Error reading file " + requestFile.getName() + ". Message: " + e.getMessage());
-                    }
-                    // Close file reader.
-                    br.close();
-                } catch (Exception e) {
-                    System.out.println("Request file not found! Message: " + e.getMessage());
-                }
-                
-                // Convert file contents to String.
-                String fileContentString = fileContent.toString();
-                int fileContentSizeInBytes = fileContentString.getBytes().length;
-
-                // Build response header.
-                buildResponseHeader(httpResponse, "200 OK", "text/html", fileContentSizeInBytes, null);
-                
-                // Write HTTP response body to OutputStream.
-                try {
-                    httpResponse.write(fileContentString.getBytes());
-                } catch (Exception e) {
-                    System.out.println("Error writing file contents to HTTP response body in Worker! Message: " + e.getMessage());
-                }
+        List<String> headers = cachingHeaders(request, etag, lastModifiedLine, encoding, varies);
+        if (ranges == ByteRanges.UNSATISFIABLE) {
+            headers.add("Content-Range: bytes */" + size);
+            buildResponseHeader(httpResponse, "416 Range Not Satisfiable", "text/html", 0, headers);
+            return;
+        }
 
-                break;
+        try {
+            if (ranges == null && body != null) {
+                // Whole file (or compressed variant) from the cache.
+                buildResponseHeader(httpResponse, "200 OK", contentType, body.remaining(), headers);
+                httpResponse.write(body);
+            } else if (ranges == null) {
+                buildResponseHeader(httpResponse, "200 OK", contentType, size, headers);
+                sendFilePart(httpResponse, null, file, 0, size);
+            } else if (ranges.length == 2) {
+                headers.add("Content-Range: bytes " + ranges[0] + "-" + ranges[1] + "/" + size);
+                buildResponseHeader(httpResponse, "206 Partial Content", contentType, ranges[1] - ranges[0] + 1, headers);
+                sendFilePart(httpResponse, body, file, ranges[0], ranges[1] - ranges[0] + 1);
+            } else {
+                sendMultipartRanges(httpResponse, contentType, body, file, size, ranges, headers);
+            }
+        } catch (IOException e) {
+            Log.error("Error writing file contents to HTTP response body in Worker! Message: " + e.getMessage());
+            keepConnectionAlive = false;
+        }
+    }
+
+    /**
+     * Sends several ranges of a file as a multipart/byteranges 206 response (RFC 7233
+     * appendix A). Every part is sent like a single range, without copying.
+     * @param body cached file contents (null: read from file).
+     * @param ranges sorted, merged {first, last} pairs (more than one).
+     * @param headers extra header lines of the response.
+     * Precondition: nothing has been written for this request yet.
+     * Postcondition: response has been written.
+     */
+    private void sendMultipartRanges(ResponseStream httpResponse, String contentType, ByteBuffer body, Path file,
+                                     long size, long[] ranges, List<String> headers) throws IOException {
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+
+        // Part headers come first, so the Content-Length of the whole body can be sent.
+        int parts = ranges.length / 2;
+        byte[][] partHeaders = new byte[parts][];
+        long length = 0;
+        for (int i = 0; i < parts; i++) {
+            partHeaders[i] = ("\r\n--" + boundary + "\r\nContent-Type: " + contentType
+                    + "\r\nContent-Range: bytes " + ranges[2 * i] + "-" + ranges[2 * i + 1] + "/" + size
+                    + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            length += partHeaders[i].length + ranges[2 * i + 1] - ranges[2 * i] + 1;
+        }
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        length += end.length;
+
+        buildResponseHeader(httpResponse, "206 Partial Content", "multipart/byteranges; boundary=" + boundary,
+                length, headers);
+        for (int i = 0; i < parts; i++) {
+            httpResponse.write(partHeaders[i]);
+            sendFilePart(httpResponse, body, file, ranges[2 * i], ranges[2 * i + 1] - ranges[2 * i] + 1);
+        }
+        httpResponse.write(end);
+    }
 
-            case "/google":
-                // Redirect them to google.com.
-                
-                // Create a new redirect header line for google.com.
-                List<String> headers = new ArrayList<>();
-                headers.add("location: https://google.com");
+    /**
+     * Sends bytes of a file: a slice of the cached contents, or a zero-copy transfer
+     * straight from the file.
+     * @param body cached file contents (null: read from file).
+     * @param position offset of the first byte.
+     * @param count number of bytes.
+     * Precondition: position + count is within the file.
+     * Postcondition: bytes have been sent (or scheduled to be sent).
+     */
+    private void sendFilePart(ResponseStream httpResponse, ByteBuffer body, Path file, long position, long count)
+            throws IOException {
+        if (body != null) {
+            ByteBuffer part = body.duplicate();
+            part.position(part.position() + (int) position).limit(part.position() + (int) count);
+            httpResponse.write(part);
+            return;
+        }
 
-                // Return a redirect 301 header to google.com.
-                buildResponseHeader(httpResponse, "301 Moved Permanently", "text/html", 0, headers);
-                break;
-        
-            default:
+        // The response stream closes the file (one channel per part, each is sent on its own).
+        FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+        if (fileChannel.size() < position + count) {
+            fileChannel.close();
+            throw new IOException("File shrank while it was being sent.");
+        }
+        httpResponse.transferFrom(fileChannel, position, count);
+    }
 
-                // GET request URI doesn't exist.
-                checkIfWrongHttpMethodUsed(uri, httpResponse);
-                break;
+    /**
+     * Extra header lines of a static file response (built in a list the worker reuses).
+     * @param etag ETag of the representation.
+     * @param lastModifiedLine "Last-Modified: ..." line.
+     * @param encoding Content-Encoding of the body (null if it isn't compressed).
+     * @param varies whether the body depends on Accept-Encoding.
+     * Precondition:
+     * Postcondition: returns Accept-Ranges, ETag, Last-Modified, Cache-Control (if the path
+     *                has one), Content-Encoding and Vary lines (more may be added).
+     */
+    private List<String> cachingHeaders(HttpRequest request, String etag, String lastModifiedLine,
+                                        ContentEncoding encoding, boolean varies) {
+        List<String> headers = staticHeaders;
+        headers.clear();
+        headers.add(ACCEPT_RANGES);
+        headers.add("ETag: " + etag);
+        headers.add(lastModifiedLine);
+        String cacheControl = HttpCaching.cacheControl(request.path());
+        if (cacheControl != null) {
+            headers.add(cacheControl);
         }
+        if (encoding != null) {
+            headers.addAll(encoding.headers());
+        } else if (varies) {
+            headers.addAll(ContentEncoding.VARY_HEADERS);
+        }
+        return headers;
     }
 
+    /**
+     * Handles GET /database.php: "?key=<key>" answers the key's value, "?data=all" every
+     * key and value, one "<key>=<value>" line each (both form encoded). The list is streamed
+     * from the store's log as it is read, so it doesn't have to fit in memory.
+     * @param request parsed HTTP request.
+     * Precondition:
+     * Postcondition: 200 with the value(s), 404 if the key has no value, 400 without a key.
+     */
+    public void handleDatabaseGet(HttpRequest request, ResponseStream httpResponse) {
+
+        String query = request.query();
+        String key = queryParameter(query, "key");
+        if (!"data=all".equals(query) && (key == null || key.isEmpty())) {
+            // Return a 400 Bad Request status code.
+            buildResponseHeader(httpResponse, "400 Bad Request", "text/html", 0, null);
+            return;
+        }
+
+        KeyValueStore store = openDatabase(httpResponse);
+        if (store == null) {
+            return;
+        }
+
+        if (key == null) {
+            try (ChunkedResponseStream body = beginChunkedResponse(request, httpResponse, "200 OK",
+                    "text/plain; charset=us-ascii", null)) {
+                store.forEach((k, v) -> {
+                    writeFormEncoded(body, k);
+                    body.write('=');
+                    writeFormEncoded(body, v);
+                    body.write('\n');
+                });
+                body.finish();
+            } catch (IOException e) {
+                Log.error("Error writing database records to response body in Worker! Message: " + e.getMessage());
+                keepConnectionAlive = false;
+            }
+            return;
+        }
+
+        ByteBuffer value = store.get(key);
+        if (value == null) {
+            // Return a 404 Not Found response code.
+            buildResponseHeader(httpResponse, "404 Not Found", "text/html", 0, null);
+            return;
+        }
+        buildResponseHeader(httpResponse, "200 OK", "application/octet-stream", value.remaining(), null);
+        try {
+            // Straight from the store's mapping (no copy).
+            httpResponse.write(value);
+        } catch (IOException e) {
+            Log.error("Error writing database value to response body in Worker! Message: " + e.getMessage());
+        }
+    }
 
     /**
-     * Used to respond to request that is used incorrectly or doesn't exist.
-     * @param uri
-     * @param httpResponse
+     * Handles POST /database.php?key=<key>: stores the request body as the key's value.
+     * @param request parsed HTTP request.
      * Precondition:
-     * Postcondition: invalid request has been handled accordingly.
-     */
-    public void checkIfWrongHttpMethodUsed(String uri, OutputStream httpResponse) {
-
-        // If the endpoint exists, then the wrong HTTP method was used.
-        // Else, the endpoint doesn't exist.
-        switch (uri) {
-            case "/":
-            case "/index.html":
-            case "/google":
-            case "/multiply":
-            case "/database.php":
-            case "/database.php?data=all":
-
-                // Return a 405 Method Not Allowed response code.
-                buildResponseHeader(httpResponse, "405 Method Not Allowed", "text/html", 0, null);
-                break;
-        
-            default:
+     * Postcondition: 201 if the key is new, 200 if its value was replaced (once the value is
+     *                on disk), 400 without a key, 413 if key or value is too big.
+     */
+    public void handleDatabasePost(HttpRequest request, ResponseStream httpResponse) {
 
-                // Return a 404 Not Found response code.
-                buildResponseHeader(httpResponse, "404 Not Found", "text/html", 0, null);
-                break;
+        String key = queryParameter(request.query(), "key");
+        if (key == null || key.isEmpty()) {
+            // Return a 400 Bad Request status code.
+            buildResponseHeader(httpResponse, "400 Bad Request", "text/html", 0, null);
+            return;
+        }
+        if (!KeyValueStore.fits(key.getBytes(StandardCharsets.UTF_8).length, request.bodyLength())) {
+            buildResponseHeader(httpResponse, "413 Payload Too Large", "text/html", 0, null);
+            return;
+        }
+
+        KeyValueStore store = openDatabase(httpResponse);
+        if (store == null) {
+            return;
+        }
+        try {
+            boolean created = store.put(key, request.bodyArray(), request.bodyOffset(), request.bodyLength());
+            buildResponseHeader(httpResponse, created ? "201 Created" : "200 OK", "text/html", 0, null);
+        } catch (IOException e) {
+            Log.error("Error writing to the database in Worker! Message: " + e.getMessage());
+            buildResponseHeader(httpResponse, "500 Internal Server Error", "text/html", 0, null);
         }
     }
 
     /**
-     * Handles DELETE request.
-     * @param requestLine
+     * Handles DELETE /database.php. "?key=<key>" deletes a key, deleting everything
+     * ("?data=all", or no query) is forbidden.
+     * @param request parsed HTTP request.
      * Precondition:
      * Postcondition: responds to DELETE request appropriately.
      */
-    public void handleDeleteRequest(String requestLine, OutputStream httpResponse) {
-        
-        // Used to hold the three tokens of the request line.
-        String[] requestLineTokens = requestLine.split(" ");
+    public void handleDatabaseDelete(HttpRequest request, ResponseStream httpResponse) {
 
-        // Grab URI from request line.
-        String uri = requestLineTokens[1];
+        String query = request.query();
+        String key = queryParameter(query, "key");
+        if (query == null || query.equals("data=all")) {
+            buildResponseHeader(httpResponse, "403 Forbidden", "text/html", 0, null);
+            return;
+        }
+        if (key == null || key.isEmpty()) {
+            // Return a 404 Not Found response code.
+            buildResponseHeader(httpResponse, "404 Not Found", "text/html", 0, null);
+            return;
+        }
 
-        switch (uri) {
-            case "/database.php":
-            case "/database.php?data=all":
-                buildResponseHeader(httpResponse, "403 Forbidden", "text/html", 0, null);
-                break;
-        
-            default:
-                // DELETE request URI doesn't exist.
-                checkIfWrongHttpMethodUsed(uri, httpResponse);
-                break;
+        KeyValueStore store = openDatabase(httpResponse);
+        if (store == null) {
+            return;
+        }
+        try {
+            boolean deleted = store.delete(key);
+            buildResponseHeader(httpResponse, deleted ? "200 OK" : "404 Not Found", "text/html", 0, null);
+        } catch (IOException e) {
+            Log.error("Error deleting from the database in Worker! Message: " + e.getMessage());
+            buildResponseHeader(httpResponse, "500 Internal Server Error", "text/html", 0, null);
         }
     }
 
     /**
-     * Handles POST request.
+     * Opens the database for a handler.
+     * Precondition: nothing has been written for this request yet.
+     * Postcondition: returns the store, or null after answering 500 if it can't be opened.
+     */
+    private KeyValueStore openDatabase(ResponseStream httpResponse) {
+        try {
+            return KeyValueStore.instance();
+        } catch (IOException | RuntimeException e) {
+            Log.error("Error opening the database in Worker! Message: " + e.getMessage());
+            buildResponseHeader(httpResponse, "500 Internal Server Error", "text/html", 0, null);
+            return null;
+        }
+    }
+
+    /**
+     * Value of a query parameter ("a=1&b=2"), form decoded.
+     * Precondition:
+     * Postcondition: returns the value of the first parameter called name, "" if it has
+     *                none, null if there is no such parameter or it can't be decoded.
+     */
+    static String queryParameter(String query, String name) {
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if ((equals == -1 ? pair : pair.substring(0, equals)).equals(name)) {
+                try {
+                    return equals == -1 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes bytes form encoded (letters, digits and "-._*" as they are, space as '+',
+     * anything else as %XX), through the worker's encodeBuffer.
+     * Precondition:
+     * Postcondition: bytes have been written, buffer has been consumed.
+     */
+    private void writeFormEncoded(OutputStream out, ByteBuffer bytes) throws IOException {
+        byte[] encoded = encodeBuffer;
+        int count = 0;
+        while (bytes.hasRemaining()) {
+            if (count > encoded.length - 3) {
+                out.write(encoded, 0, count);
+                count = 0;
+            }
+            int b = bytes.get() & 0xff;
+            if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                    || b == '-' || b == '.' || b == '_' || b == '*') {
+                encoded[count++] = (byte) b;
+            } else if (b == ' ') {
+                encoded[count++] = '+';
+            } else {
+                encoded[count++] = '%';
+                encoded[count++] = (byte) HEX_DIGITS[b >> 4];
+                encoded[count++] = (byte) HEX_DIGITS[b & 0xf];
+            }
+        }
+        out.write(encoded, 0, count);
+    }
+
+    /**
+     * Handles POST /multiply.
      * Precondition:
      * Postcondition: responds to POST request accordingly.
      */
-    public void handlePostRequest(String requestLine, char[] requestBody, OutputStream httpResponse) {
+    public void handleMultiply(HttpRequest request, ResponseStream httpResponse) {
+
+        // Check if request body exists.
+        if (request.bodyLength() == 0) {
+            // Return a 400 Bad Request status code.
+            buildResponseHeader(httpResponse, "400 Bad Request", "text/html", 0, null);
+            return;
+        }
+
+        if (Log.isDebug()) {
+            Log.debug("Request body: *" + request.bodyAsString() + "*.");
+        }
+
+        // Check if request body matches the format agreed upon: "a=¡integer¿&b=¡integer¿"
+        // (or several such pairs joined by '&'), multiplying on the way.
+        if (!multiplyHandler.multiply(request.bodyArray(), request.bodyOffset(), request.bodyLength())) {
+
+            if (Log.isDebug()) {
+                Log.debug("Bad body! Pattern doesn't match!");
+            }
+            // Return a 400 Bad Request status code.
+            buildResponseHeader(httpResponse, "400 Bad Request", "text/html", 0, null);
+            return;
+        }
+
+        // Format is correct.
+        if (Log.isDebug()) {
+            Log.debug("Pattern matches! Products of " + multiplyHandler.pairCount() + " pair(s):\n"
+                    + new String(multiplyHandler.result(), 0, multiplyHandler.resultLength(), StandardCharsets.US_ASCII));
+        }
+
+        // Big batches are compressed if the client takes it.
+        List<String> headers = null;
+        if (ContentEncoding.worthCompressing("text/html", multiplyHandler.resultLength())) {
+            ContentEncoding encoding = ContentEncoding.negotiate(request);
+            if (encoding != null) {
+                sendCompressed(httpResponse, "text/html", multiplyHandler.result(), 0,
+                        multiplyHandler.resultLength(), encoding);
+                return;
+            }
+            headers = ContentEncoding.VARY_HEADERS;
+        }
+
+        // Build header, then attach body.
+        buildResponseHeader(httpResponse, "200 OK", "text/html", multiplyHandler.resultLength(), headers);
+
+        // Try to write the answer to the request body.
+        try {
+            httpResponse.write(multiplyHandler.result(), 0, multiplyHandler.resultLength());
+        } catch (IOException e) {
+            Log.error("Error writing answer to response body in Worker! Message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends a generated body compressed, as a 200 OK with Content-Length. The compressed
+     * bytes go into a buffer the worker reuses, with a pooled encoder.
+     * @param contentType Content-Type of the body.
+     * @param body array holding the body.
+     * @param offset first byte of the body.
+     * @param length number of bytes.
+     * @param encoding encoding the client accepts.
+     * Precondition: nothing has been written for this request yet.
+     * Postcondition: response has been written.
+     */
+    private void sendCompressed(ResponseStream httpResponse, String contentType, byte[] body, int offset,
+                                int length, ContentEncoding encoding) {
+        compressedBody.reset();
+        try {
+            encoding.encode(body, offset, length, compressedBody);
+        } catch (IOException e) {
+            Log.error("Error compressing response body in Worker! Message: " + e.getMessage());
+            buildResponseHeader(httpResponse, "500 Internal Server Error", "text/html", 0, null);
+            return;
+        }
+
+        buildResponseHeader(httpResponse, "200 OK", contentType, compressedBody.size(), encoding.headers());
+        try {
+            // Writes the buffer's bytes as they are (no copy).
+            compressedBody.writeTo(httpResponse);
+        } catch (IOException e) {
+            Log.error("Error writing answer to response body in Worker! Message: " + e.getMessage());
+        }
+        if (compressedBody.size() > MAX_KEPT_COMPRESSED_BYTES) {
+            // Don't hold on to the buffer of a huge response.
+            compressedBody = new ByteArrayOutputStream(1024);
+        }
+    }
+
+    /**
+     * Decides if the connection should stay open after answering the current request.
+     * HTTP/1.1 connections are persistent unless the client sends "Connection: close",
+     * HTTP/1.0 connections are closed unless the client sends "Connection: keep-alive".
+     * @param request parsed HTTP request.
+     * Precondition: requestsServedOnConnection counts the current request.
+     * Postcondition: returns true if the connection should be reused.
+     */
+    public boolean shouldKeepAlive(HttpRequest request) {
+
+        // Per-connection request limit reached.
+        if (requestsServedOnConnection >= ServerConfig.keepAliveMaxRequests) {
+            return false;
+        }
+
+        // Server is shutting down, don't hold on to the connection.
+        if (die.get()) {
+            return false;
+        }
+
+        if (request.headerHasToken("Connection", "close")) {
+            return false;
+        }
+        if (request.headerHasToken("Connection", "keep-alive")) {
+            return true;
+        }
+
+        // Default depends on the HTTP version of the request.
+        return request.isHttp11();
+    }
+
+    /**
+     * Serves every request that comes in on a connection, then closes it.
+     * @param sock network socket taken from the queue.
+     * Precondition: sock is connected.
+     * Postcondition: socket has been closed. It is closed after the client asks for it,
+     *                after it sits idle for keepAliveTimeoutMillis, after
+     *                keepAliveMaxRequests requests have been served on it, or when one of its
+     *                Deadlines passes.
+     */
+    public void handleConnection(Socket sock) {
+
+        Metrics.connectionOpened();
 
-        // Used to hold the three tokens of the request line.
-        String[] requestLineTokens = requestLine.split(" ");
+        // Initialize InputStream to read HTTP request contents.
+        InputStream in = null;
+        SocketResponseStream httpResponse = null;
+        try {
+            setClientAddress(sock.getInetAddress());
+            in = sock.getInputStream();
+            // Init output stream to build HTTP responses.
+            httpResponse = new SocketResponseStream(sock);
+        } catch (IOException e) {
+            Log.error("Error initializing socket streams in Worker code! Message: " + e.getMessage());
+        }
+
+        if (in != null && httpResponse != null) {
+            // Buffer and parser are reused for every request (and connection) of this worker
+            // (the buffer's array comes from the pool and goes back when the connection ends).
+            requestBuffer.clear();
+            parser.reset();
 
-        // Grab URI from request line.
-        String uri = requestLineTokens[1];
+            requestsServedOnConnection = 0;
+            keepConnectionAlive = true;
 
-        switch (uri) {
-            case "/multiply":
+            deadline = new TimingWheel.Timeout(() -> deadlinePassed(sock));
+            connection = sock;
+            output = httpResponse;
+            while (keepConnectionAlive) {
 
-                // Check if request body exists.
-                if (requestBody == null) {
-                    // Return a 400 Bad Request status code.
-                    buildResponseHeader(httpResponse, "400 Bad Request", "text/html", 0, null);
+                // Waiting for another request on a kept-alive connection: a shutdown may close it
+                // now (closeIfIdle), or has already begun and nothing more will be answered.
+                idle = requestsServedOnConnection > 0 && requestBuffer.available() == 0;
+                if (idle && die.get()) {
                     break;
                 }
+                // Nothing of the next request yet (or part of it, pipelined after the last one).
+                setDeadline(requestBuffer.available() > 0 ? Deadlines.HEADER : Deadlines.IDLE);
 
-                // Grab response body as a String.
-                String requestBodyAsString = "";
-                for (int i = 0; i < requestBody.length; i++) {
-                    requestBodyAsString += requestBody[i];
+                // READ IN THE HTTP REQUEST (header and body).
+                HttpRequest request;
+                try {
+                    request = readRequest(in);
+                    idle = false;
+                } catch (HttpParseException e) {
+                    answerParseError(e.getStatus(), httpResponse);
+                    break;
+                } catch (IOException e) {
+                    Log.error("Error reading request in Worker code! Message: " + e.getMessage());
+                    break;
                 }
 
-                if (debug) {
-                    System.out.println("Request body: *" + requestBodyAsString + "*.");
+                // Client closed the connection.
+                if (request == null) {
+                    break;
                 }
 
-                // Check if request body matches pattern agreed upon: "a=¡integer¿&b=¡integer¿".
-                Pattern pattern = Pattern.compile("a=[-]?[0-9]+&b=[-]?[0-9]+");
-                Matcher matcher = pattern.matcher(requestBodyAsString);
+                // Client has writeMillis to take each write of the response.
+                setDeadline(Deadlines.WRITE);
 
-                // Check if body fits format we specified.
-                if (!matcher.matches()) {
+                // Decide if the connection survives this request.
+                requestsServedOnConnection++;
+                keepConnectionAlive = shouldKeepAlive(request);
 
-                    if (debug) {
-                        System.out.println("Bad body! Pattern doesn't match!");
-                    }
-                    // Return a 400 Bad Request status code.
-                    buildResponseHeader(httpResponse, "400 Bad Request", "text/html", 0, null);
-                } else {
-                    // Format is correct.
+                // Handle HTTP request (sent below, unless another one is already waiting).
+                answerHttpRequest(request, httpResponse, false);
 
-                    String requestAnswer = handleMultiplyRequestBody(requestBodyAsString);
+                // Done with the request bytes (a pipelined request may follow them).
+                requestBuffer.consume(lastRequestLength);
+                parser.reset();
 
-                    // Build header, then attach body.
-                    buildResponseHeader(httpResponse, "200 OK", "text/html", requestAnswer.getBytes().length, null);
-
-                    // Try to write the answer to the request body.
+                // Pipelining: while the client has sent more requests than were answered, the
+                // responses pile up in the stream's buffer (which sends itself when full).
+                if (!keepConnectionAlive || !nextRequestBuffered()) {
                     try {
-                        httpResponse.write(requestAnswer.getBytes());
+                        httpResponse.flush();
                     } catch (IOException e) {
-                        System.out.println("Error writing answer to response body in Worker! Message: " + e.getMessage());
+                        Log.error("Problem in worker writing the response! Message: " + e.getMessage());
+                        break;
                     }
                 }
-                
-                break;
-        
-            default:
-                // POST request URI doesn't exist.
-                checkIfWrongHttpMethodUsed(uri, httpResponse);
-                break;
+            }
+        }
+
+        if (deadline != null) {
+            wheel.cancel(deadline);
+        }
+        idle = false;
+        connection = null;
+        output = null;
+
+        // Buffers go back to the pool.
+        requestBuffer.release();
+        if (httpResponse != null) {
+            httpResponse.release();
+        }
+
+        // Close socket, HTTP request(s) handled.
+        try {
+            sock.close();
+        } catch (Exception e) {
+            Log.error("Error closing socket! Message: " + e.getMessage());
         }
+        Metrics.connectionClosed();
     }
 
-    /***
-     * Handles the /multiply request body.
-     * Precondition: the body is of the form: "a=¡integer¿&b=¡integer¿"
-     * Postcondition: returns the result of the multiplication.
+    /**
+     * Reads one whole request (header and body) from the connection.
+     * @param in input stream of the socket.
+     * Precondition: requestBuffer holds the unread bytes of this connection, parser was reset
+     *               after the previous request.
+     * Postcondition: returns the parsed request (valid until the next call, its length is in
+     *                lastRequestLength), or null if the client closed the connection (or it
+     *                timed out) before sending any of it.
+     * @throws HttpParseException if the request is malformed, too big, or its deadline passed.
      */
-    public String handleMultiplyRequestBody(String requestBodyAsString) {
-        String requestBodyAnswer = "";
+    private HttpRequest readRequest(InputStream in) throws IOException, HttpParseException {
+        while (true) {
+            // Bytes of the next request may already be buffered (pipelining).
+            int length = parser.parse(requestBuffer.data, requestBuffer.start, requestBuffer.end);
+            if (length != HttpRequestParser.INCOMPLETE) {
+                lastRequestLength = length;
+                return parser.request();
+            }
+
+            // Deadline moves on to the header, then the body, as they start coming in.
+            int phase = parser.inBody() ? Deadlines.BODY
+                    : requestBuffer.available() > 0 ? Deadlines.HEADER : Deadlines.IDLE;
+            if (phase > deadlinePhase) {
+                setDeadline(phase);
+            }
 
-        if (debug) {
-            System.out.println("Pattern matches!");
+            if (!requestBuffer.makeRoom(ServerConfig.maxRequestBytes)) {
+                throw new HttpParseException("413 Payload Too Large");
+            }
+            if (requestBuffer.readFrom(in) == -1) {
+                if (requestBuffer.available() > 0) {
+                    // Cut off in the middle of a request: by the client, or by its deadline.
+                    throw new HttpParseException(timedOut ? "408 Request Timeout" : "400 Bad Request");
+                }
+                return null;
+            }
         }
-        
-        // Parse integers out and multiply them.
-        // Example input: "a=123&b=456"
+    }
 
-        String[] splitOnAmpersandSymbol = requestBodyAsString.split("&");
-        String[] splitOnFirstEqualSign = splitOnAmpersandSymbol[0].split("=");
-        String[] splitOnSecondEqualSign = splitOnAmpersandSymbol[1].split("=");
-        
-        int a = Integer.parseInt(splitOnFirstEqualSign[1]);
-        int b = Integer.parseInt(splitOnSecondEqualSign[1]);
-        int multipyResult = a * b;
+    /**
+     * Checks whether the next request is already in requestBuffer (the client pipelined it).
+     * Precondition: parser was reset after the previous request.
+     * Postcondition: returns true if the buffered bytes hold a whole request (or a malformed
+     *                one, whose error is answered next). Parser state is kept for readRequest.
+     */
+    private boolean nextRequestBuffered() {
+        if (requestBuffer.available() == 0) {
+            return false;
+        }
+        try {
+            return parser.parse(requestBuffer.data, requestBuffer.start, requestBuffer.end) != HttpRequestParser.INCOMPLETE;
+        } catch (HttpParseException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Puts the connection's deadline on the phase it is in now.
+     * @param phase Deadlines phase.
+     * Precondition: called by the thread serving the connection.
+     * Postcondition: deadline is set (or cancelled if the phase has no limit).
+     */
+    private void setDeadline(int phase) {
+        timedOut = false;
+        deadlinePhase = phase;
+        long millis = Deadlines.millis(phase);
+        if (millis > 0) {
+            wheel.schedule(deadline, millis);
+        } else {
+            wheel.cancel(deadline);
+        }
+    }
 
-        if (debug) {
-            System.out.println("a=" + a);
-            System.out.println("b=" + b);
-            System.out.println("Mult res=" + multipyResult);
+    /**
+     * Called on the deadline clock thread when the connection's deadline passes.
+     * @param sock connection the deadline was set for.
+     * Precondition: runs without any lock, so handleConnection may be moving the deadline to
+     *               the next phase, or be done with sock, at the same time.
+     * Postcondition: a connection waiting for (the rest of) a request reads end of stream,
+     *                readRequest answers 408 if part of one came in. A write stuck for
+     *                writeMillis has the socket closed under it. A handler that is still
+     *                working, or a write that just started, gets a new deadline.
+     */
+    private void deadlinePassed(Socket sock) {
+        if (connection != sock) {
+            // The worker is done with it (and may be serving another connection).
+            return;
+        }
+        int phase = deadlinePhase;
+        if (phase == Deadlines.WRITE) {
+            SocketResponseStream out = output;
+            long started = out == null ? 0 : out.writeStartedNanos();
+            long blockedMillis = started == 0 ? 0 : (System.nanoTime() - started) / 1000000;
+            if (blockedMillis < ServerConfig.writeTimeoutMillis) {
+                // Unless handleConnection moved it meanwhile.
+                wheel.postpone(deadline, ServerConfig.writeTimeoutMillis - blockedMillis);
+                return;
+            }
         }
 
-        // Convert answer to String.
-        requestBodyAnswer = "" + multipyResult;
-        
-        return requestBodyAnswer;
+        timedOut = true;
+        Metrics.recordTimeout(phase);
+        if (Log.isDebug()) {
+            Log.debug("Worker " + workerNumber + " connection timed out (" + Deadlines.name(phase) + ").");
+        }
+        try {
+            if (phase == Deadlines.WRITE) {
+                // Can't answer in the middle of a response.
+                sock.close();
+            } else {
+                // Only the reading side: the worker can still send its 408.
+                sock.shutdownInput();
+            }
+        } catch (IOException e) {
+            // Already closed.
+        }
+    }
+
+    /**
+     * Closes the connection if it is waiting for its next request. Called while the server
+     * stops, from another thread.
+     * Precondition: die is set (the worker won't start waiting on another connection).
+     * Postcondition: an idle connection reads end of stream and handleConnection closes it.
+     *                A request being answered is not disturbed.
+     */
+    public void closeIfIdle() {
+        Socket sock = connection;
+        if (idle && sock != null) {
+            try {
+                // Only the reading side: a response the worker is still writing gets out.
+                sock.shutdownInput();
+            } catch (IOException e) {
+                // Already closed.
+            }
+        }
+    }
+
+    /**
+     * Cuts the connection off, whatever it is doing. Called when the drain deadline passes.
+     * Precondition:
+     * Postcondition: socket is closed, handleConnection stops at its next read or write.
+     */
+    public void abort() {
+        Socket sock = connection;
+        if (sock != null) {
+            try {
+                sock.close();
+            } catch (IOException e) {
+                Log.error("Error closing socket! Message: " + e.getMessage());
+            }
+        }
     }
 
     @Override
     public void run() {
-        System.out.println("Worker " + workerNumber + " has been initialized!");
+        Log.info("Worker " + workerNumber + " has been initialized!");
+        BufferPool.cacheOnThisThread();
         
 
-        while (!die.get()) {
+        while (true) {
 
-            // Take from queue until it's time to die.
-            Socket sock = null;
+            // Take from queue until it's time to die (the main thread queues a STOP per worker
+            // once the queue is drained, so connections queued before the shutdown are answered).
+            QueuedSocket queued;
 
             try {
-                // Take from queue, block (wait) for up to 10 seconds.
-                sock = queue.poll(10, TimeUnit.SECONDS);     
+                // Take from queue, block (wait) until there is something. (Blocking engine
+                // workers are numbered from 1, worker n owns queue n - 1 when they are sharded.)
+                queued = queue.take(workerNumber - 1);
             } catch (InterruptedException e) {
-                System.out.println("Error in Worker code Interrruptedd while waiting for queue! Message: " + e.getMessage());
+                Log.error("Error in Worker code Interrruptedd while waiting for queue! Message: " + e.getMessage());
+                break;
             }
 
-            if (sock != null) {
-
-                if (debug) {
-                    System.out.println("Worker " + workerNumber + " got work!");
-                }
-                    // Answer HTTP request.
-
-                    // Initialize InputStreamReader to read HTTP request contents.
-                    InputStreamReader inputStreamReader = null;
-                    try {
-                        inputStreamReader = new InputStreamReader(sock.getInputStream());
-                    } catch (IOException e) {
-                        System.out.println("Error initializing InputStreamReader in Worker code! Message: " + e.getMessage());
-                    }
+            if (queued == QueuedSocket.STOP) {
+                break;
+            }
 
-                    if (inputStreamReader != null) {
-                        // Initialize BufferedReader to read HTTP request easily.
-                        BufferedReader reader = new BufferedReader(inputStreamReader);
-
-                        // Use StringBuilder to build and store HTTP header in memory (to be read later).
-                        StringBuilder requestHeaderBuilder = new StringBuilder();
-
-                        // Use character array to read and store HTTP body in memory (to be read later).
-                        int contentLength = -1;
-                        char[] httpBody = null;
-
-                        // READ IN THE HTTP HEADER.
-                        String line;
-                        try {
-                            // Read the HTTP request header line by line until an empty line is reached.
-                            while ((line = reader.readLine()) != null && !line.isEmpty()) {
-
-                                // Check if request contains Content-Length line (used to read in HTTP body).
-                                if (line.contains("Content-Length")) {
-                                    String[] lineParsed = line.split(": ");
-
-                                    try {
-                                        contentLength = Integer.parseInt(lineParsed[1]);
-                                        if (debug)
-                                            System.out.println("Content-Length: " + contentLength);
-                                    } catch (Exception e) {
-                                        System.out.println("Error trying to read in content-length of body.");
-                                        System.out.println("Message: " + e.getMessage());
-                                    }
-                                }
-
-                                // Append "\r\n" to end to keep HTTP format.
-                                requestHeaderBuilder.append(line + "\r\n");
-                            }
-                        } catch (IOException e) {
-                            System.out.println("Error reading request HEADER in Worker code! Message: " + e.getMessage());
-                        }
-
-                        // READ IN HTTP BODY (if any).
-                        if (contentLength > 0) {
-                            try {
-                                // Initialize array.
-                                httpBody = new char[contentLength];
-                                // Put HTTP body in character array.
-                                reader.read(httpBody, 0, contentLength);
-                            } catch (Exception e) {
-                                System.out.println("Error reading in HTTP body in Worker code! Message: " + e.getMessage());
-                            }
-                        }
-
-                        // Turn request HEADER into an immutable String so that it can't be changed accidently.
-                        String httpRequestHeader = requestHeaderBuilder.toString();
-
-                        // Handle HTTP request.
-                        answerHttpRequest(httpRequestHeader, httpBody, sock);
-
-                        // Close socket, HTTP request handled.
-                        try {
-                            sock.close();
-                        } catch (Exception e) {
-                            System.out.println("Error closing socket! Message: " + e.getMessage());
-                        }
-                    }
+            if (Log.isDebug()) {
+                Log.debug("Worker " + workerNumber + " got work!");
             }
-        }
+            Metrics.recordQueueWait(System.nanoTime() - queued.queuedNanos);
 
-        if (debug) {
-            System.out.println("Worker " + workerNumber + " has killed itself!");
+            // Answer HTTP request(s) on this connection.
+            handleConnection(queued.sock);
         }
+
+        Log.info("Worker " + workerNumber + " has killed itself!");
     }
 
 }
@@ -0,0 +1,88 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * BenchServerOps.java
+ *
+ * Implements bench.ServerOps with the real server classes (this class is in the default
+ * package so it can use them). Everything stays in memory: requests are byte arrays and
+ * responses go to a MemoryResponseStream.
+ */
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class BenchServerOps implements bench.ServerOps {
+
+    private final HttpRequestParser parser = new HttpRequestParser();
+    private final Worker worker = new Worker(null, new AtomicBoolean(false), new int[] {1});
+    private final MemoryResponseStream out = new MemoryResponseStream();
+
+    // Same paths as the server's route table, handlers that only count.
+    private final Router router;
+    private int routed = 0;
+
+    // Request kept by prepare() (and the parser holding it).
+    private final HttpRequestParser preparedParser = new HttpRequestParser();
+    private HttpRequest prepared;
+
+    public BenchServerOps() {
+        RouteHandler count = (w, request, response) -> routed++;
+        router = new Router()
+                .add("GET", "/", count)
+                .add("GET", "/index.html", count)
+                .add("GET", "/google", count)
+                .add("POST", "/multiply", count)
+                .add("DELETE", "/database.php", count)
+                .add("GET", "/metrics", count)
+                .setFallback("static", count);
+    }
+
+    @Override
+    public int parse(byte[] rawRequest) {
+        parser.reset();
+        try {
+            return parser.parse(rawRequest, 0, rawRequest.length);
+        } catch (HttpParseException e) {
+            throw new IllegalArgumentException("Benchmark request doesn't parse: " + e.getStatus());
+        }
+    }
+
+    @Override
+    public void prepare(byte[] rawRequest) {
+        preparedParser.reset();
+        try {
+            if (preparedParser.parse(rawRequest, 0, rawRequest.length) == HttpRequestParser.INCOMPLETE) {
+                throw new IllegalArgumentException("Benchmark request is incomplete");
+            }
+        } catch (HttpParseException e) {
+            throw new IllegalArgumentException("Benchmark request doesn't parse: " + e.getStatus());
+        }
+        prepared = preparedParser.request();
+    }
+
+    @Override
+    public int handleMultiply() {
+        out.reset();
+        worker.handleMultiply(prepared, out);
+        return out.size();
+    }
+
+    @Override
+    public int answer() {
+        out.reset();
+        worker.answerHttpRequest(prepared, out);
+        return out.size();
+    }
+
+    @Override
+    public int dispatch() {
+        router.dispatch(worker, prepared, out);
+        return routed;
+    }
+
+    @Override
+    public int buildResponseHeader() {
+        out.reset();
+        worker.buildResponseHeader(out, "200 OK", "text/html", 2048, null);
+        return out.size();
+    }
+}
@@ -0,0 +1,360 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * LoadGenerator.java
+ *
+ * Load generator that drives a running server over loopback and reports throughput and
+ * latency percentiles. Each connection has its own thread.
+ *
+ * Closed loop (default): every connection sends its next request as soon as the previous
+ * response arrives, so the server sets the pace.
+ * Open loop (--rate): requests are scheduled at a fixed total rate. Latency is measured from
+ * when a request was supposed to be sent, not when it actually was, so a stalled server shows
+ * up in the percentiles instead of quietly slowing the client down (coordinated omission
+ * correction).
+ *
+ * Usage:
+ *     java -cp bench/target/benchmarks.jar LoadGenerator [--host 127.0.0.1] [--port 8080]
+ *         [--connections 8] [--duration 10] [--warmup 2] [--rate 0] [--keepalive true]
+ *         [--mix index=4,multiply=3,google=2,delete=1]
+ */
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class LoadGenerator {
+
+    // Settings (see usage above).
+    private String host = "127.0.0.1";
+    private int port = 8080;
+    private int connections = 8;
+    private int durationSeconds = 10;
+    private int warmupSeconds = 2;
+    private double rate = 0;
+    private boolean keepAlive = true;
+    private String mix = "index=4,multiply=3,google=2,delete=1";
+
+    // Endpoints to pick from, each entry once per weight unit.
+    private final List<Endpoint> picks = new ArrayList<Endpoint>();
+
+    // Results (only counted after the warmup).
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder errors = new LongAdder();
+    private final Map<Integer, LongAdder> statusCounts = new LinkedHashMap<Integer, LongAdder>();
+
+    /**
+     * One of the documented endpoints.
+     */
+    private static class Endpoint {
+        final String name;
+        final String method;
+        final String path;
+        final String body;
+        final LongAdder sent = new LongAdder();
+
+        Endpoint(String name, String method, String path, String body) {
+            this.name = name;
+            this.method = method;
+            this.path = path;
+            this.body = body;
+        }
+
+        // Request bytes (Connection header depends on the keep-alive setting).
+        byte[] request(String host, boolean keepAlive) {
+            StringBuilder request = new StringBuilder();
+            request.append(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(host).append("\r\n")
+                    .append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+            if (body != null) {
+                request.append("Content-Type: application/x-www-form-urlencoded\r\n")
+                        .append("Content-Length: ").append(body.length()).append("\r\n");
+            }
+            request.append("\r\n");
+            if (body != null) {
+                request.append(body);
+            }
+            return request.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parseArgs(args);
+        generator.run();
+    }
+
+    /**
+     * Reads the command line.
+     * Precondition:
+     * Postcondition: settings and endpoint mix are set, exits on bad arguments.
+     */
+    private void parseArgs(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--host": host = value; break;
+                case "--port": port = Integer.parseInt(value); break;
+                case "--connections": connections = Integer.parseInt(value); break;
+                case "--duration": durationSeconds = Integer.parseInt(value); break;
+                case "--warmup": warmupSeconds = Integer.parseInt(value); break;
+                case "--rate": rate = Double.parseDouble(value); break;
+                case "--keepalive": keepAlive = Boolean.parseBoolean(value); break;
+                case "--mix": mix = value; break;
+                default:
+                    System.out.println("Unknown option " + args[i] + ". See the top of LoadGenerator.java for usage.");
+                    System.exit(1);
+            }
+        }
+
+        Map<String, Endpoint> endpoints = new LinkedHashMap<String, Endpoint>();
+        endpoints.put("index", new Endpoint("index", "GET", "/", null));
+        endpoints.put("multiply", new Endpoint("multiply", "POST", "/multiply", "a=12345&b=6789"));
+        endpoints.put("google", new Endpoint("google", "GET", "/google", null));
+        endpoints.put("delete", new Endpoint("delete", "DELETE", "/database.php", null));
+
+        for (String part : mix.split(",")) {
+            String[] nameAndWeight = part.trim().split("=");
+            Endpoint endpoint = endpoints.get(nameAndWeight[0]);
+            if (endpoint == null) {
+                System.out.println("Unknown endpoint " + nameAndWeight[0] + " (index, multiply, google, delete).");
+                System.exit(1);
+            }
+            int weight = nameAndWeight.length > 1 ? Integer.parseInt(nameAndWeight[1]) : 1;
+            for (int i = 0; i < weight; i++) {
+                picks.add(endpoint);
+            }
+        }
+        if (picks.isEmpty() || connections < 1) {
+            System.out.println("Need at least one endpoint and one connection.");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the load and prints the report.
+     */
+    private void run() throws InterruptedException {
+        System.out.println("Load: " + connections + " connections, " + (rate > 0 ? "open loop at " + rate + " req/s" : "closed loop")
+                + ", keep-alive " + (keepAlive ? "on" : "off") + ", warmup " + warmupSeconds + " s, measuring " + durationSeconds
+                + " s against " + host + ":" + port + ", mix " + mix);
+
+        long start = System.nanoTime();
+        long measureFrom = start + warmupSeconds * 1000000000L;
+        long end = measureFrom + durationSeconds * 1000000000L;
+
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            int connectionNumber = i;
+            threads[i] = new Thread(() -> drive(connectionNumber, start, measureFrom, end), "load-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        report();
+    }
+
+    /**
+     * Loop of one connection.
+     * @param connectionNumber used to spread the open loop schedule over connections.
+     * Precondition:
+     * Postcondition: requests have been sent until end, results after measureFrom are counted.
+     */
+    private void drive(int connectionNumber, long start, long measureFrom, long end) {
+        // Open loop: this connection sends every 'interval' nanoseconds, offset from the others.
+        long interval = rate > 0 ? (long) (1e9 * connections / rate) : 0;
+        long intended = start + (interval * connectionNumber) / connections;
+
+        Socket sock = null;
+        InputStream in = null;
+        OutputStream out = null;
+        byte[][] requests = new byte[picks.size()][];
+        for (int i = 0; i < picks.size(); i++) {
+            requests[i] = picks.get(i).request(host, keepAlive);
+        }
+
+        while (true) {
+            long now = System.nanoTime();
+            if (interval > 0) {
+                // Wait for the scheduled time (if the server is behind, don't wait at all).
+                if (intended > now) {
+                    LockSupport.parkNanos(intended - now);
+                    now = System.nanoTime();
+                }
+            } else {
+                intended = now;
+            }
+            if (now >= end) {
+                break;
+            }
+
+            int pick = ThreadLocalRandom.current().nextInt(picks.size());
+            int status;
+            try {
+                if (sock == null) {
+                    sock = new Socket();
+                    sock.setTcpNoDelay(true);
+                    sock.connect(new InetSocketAddress(host, port), 5000);
+                    sock.setSoTimeout(30000);
+                    in = new BufferedInputStream(sock.getInputStream(), 16 * 1024);
+                    out = sock.getOutputStream();
+                }
+                out.write(requests[pick]);
+                out.flush();
+                status = readResponse(in);
+                if (!keepAlive || status < 0 || (status & 0x10000) != 0) {
+                    sock.close();
+                    sock = null;
+                }
+            } catch (IOException e) {
+                status = -1;
+                closeQuietly(sock);
+                sock = null;
+            }
+
+            long done = System.nanoTime();
+            if (intended >= measureFrom) {
+                // Measured from when the request should have gone out (same as 'now' in closed loop).
+                long nanos = done - intended;
+                latency.record(nanos);
+                maxLatencyNanos.accumulate(nanos);
+                picks.get(pick).sent.increment();
+                if (status < 0) {
+                    errors.increment();
+                } else {
+                    countStatus(status & 0xffff);
+                }
+            }
+            intended += interval;
+        }
+        closeQuietly(sock);
+    }
+
+    /**
+     * Reads one response.
+     * Precondition: a request has been sent.
+     * Postcondition: returns the status code, with bit 16 set if the server closes the
+     *                connection (or -1 if it closed before answering).
+     */
+    private static int readResponse(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        if (statusLine == null) {
+            return -1;
+        }
+        int status = Integer.parseInt(statusLine.substring(9, 12));
+        long contentLength = -1;
+        boolean close = false;
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            String lower = line.toLowerCase(Locale.ROOT);
+            if (lower.startsWith("content-length:")) {
+                contentLength = Long.parseLong(lower.substring(15).trim());
+            } else if (lower.startsWith("connection:") && lower.contains("close")) {
+                close = true;
+            }
+        }
+
+        if (contentLength >= 0) {
+            long left = contentLength;
+            while (left > 0) {
+                long skipped = in.skip(left);
+                if (skipped <= 0) {
+                    if (in.read() == -1) {
+                        throw new IOException("Connection closed in the middle of a body");
+                    }
+                    skipped = 1;
+                }
+                left -= skipped;
+            }
+        } else {
+            // No length: body ends when the connection does.
+            while (in.read() != -1) {
+                // Skip.
+            }
+            close = true;
+        }
+        return close ? status | 0x10000 : status;
+    }
+
+    // Reads a CRLF terminated line, null at end of stream.
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private void countStatus(int status) {
+        LongAdder count;
+        synchronized (statusCounts) {
+            count = statusCounts.computeIfAbsent(status, s -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    private static void closeQuietly(Socket sock) {
+        if (sock != null) {
+            try {
+                sock.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+        }
+    }
+
+    /**
+     * Prints throughput, latency percentiles and counts.
+     */
+    private void report() {
+        long total = latency.count();
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "Requests: %d in %d s, %.1f req/s, errors: %d",
+                total, durationSeconds, total / (double) durationSeconds, errors.sum()));
+        System.out.println(String.format(Locale.ROOT, "Latency: p50=%.3f ms p90=%.3f ms p99=%.3f ms p99.9=%.3f ms max=%.3f ms",
+                latency.quantileSeconds(0.5) * 1e3, latency.quantileSeconds(0.9) * 1e3, latency.quantileSeconds(0.99) * 1e3,
+                latency.quantileSeconds(0.999) * 1e3, maxLatencyNanos.get() / 1e6));
+
+        StringBuilder byStatus = new StringBuilder("Status:");
+        synchronized (statusCounts) {
+            for (Map.Entry<Integer, LongAdder> entry : statusCounts.entrySet()) {
+                byStatus.append(' ').append(entry.getKey()).append('=').append(entry.getValue().sum());
+            }
+        }
+        System.out.println(byStatus);
+
+        StringBuilder byEndpoint = new StringBuilder("Endpoints:");
+        List<Endpoint> seen = new ArrayList<Endpoint>();
+        for (Endpoint endpoint : picks) {
+            if (!seen.contains(endpoint)) {
+                seen.add(endpoint);
+                byEndpoint.append(' ').append(endpoint.name).append('=').append(endpoint.sent.sum());
+            }
+        }
+        System.out.println(byEndpoint);
+    }
+}
@@ -0,0 +1,67 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * MemoryResponseStream.java
+ *
+ * ResponseStream that keeps the response in memory (benchmarks use it instead of a socket).
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+public class MemoryResponseStream extends ResponseStream {
+
+    private byte[] buf = new byte[4096];
+    private int size = 0;
+
+    // Forgets what was written (the buffer is reused).
+    public void reset() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void write(int b) {
+        if (size == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        buf[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (size + len > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + len));
+        }
+        System.arraycopy(b, off, buf, size, len);
+        size += len;
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) {
+        ByteBuffer src = buffer.duplicate();
+        int len = src.remaining();
+        if (size + len > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + len));
+        }
+        src.get(buf, size, len);
+        size += len;
+    }
+
+    @Override
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        try {
+            ByteBuffer chunk = ByteBuffer.allocate((int) count);
+            file.read(chunk, position);
+            chunk.flip();
+            write(chunk);
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * MultiplyBenchmark.java
+ *
+ * The /multiply handler (body parsing, multiplication, response) on an already parsed request.
+ */
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MultiplyBenchmark {
+
+    // One pair or a batch of seven.
+    @Param({"single", "batch"})
+    public String body;
+
+    private ServerOps ops;
+
+    @Setup
+    public void setup() {
+        ops = ServerOps.create();
+        ops.prepare(body.equals("single") ? Requests.MULTIPLY : Requests.MULTIPLY_BATCH);
+    }
+
+    @Benchmark
+    public int handleMultiply() {
+        return ops.handleMultiply();
+    }
+}
@@ -0,0 +1,53 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * RequestParsingBenchmark.java
+ *
+ * Request line + header parsing, as a worker does for every request it reads.
+ */
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParsingBenchmark {
+
+    private ServerOps ops;
+
+    @Setup
+    public void setup() {
+        ops = ServerOps.create();
+    }
+
+    @Benchmark
+    public int minimalGet() {
+        return ops.parse(Requests.MINIMAL_GET);
+    }
+
+    @Benchmark
+    public int browserGet() {
+        return ops.parse(Requests.BROWSER_GET);
+    }
+
+    @Benchmark
+    public int multiplyPost() {
+        return ops.parse(Requests.MULTIPLY);
+    }
+}
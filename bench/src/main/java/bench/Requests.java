@@ -0,0 +1,52 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * Requests.java
+ *
+ * Raw requests used by the benchmarks.
+ */
+package bench;
+
+import java.nio.charset.StandardCharsets;
+
+final class Requests {
+
+    // Smallest request a client can send.
+    static final byte[] MINIMAL_GET = ascii("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+    // What a browser sends.
+    static final byte[] BROWSER_GET = ascii("GET /index.html HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/119.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "Sec-Fetch-Dest: document\r\n"
+            + "Sec-Fetch-Mode: navigate\r\n"
+            + "Sec-Fetch-Site: none\r\n"
+            + "Sec-Fetch-User: ?1\r\n"
+            + "\r\n");
+
+    static final byte[] MULTIPLY = ascii("POST /multiply HTTP/1.1\r\nHost: localhost\r\n"
+            + "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: 15\r\n\r\na=12345&b=-6789");
+
+    static final byte[] MULTIPLY_BATCH = ascii("POST /multiply HTTP/1.1\r\nHost: localhost\r\n"
+            + "Content-Length: 95\r\n\r\n"
+            + "a=1&b=2&a=30&b=40&a=500&b=600&a=-7000&b=8000&a=90000&b=10000&a=123456789&b=987654321&a=42&b=-42");
+
+    static final byte[] GOOGLE = ascii("GET /google HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+    static final byte[] DELETE_DATABASE = ascii("DELETE /database.php?data=all HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+    static final byte[] NOT_FOUND = ascii("GET /no/such/file.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+    private Requests() {
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
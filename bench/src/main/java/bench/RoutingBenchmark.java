@@ -0,0 +1,64 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * RoutingBenchmark.java
+ *
+ * URI dispatch. "dispatch" only walks the route table (handlers do nothing), "answer" is the
+ * whole Worker.answerHttpRequest path (route table, handler, response header, metrics).
+ */
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RoutingBenchmark {
+
+    @Param({"google", "delete", "notFound"})
+    public String request;
+
+    private ServerOps ops;
+
+    @Setup
+    public void setup() {
+        ops = ServerOps.create();
+        switch (request) {
+            case "google":
+                ops.prepare(Requests.GOOGLE);
+                break;
+            case "delete":
+                ops.prepare(Requests.DELETE_DATABASE);
+                break;
+            default:
+                ops.prepare(Requests.NOT_FOUND);
+                break;
+        }
+    }
+
+    @Benchmark
+    public int dispatch() {
+        return ops.dispatch();
+    }
+
+    @Benchmark
+    public int answer() {
+        return ops.answer();
+    }
+}
@@ -0,0 +1,59 @@
+/***
+ * Marco Martinez
+ * Computer Networks I
+ * Programming Project 2: Building a Web Server
+ * ServerOps.java
+ *
+ * What the benchmarks call on the server. The server classes live in the default package,
+ * which classes in a named package can't refer to (and JMH only runs benchmarks that have a
+ * package), so BenchServerOps (default package) implements this interface and does the calls.
+ * One implementation is ever loaded, so the JIT inlines straight through the interface.
+ */
+package bench;
+
+public interface ServerOps {
+
+    /**
+     * Loads the implementation.
+     */
+    static ServerOps create() {
+        try {
+            return (ServerOps) Class.forName("BenchServerOps").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchServerOps missing from the classpath", e);
+        }
+    }
+
+    /**
+     * Parses a raw request from scratch (as a worker does for every request it reads).
+     * Returns the request length.
+     */
+    int parse(byte[] rawRequest);
+
+    /**
+     * Parses a raw request once and keeps it for the calls below.
+     */
+    void prepare(byte[] rawRequest);
+
+    /**
+     * Runs the /multiply handler on the prepared request. Returns the response size.
+     */
+    int handleMultiply();
+
+    /**
+     * Answers the prepared request the way a worker does (routing, handler, metrics).
+     * Returns the response size.
+     */
+    int answer();
+
+    /**
+     * Walks the route table for the prepared request (handlers do nothing). Returns the
+     * number of routes hit so far, so the call can't be optimized away.
+     */
+    int dispatch();
+
+    /**
+     * Builds a typical response header. Returns its size.
+     */
+    int buildResponseHeader();
+}
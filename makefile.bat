@@ -1,5 +1,40 @@
 @echo off
+javac ServerConfig.java
 javac MainThread.java
 javac Worker.java
+javac NioConnection.java
+javac NioEventLoop.java
+javac NioMainThread.java
+javac VirtualThreadMainThread.java
+javac ResponseStream.java
+javac SocketResponseStream.java
+javac NioResponseStream.java
+javac StaticFiles.java
+javac StaticContentCache.java
+javac HttpParseException.java
+javac RequestBuffer.java
+javac HttpRequest.java
+javac HttpRequestParser.java
+javac HttpDate.java
+javac ResponseHeaderBuilder.java
+javac MultiplyHandler.java
+javac RouteHandler.java
+javac Router.java
+javac AdmissionControl.java
+javac Log.java
+javac LatencyHistogram.java
+javac QueuedSocket.java
+javac Metrics.java
+javac ChunkedResponseStream.java
+javac ContentEncoding.java
+javac GzipEncoding.java
+javac HttpCaching.java
+javac ByteRanges.java
+javac WorkQueues.java
+javac BufferPool.java
+javac TimingWheel.java
+javac Deadlines.java
+javac RateLimiter.java
+javac KeyValueStore.java
 javac WebServerMain.java
 java WebServerMain
\ No newline at end of file